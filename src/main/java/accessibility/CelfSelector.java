@@ -0,0 +1,114 @@
+package accessibility;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Node;
+
+import java.util.*;
+import java.util.function.Function;
+
+// Lazy greedy (CELF) selection of new destinations for RunIntervention.
+// Supply only increases between iterations, so a candidate's demand can only fall and its last value is an upper bound.
+// Candidates are kept in one queue per destination type ordered by (demand desc, node index asc). Stale entries at the
+// head are re-evaluated until the head is fresh, which gives the same picks as a full greedy pass with the same tie-breaking.
+
+final class CelfSelector {
+
+    private final static Logger log = Logger.getLogger(CelfSelector.class);
+
+    static final Comparator<Entry> ORDER = (a, b) -> a.value != b.value ? Double.compare(b.value, a.value) :
+            Integer.compare(a.nodeId.index(), b.nodeId.index());
+
+    private final int batchSize;
+    private final List<PriorityQueue<Entry>> queues;
+    private int evaluations;
+
+    CelfSelector(int destTypeCount, int batchSize) {
+        this.batchSize = batchSize;
+        this.queues = new ArrayList<>(destTypeCount);
+        for(int j = 0 ; j < destTypeCount ; j++) {
+            queues.add(new PriorityQueue<>(ORDER));
+        }
+    }
+
+    // Selects one node per destination type, using demandFunction (for the current supply) to evaluate sets of candidates.
+    // Returns the demand of every candidate evaluated in this iteration (all candidates in the first), including the selected nodes.
+    Map<Id<Node>,double[]> select(Set<Id<Node>> candidates, Function<Set<Id<Node>>,Map<Id<Node>,double[]>> demandFunction,
+                                  int iteration, List<Id<Node>> selected) {
+        Map<Id<Node>,double[]> fresh = new HashMap<>();
+        int evaluationsBefore = evaluations;
+
+        if(iteration == 0) {
+            fresh.putAll(demandFunction.apply(candidates));
+            evaluations += candidates.size();
+            for(Map.Entry<Id<Node>,double[]> e : fresh.entrySet()) {
+                for(int j = 0 ; j < queues.size() ; j++) {
+                    queues.get(j).add(new Entry(e.getKey(), e.getValue()[j], iteration));
+                }
+            }
+        }
+
+        for(int j = 0 ; j < queues.size() ; j++) {
+            PriorityQueue<Entry> queue = queues.get(j);
+            while(queue.peek().iteration != iteration) {
+
+                // Refresh stale entries at the head, evaluating up to batchSize of them together
+                Set<Id<Node>> toEvaluate = new LinkedHashSet<>();
+                List<Entry> stale = new ArrayList<>();
+                while(!queue.isEmpty() && queue.peek().iteration != iteration && toEvaluate.size() < batchSize) {
+                    Entry entry = queue.poll();
+                    stale.add(entry);
+                    if(!fresh.containsKey(entry.nodeId)) {
+                        toEvaluate.add(entry.nodeId);
+                    }
+                }
+                if(!toEvaluate.isEmpty()) {
+                    fresh.putAll(demandFunction.apply(toEvaluate));
+                    evaluations += toEvaluate.size();
+                }
+                for(Entry entry : stale) {
+                    queue.add(new Entry(entry.nodeId, fresh.get(entry.nodeId)[j], iteration));
+                }
+            }
+
+            // Head is fresh and at least as high as every upper bound behind it
+            Entry best = queue.peek();
+            if(best.value <= Double.MIN_VALUE) {
+                throw new RuntimeException("No candidate with positive demand in iteration " + iteration);
+            }
+            selected.add(j, best.nodeId);
+        }
+        log.info("Iteration " + iteration + ": evaluated " + (evaluations - evaluationsBefore) + " of " + candidates.size() + " candidates.");
+        return fresh;
+    }
+
+    int getEvaluations() {
+        return evaluations;
+    }
+
+    // Full greedy pick for one destination type, with the same tie-breaking as the queue order
+    static Id<Node> selectBest(Map<Id<Node>,double[]> demand, int type) {
+        Id<Node> selected = null;
+        double highest = Double.MIN_VALUE;
+        for (Map.Entry<Id<Node>, double[]> e : demand.entrySet()) {
+            double value = e.getValue()[type];
+            if (value > highest || (value == highest && selected != null && e.getKey().index() < selected.index())) {
+                selected = e.getKey();
+                highest = value;
+            }
+        }
+        return selected;
+    }
+
+    static final class Entry {
+        final Id<Node> nodeId;
+        final double value;
+        final int iteration;
+
+        Entry(Id<Node> nodeId, double value, int iteration) {
+            this.nodeId = nodeId;
+            this.value = value;
+            this.iteration = iteration;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package accessibility;
+
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.IdSet;
+import org.matsim.api.core.v01.network.Node;
+
+import java.util.Map;
+
+// Flat array form of LocationData for the accessibility inner loop: destination weights plus, per destination,
+// a range (offsets) into the graph indices of its access nodes.
+
+final class CompiledLocationData {
+
+    final double[] weights;
+    final int[] offsets;
+    final int[] nodeIndices;
+
+    CompiledLocationData(LocationData data) {
+        Map<String, IdSet<Node>> nodes = data.getNodes();
+        Map<String, Double> weightMap = data.getWeights();
+        int destinationCount = weightMap.size();
+
+        this.weights = new double[destinationCount];
+        this.offsets = new int[destinationCount + 1];
+        int d = 0;
+        for (Map.Entry<String, Double> e : weightMap.entrySet()) {
+            this.weights[d] = e.getValue();
+            this.offsets[d + 1] = this.offsets[d] + nodes.get(e.getKey()).size();
+            d++;
+        }
+
+        this.nodeIndices = new int[this.offsets[destinationCount]];
+        int i = 0;
+        for (String id : weightMap.keySet()) {
+            for (Id<Node> nodeId : nodes.get(id)) {
+                this.nodeIndices[i++] = nodeId.index();
+            }
+        }
+    }
+
+    int size() {
+        return weights.length;
+    }
+}
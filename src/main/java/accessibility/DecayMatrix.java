@@ -0,0 +1,193 @@
+package accessibility;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Node;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+
+// Sparse candidate x origin decay matrix for intervention runs, stored as compressed sparse rows.
+// Each row holds the compact origin indices within the decay cutoff of one candidate and the decay to each, as doubles so
+// that demand and supply sums match the tree-based calculation.
+// Rows are kept in memory, or written to a file as they complete and memory-mapped once the matrix is finished.
+
+final class DecayMatrix {
+
+    private final static Logger log = Logger.getLogger(DecayMatrix.class);
+    private final static long MAX_SEGMENT_BYTES = 1L << 30;
+    private final static int ENTRY_BYTES = Integer.BYTES + Double.BYTES;
+
+    private final Map<Id<Node>,Integer> rowIndex;
+    private final int originCount;
+    private final int[] rowLength;
+
+    // In memory
+    private final int[][] cols;
+    private final double[][] values;
+
+    // Memory-mapped
+    private final String filePath;
+    private DataOutputStream out;
+    private long filePosition;
+    private final long[] rowFilePosition;
+    private MappedByteBuffer[] segments;
+    private int[] rowSegment;
+    private int[] rowPosition;
+
+    // If filePath is null, rows are held in memory
+    DecayMatrix(List<Id<Node>> candidates, int originCount, String filePath) throws IOException {
+        this.rowIndex = new HashMap<>(candidates.size());
+        for(int i = 0 ; i < candidates.size() ; i++) {
+            rowIndex.put(candidates.get(i), i);
+        }
+        this.originCount = originCount;
+        this.rowLength = new int[candidates.size()];
+        this.filePath = filePath;
+        if(filePath == null) {
+            this.cols = new int[candidates.size()][];
+            this.values = new double[candidates.size()][];
+            this.rowFilePosition = null;
+        } else {
+            this.cols = null;
+            this.values = null;
+            this.rowFilePosition = new long[candidates.size()];
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)));
+        }
+    }
+
+    // Called by worker threads as each row completes (the first n entries of the arrays are used)
+    void setRow(int row, int[] rowCols, double[] rowValues, int n) {
+        rowLength[row] = n;
+        if(filePath == null) {
+            int[] c = new int[n];
+            double[] v = new double[n];
+            System.arraycopy(rowCols, 0, c, 0, n);
+            System.arraycopy(rowValues, 0, v, 0, n);
+            cols[row] = c;
+            values[row] = v;
+        } else {
+            synchronized (this) {
+                try {
+                    rowFilePosition[row] = filePosition;
+                    for(int k = 0 ; k < n ; k++) {
+                        out.writeInt(rowCols[k]);
+                    }
+                    for(int k = 0 ; k < n ; k++) {
+                        out.writeDouble(rowValues[k]);
+                    }
+                    filePosition += (long) ENTRY_BYTES * n;
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to write decay matrix row to " + filePath, e);
+                }
+            }
+        }
+    }
+
+    // Closes the file and maps it in segments of up to 1GB, split at row boundaries
+    void finish() throws IOException {
+        long entries = 0;
+        for(int n : rowLength) {
+            entries += n;
+        }
+        log.info("Decay matrix: " + rowLength.length + " candidates x " + originCount + " origins, " + entries +
+                " non-zero entries (" + String.format("%.2f", 100. * entries / ((double) rowLength.length * originCount)) + "% dense).");
+        if(filePath == null) {
+            return;
+        }
+        out.close();
+        out = null;
+
+        Integer[] order = new Integer[rowLength.length];
+        for(int i = 0 ; i < order.length ; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(rowFilePosition[a], rowFilePosition[b]));
+
+        rowSegment = new int[rowLength.length];
+        rowPosition = new int[rowLength.length];
+        List<long[]> segmentBounds = new ArrayList<>();
+        long segmentStart = 0;
+        for(int row : order) {
+            long rowEnd = rowFilePosition[row] + (long) ENTRY_BYTES * rowLength[row];
+            if(rowEnd - segmentStart > MAX_SEGMENT_BYTES) {
+                segmentBounds.add(new long[] {segmentStart, rowFilePosition[row]});
+                segmentStart = rowFilePosition[row];
+            }
+            rowSegment[row] = segmentBounds.size();
+            rowPosition[row] = (int) (rowFilePosition[row] - segmentStart);
+        }
+        segmentBounds.add(new long[] {segmentStart, filePosition});
+
+        segments = new MappedByteBuffer[segmentBounds.size()];
+        try (RandomAccessFile raf = new RandomAccessFile(filePath, "r"); FileChannel channel = raf.getChannel()) {
+            for(int s = 0 ; s < segments.length ; s++) {
+                long[] bounds = segmentBounds.get(s);
+                segments[s] = channel.map(FileChannel.MapMode.READ_ONLY, bounds[0], bounds[1] - bounds[0]);
+            }
+        }
+        log.info("Memory-mapped decay matrix " + filePath + " in " + segments.length + " segment(s).");
+    }
+
+    int getRow(Id<Node> candidate) {
+        Integer row = rowIndex.get(candidate);
+        if(row == null) {
+            throw new RuntimeException("Node " + candidate + " is not a candidate in the decay matrix");
+        }
+        return row;
+    }
+
+    int getOriginCount() {
+        return originCount;
+    }
+
+    // Demand for a new destination at this candidate, given current supply[type][origin]
+    double[] demand(int row, double[] population, double[][] supply, double[] newWeights) {
+        int typeCount = newWeights.length;
+        double[] demand = new double[typeCount];
+        int n = rowLength[row];
+        if(filePath == null) {
+            int[] c = cols[row];
+            double[] v = values[row];
+            for(int k = 0 ; k < n ; k++) {
+                addDemand(demand, c[k], v[k], population, supply, newWeights);
+            }
+        } else {
+            MappedByteBuffer buffer = segments[rowSegment[row]];
+            int colPos = rowPosition[row];
+            int valPos = colPos + 4 * n;
+            for(int k = 0 ; k < n ; k++) {
+                addDemand(demand, buffer.getInt(colPos + 4 * k), buffer.getDouble(valPos + 8 * k), population, supply, newWeights);
+            }
+        }
+        return demand;
+    }
+
+    private static void addDemand(double[] demand, int origin, double decay, double[] population, double[][] supply, double[] newWeights) {
+        for(int j = 0 ; j < demand.length ; j++) {
+            double newAccess = newWeights[j] * decay;
+            demand[j] += population[origin] * newAccess / (newAccess + supply[j][origin]);
+        }
+    }
+
+    // Adds a new destination of the given weight at this candidate to the supply of one destination type
+    void addSupply(int row, double weight, double[] supplyOfType) {
+        int n = rowLength[row];
+        if(filePath == null) {
+            int[] c = cols[row];
+            double[] v = values[row];
+            for(int k = 0 ; k < n ; k++) {
+                supplyOfType[c[k]] += weight * v[k];
+            }
+        } else {
+            MappedByteBuffer buffer = segments[rowSegment[row]];
+            int colPos = rowPosition[row];
+            int valPos = colPos + 4 * n;
+            for(int k = 0 ; k < n ; k++) {
+                supplyOfType[buffer.getInt(colPos + 4 * k)] += weight * buffer.getDouble(valPos + 8 * k);
+            }
+        }
+    }
+}
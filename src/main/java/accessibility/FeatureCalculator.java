@@ -2,6 +2,7 @@ package accessibility;
 
 import accessibility.decay.DecayFunction;
 import gis.GisUtils;
+import network.NetworkSnapper;
 import network.NetworkUtils2;
 import org.apache.log4j.Logger;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -14,7 +15,6 @@ import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Person;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.router.costcalculators.OnlyTimeDependentTravelDisutility;
 import org.matsim.core.router.util.TravelDisutility;
@@ -29,10 +29,12 @@ import routing.graph.*;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.IntStream;
 
 public class FeatureCalculator {
     private final static Logger log = Logger.getLogger(FeatureCalculator.class);
     private final static Person PERSON = PopulationUtils.getFactory().createPerson(Id.create("thePerson", Person.class));
+    private final static int BATCH_SIZE = 1000;
 
     public static void calculate(Network routingNetwork, SimpleFeatureCollection collection,
                                  List<LocationData> endDataList,
@@ -43,38 +45,223 @@ public class FeatureCalculator {
         int numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
         SpeedyGraph routingGraph = new SpeedyGraph(routingNetwork,travelTime,travelDisutility,PERSON,vehicle);
 
-        // Create set of cells
-        Set<SimpleFeature> features = new HashSet<>();
+        // Features in a fixed order, results in one flat array (feature x destination type)
+        List<SimpleFeature> features = new ArrayList<>();
         SimpleFeatureIterator iterator = collection.features();
         while(iterator.hasNext()) {
             features.add(iterator.next());
         }
         iterator.close();
-        log.info("Calculating accessibility for " + features.size() + " polygons.");
+        int featureCount = features.size();
+        int typeCount = endDataList.size();
+        double[] results = new double[featureCount * typeCount];
+        log.info("Calculating accessibility for " + featureCount + " features.");
 
-        // Assign nodes to polygon features (if nodeResults == null this means they are point features)
-        Map<SimpleFeature, IdSet<Node>> nodesPerZone = null;
+        // POLYGON features: average of node results (if nodeResults == null these are point features)
+        int[] pointFeatures;
         if (nodeResults != null) {
-            nodesPerZone = GisUtils.assignNodesToZones(features,nodeResults.keySet(),routingNetwork);
+            int[] nodesWithin = aggregatePolygons(features, nodeResults, typeCount, routingNetwork, results, numberOfThreads);
+            pointFeatures = IntStream.range(0, featureCount).filter(f -> nodesWithin[f] == 0).toArray();
+            for(int f = 0 ; f < featureCount ; f++) {
+                features.get(f).setAttribute("nodes_within", nodesWithin[f]);
+            }
+            log.info(pointFeatures.length + " polygons contain no nodes. Using their centroids.");
+        } else {
+            pointFeatures = IntStream.range(0, featureCount).toArray();
         }
 
-        // Precalculate marginal travel times
-        Map<Id<Link>,Double> marginalTravelTimes = NetworkUtils2.precalculateLinkMarginalDisutilities(routingNetwork, new OnlyTimeDependentTravelDisutility(travelTime), 0.,PERSON, vehicle);
+        // POINT features (and polygons without nodes): one tree per distinct snapped link and connector lengths
+        if(pointFeatures.length > 0) {
+            calculatePoints(features, pointFeatures, nodeResults != null, polygonRadius, endDataList, fwd, routingNetwork,
+                    routingGraph, travelTime, travelDisutility, vehicle, decayFunction, results, numberOfThreads);
+        }
+
+        // Normalise (primitive min/max pass per destination type) and set attributes
+        double[] min = new double[typeCount];
+        double[] max = new double[typeCount];
+        Arrays.fill(min, Double.POSITIVE_INFINITY);
+        Arrays.fill(max, Double.NEGATIVE_INFINITY);
+        for(int f = 0 ; f < featureCount ; f++) {
+            for(int j = 0 ; j < typeCount ; j++) {
+                double value = results[f * typeCount + j];
+                if(value < min[j]) min[j] = value;
+                if(value > max[j]) max[j] = value;
+            }
+        }
+        String[] accessibilityAttributes = new String[typeCount];
+        String[] normalisedAttributes = new String[typeCount];
+        for(int j = 0 ; j < typeCount ; j++) {
+            accessibilityAttributes[j] = "accessibility_" + endDataList.get(j).getDescription();
+            normalisedAttributes[j] = "normalised_" + endDataList.get(j).getDescription();
+        }
+        runInParallel(featureCount, numberOfThreads, "Setting attributes for feature ", f -> {
+            SimpleFeature feature = features.get(f);
+            for(int j = 0 ; j < typeCount ; j++) {
+                double accessibility = results[f * typeCount + j];
+                feature.setAttribute(accessibilityAttributes[j], accessibility);
+                feature.setAttribute(normalisedAttributes[j], (accessibility - min[j]) / (max[j] - min[j]));
+            }
+        });
+    }
+
+    // Averages node results over the nodes inside each polygon, using a CSR index (feature -> rows of a flat node result array).
+    // Returns the number of nodes within each feature.
+    private static int[] aggregatePolygons(List<SimpleFeature> features, Map<Id<Node>,double[]> nodeResults, int typeCount,
+                                           Network routingNetwork, double[] results, int numberOfThreads) {
+        int featureCount = features.size();
+        Map<SimpleFeature, IdSet<Node>> nodesPerZone = GisUtils.assignNodesToZones(features,nodeResults.keySet(),routingNetwork);
+
+        // Node results as one flat array, in the order of the CSR index
+        int[] offsets = new int[featureCount + 1];
+        for(int f = 0 ; f < featureCount ; f++) {
+            IdSet<Node> nodesInside = nodesPerZone.get(features.get(f));
+            offsets[f + 1] = offsets[f] + (nodesInside != null ? nodesInside.size() : 0);
+        }
+        double[] nodeValues = new double[offsets[featureCount] * typeCount];
+        for(int f = 0 ; f < featureCount ; f++) {
+            IdSet<Node> nodesInside = nodesPerZone.get(features.get(f));
+            if(nodesInside != null) {
+                int k = offsets[f];
+                for(Id<Node> nodeId : nodesInside) {
+                    System.arraycopy(nodeResults.get(nodeId), 0, nodeValues, k * typeCount, typeCount);
+                    k++;
+                }
+            }
+        }
+
+        int[] nodesWithin = new int[featureCount];
+        runInParallel(featureCount, numberOfThreads, "Aggregating polygon ", f -> {
+            int n = offsets[f + 1] - offsets[f];
+            nodesWithin[f] = n;
+            if(n > 0) {
+                for(int k = offsets[f] ; k < offsets[f + 1] ; k++) {
+                    for(int j = 0 ; j < typeCount ; j++) {
+                        results[f * typeCount + j] += nodeValues[k * typeCount + j];
+                    }
+                }
+                for(int j = 0 ; j < typeCount ; j++) {
+                    results[f * typeCount + j] /= n;
+                }
+            }
+        });
+        return nodesWithin;
+    }
+
+    private static void calculatePoints(List<SimpleFeature> features, int[] pointFeatures, boolean centroids, int zoneRadius,
+                                        List<LocationData> endDataList, Boolean fwd, Network routingNetwork, SpeedyGraph routingGraph,
+                                        TravelTime travelTime, TravelDisutility travelDisutility, Vehicle vehicle,
+                                        DecayFunction decayFunction, double[] results, int numberOfThreads) {
 
-        // Precalculate marginal disutilities
+        // Connector lengths are rounded to this bucket size (metres) so nearby points on the same link share a tree (0 = exact)
+        String bucketProperty = Resources.instance.getString(Properties.FEATURE_OFFSET_BUCKET);
+        double bucket = bucketProperty != null ? Double.parseDouble(bucketProperty) : 0.;
+
+        // Snap all points in parallel
+        List<Coord> coords = new ArrayList<>(pointFeatures.length);
+        for(int f : pointFeatures) {
+            SimpleFeature feature = features.get(f);
+            if(centroids) {
+                coords.add(new Coord((double) feature.getAttribute("centroid_x"), (double) feature.getAttribute("centroid_y")));
+            } else {
+                Point point = (Point) feature.getDefaultGeometry();
+                coords.add(new Coord(point.getX(), point.getY()));
+            }
+        }
+        Link[] links = new NetworkSnapper(routingNetwork).getNearestLinks(coords);
+
+        // Precalculate marginal travel times and disutilities
+        Map<Id<Link>,Double> marginalTravelTimes = NetworkUtils2.precalculateLinkMarginalDisutilities(routingNetwork, new OnlyTimeDependentTravelDisutility(travelTime), 0.,PERSON, vehicle);
         Map<Id<Link>,Double> marginalDisutilities = NetworkUtils2.precalculateLinkMarginalDisutilities(routingNetwork, travelDisutility, 0.,PERSON, vehicle);
 
-        // Create concurrent linked queue for multithreading
-        ConcurrentLinkedQueue<SimpleFeature> featuresQueue = new ConcurrentLinkedQueue<>(features);
+        // Group points by snapped link and (bucketed) connector lengths
+        Map<PointKey,Integer> groupIndex = new HashMap<>();
+        List<PointKey> groups = new ArrayList<>();
+        int[] groupOf = new int[pointFeatures.length];
+        for(int i = 0 ; i < pointFeatures.length ; i++) {
+            Link link = links[i];
+            double lengthA = Math.max(0.,CoordUtils.calcProjectedEuclideanDistance(coords.get(i),link.getFromNode().getCoord()) - zoneRadius);
+            double lengthB = Math.max(0.,CoordUtils.calcProjectedEuclideanDistance(coords.get(i),link.getToNode().getCoord()) - zoneRadius);
+            if(bucket > 0) {
+                lengthA = Math.round(lengthA / bucket) * bucket;
+                lengthB = Math.round(lengthB / bucket) * bucket;
+            }
+            PointKey key = new PointKey(link, lengthA, lengthB);
+            Integer g = groupIndex.get(key);
+            if(g == null) {
+                g = groups.size();
+                groupIndex.put(key, g);
+                groups.add(key);
+            }
+            groupOf[i] = g;
+        }
+        log.info(pointFeatures.length + " points share " + groups.size() + " distinct trees.");
 
-        // Prepare and start threads
-        Counter counter = new Counter("Calculating accessibility feature ", " / " + features.size());
+        // One tree per group
+        int typeCount = endDataList.size();
+        CompiledLocationData[] compiledEndData = endDataList.stream().map(CompiledLocationData::new).toArray(CompiledLocationData[]::new);
+        double[] groupResults = new double[groups.size() * typeCount];
+        ConcurrentLinkedQueue<Integer> groupQueue = new ConcurrentLinkedQueue<>();
+        for(int g = 0 ; g < groups.size() ; g++) {
+            groupQueue.add(g);
+        }
+        Counter counter = new Counter("Calculating accessibility point ", " / " + groups.size());
         Thread[] threads = new Thread[numberOfThreads];
-
         for (int i = 0; i < numberOfThreads; i++) {
-            FeatureWorker worker = new FeatureWorker(featuresQueue, polygonRadius, nodeResults,endDataList,fwd,nodesPerZone,
-                    routingNetwork,routingGraph, decayFunction,marginalTravelTimes,marginalDisutilities,counter);
-            threads[i] = new Thread(worker, "PolygonAccessibility-" + i);
+            PointWorker worker = new PointWorker(groupQueue, groups, compiledEndData, fwd, routingGraph, decayFunction,
+                    marginalTravelTimes, marginalDisutilities, groupResults, counter);
+            threads[i] = new Thread(worker, "PointAccessibility-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Copy group results and connector attributes to each feature
+        runInParallel(pointFeatures.length, numberOfThreads, "Assigning point ", i -> {
+            int f = pointFeatures[i];
+            int g = groupOf[i];
+            PointKey key = groups.get(g);
+            double marginalCost = marginalDisutilities.get(key.link.getId());
+            SimpleFeature feature = features.get(f);
+            feature.setAttribute("nodeA",key.link.getFromNode().getId().toString());
+            feature.setAttribute("costA",marginalCost * key.lengthA);
+            feature.setAttribute("nodeB",key.link.getToNode().getId().toString());
+            feature.setAttribute("costB",marginalCost * key.lengthB);
+            System.arraycopy(groupResults, g * typeCount, results, f * typeCount, typeCount);
+        });
+    }
+
+    private interface IndexTask {
+        void run(int i);
+    }
+
+    // Runs task(0..size-1) on worker threads, in batches
+    private static void runInParallel(int size, int numberOfThreads, String counterPrefix, IndexTask task) {
+        ConcurrentLinkedQueue<int[]> batches = new ConcurrentLinkedQueue<>();
+        for(int start = 0 ; start < size ; start += BATCH_SIZE) {
+            batches.add(new int[] {start, Math.min(size, start + BATCH_SIZE)});
+        }
+        Counter counter = new Counter(counterPrefix, " / " + size);
+        Thread[] threads = new Thread[numberOfThreads];
+        for(int i = 0 ; i < numberOfThreads ; i++) {
+            threads[i] = new Thread(() -> {
+                while(true) {
+                    int[] batch = batches.poll();
+                    if(batch == null) {
+                        return;
+                    }
+                    for(int j = batch[0] ; j < batch[1] ; j++) {
+                        task.run(j);
+                        counter.incCounter();
+                    }
+                }
+            }, "Feature-" + i);
             threads[i].start();
         }
 
@@ -86,152 +273,93 @@ public class FeatureCalculator {
                 e.printStackTrace();
             }
         }
+    }
+
+    private static final class PointKey {
+        final Link link;
+        final double lengthA;
+        final double lengthB;
 
-        // normalise results
-        for(LocationData endData : endDataList) {
-            String attributeName = "accessibility_" + endData.getDescription();
-            double min = features.stream().mapToDouble(c -> (double) c.getAttribute(attributeName)).min().orElseThrow();
-            double max = features.stream().mapToDouble(c -> (double) c.getAttribute(attributeName)).max().orElseThrow();
-            double diff = max - min;
-            for (SimpleFeature feature : features) {
-                double accessibility = (double) feature.getAttribute(attributeName);
-                feature.setAttribute("normalised_" + endData.getDescription(),(accessibility-min) / diff);
+        PointKey(Link link, double lengthA, double lengthB) {
+            this.link = link;
+            this.lengthA = lengthA;
+            this.lengthB = lengthB;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof PointKey)) {
+                return false;
             }
+            PointKey other = (PointKey) o;
+            return link == other.link && Double.compare(lengthA, other.lengthA) == 0 && Double.compare(lengthB, other.lengthB) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * link.getId().index() + Double.hashCode(lengthA)) + Double.hashCode(lengthB);
         }
     }
 
-    private static class FeatureWorker implements Runnable {
+    private static class PointWorker implements Runnable {
 
-        private final ConcurrentLinkedQueue<SimpleFeature> features;
-        private final int zoneRadius;
-        private final Map<Id<Node>, double[]> nodeResults;
-        private final List<LocationData> endDataList;
+        private final ConcurrentLinkedQueue<Integer> groupQueue;
+        private final List<PointKey> groups;
+        private final CompiledLocationData[] endDataList;
         private final Boolean fwd;
         private final Map<Id<Link>,Double> marginalTravelTimes;
         private final Map<Id<Link>,Double> marginalDisutilities;
-        private final Map<SimpleFeature, IdSet<Node>> nodesInPolygons;
-        private final Network network;
         private final SpeedyGraph graph;
+        private final double[] groupResults;
         private final Counter counter;
         private final DecayFunction decayFunction;
 
-        FeatureWorker(ConcurrentLinkedQueue<SimpleFeature> features, int zoneRadius, Map<Id<Node>, double[]> nodeResults,
-                      List<LocationData> endDataList, Boolean fwd,
-                      Map<SimpleFeature, IdSet<Node>> nodesInPolygons, Network network,
-                      SpeedyGraph graph, DecayFunction decayFunction,
-                      Map<Id<Link>,Double> marginalTravelTimes, Map<Id<Link>,Double> marginalDisutilities,
-                      Counter counter) {
-            this.features = features;
-            this.zoneRadius = zoneRadius;
-            this.nodeResults = nodeResults;
+        PointWorker(ConcurrentLinkedQueue<Integer> groupQueue, List<PointKey> groups, CompiledLocationData[] endDataList,
+                    Boolean fwd, SpeedyGraph graph, DecayFunction decayFunction,
+                    Map<Id<Link>,Double> marginalTravelTimes, Map<Id<Link>,Double> marginalDisutilities,
+                    double[] groupResults, Counter counter) {
+            this.groupQueue = groupQueue;
+            this.groups = groups;
             this.endDataList = endDataList;
             this.fwd = fwd;
-            this.nodesInPolygons = nodesInPolygons;
-            this.network = network;
             this.graph = graph;
             this.decayFunction = decayFunction;
             this.marginalTravelTimes = marginalTravelTimes;
             this.marginalDisutilities = marginalDisutilities;
+            this.groupResults = groupResults;
             this.counter = counter;
         }
 
         public void run() {
             PathTree lcpTree;
             if(fwd != null) {
-                log.info("Initialising 1-way least cost path tree in " + (fwd ? " FORWARD " : " REVERSE ") + " direction...");
                 lcpTree = new LcpTree1Way(this.graph,fwd);
             } else {
-                log.info("Initialising 2-way least cost path tree...");
                 lcpTree = new LcpTree2Way(this.graph);
             }
 
             StopCriterion stopCriterion = decayFunction.getTreeStopCriterion();
 
             while (true) {
-                SimpleFeature feature = this.features.poll();
-                if (feature == null) {
+                Integer g = this.groupQueue.poll();
+                if (g == null) {
                     return;
                 }
                 this.counter.incCounter();
 
-                // POLYGON Calculation
-                if (nodeResults != null) {
-                    IdSet<Node> nodesInside = nodesInPolygons.get(feature);
-
-                    // Store number of nodes in each cell as an attribute
-                    int nodesWithin = nodesInside != null ? nodesInside.size() : 0;
-                    feature.setAttribute("nodes_within",nodesWithin);
-
-                    // If no nodes fall inside zone, then use to & from node of nearest link
-                    if(nodesWithin > 0) {
-                        for(int i = 0 ; i < endDataList.size() ; i++) {
-                            int finalI = i;
-                            feature.setAttribute("accessibility_" + endDataList.get(finalI).getDescription(),
-                                    nodesInside.stream().mapToDouble(n -> nodeResults.get(n)[finalI]).average().orElseThrow());
-                        }
-                    } else {
-                        Coord centroid = new Coord((double) feature.getAttribute("centroid_x"), (double) feature.getAttribute("centroid_y"));
-                        calculateForPoint(feature, centroid, lcpTree, stopCriterion);
-                    }
-                } else {
-                    Point point = (Point) feature.getDefaultGeometry();
-                    Coord coord = new Coord(point.getX(), point.getY());
-                    calculateForPoint(feature, coord, lcpTree, stopCriterion);
-                }
-            }
-        }
-        void calculateForPoint(SimpleFeature feature, Coord coord, PathTree lcpTree, StopCriterion stopCriterion) {
-            Link link = NetworkUtils.getNearestLinkExactly(network, coord);
-            Id<Link> linkId = link.getId();
-            double connectorMarginalCost = marginalDisutilities.get(linkId);
-            double connectorMarginalTime = marginalTravelTimes.get(linkId);
-
-            Node nodeA = link.getFromNode();
-            Node nodeB = link.getToNode();
-
-            double connectorLengthA = Math.max(0.,CoordUtils.calcProjectedEuclideanDistance(coord,nodeA.getCoord()) - zoneRadius);
-            double connectorLengthB = Math.max(0.,CoordUtils.calcProjectedEuclideanDistance(coord,nodeB.getCoord()) - zoneRadius);
-
-            double costA = connectorMarginalCost * connectorLengthA;
-            double costB = connectorMarginalCost * connectorLengthB;
-
-            double timeA = connectorMarginalTime * connectorLengthA;
-            double timeB = connectorMarginalTime * connectorLengthB;
-
-            feature.setAttribute("nodeA",nodeA.getId().toString());
-            feature.setAttribute("costA",costA);
-            feature.setAttribute("nodeB",nodeB.getId().toString());
-            feature.setAttribute("costB",costB);
-
-            lcpTree.calculate(
-                    nodeA.getId().index(),costA,timeA,connectorLengthA,
-                    nodeB.getId().index(),costB,timeB,connectorLengthB,
-                    0.,stopCriterion);
-
-            for(LocationData endData: endDataList) {
-                Map<String, IdSet<Node>> endNodes = endData.getNodes();
-                Map<String, Double> endWeights = endData.getWeights();
-
-                double accessibility = 0.;
-                for (Map.Entry<String, Double> endWeight : endWeights.entrySet()) {
-                    double cost = Double.MAX_VALUE;
-                    for (Id<Node> toNodeId : endNodes.get(endWeight.getKey())) {
-                        int toNodeIndex = toNodeId.index();
-                        double nodeDist = lcpTree.getDistance(toNodeIndex);
-                        double nodeTime = lcpTree.getTime(toNodeIndex).orElse(Double.POSITIVE_INFINITY);
-                        if(decayFunction.beyondCutoff(nodeDist, nodeTime)) {
-                            continue;
-                        }
-                        double nodeCost = lcpTree.getCost(toNodeIndex);
-                        if (nodeCost < cost) {
-                            cost = nodeCost;
-                        }
-                    }
-                    if(cost != Double.MAX_VALUE) {
-                        accessibility += decayFunction.getDecay(cost) * endWeight.getValue();
-                    }
+                PointKey key = groups.get(g);
+                Id<Link> linkId = key.link.getId();
+                double connectorMarginalCost = marginalDisutilities.get(linkId);
+                double connectorMarginalTime = marginalTravelTimes.get(linkId);
+
+                lcpTree.calculate(
+                        key.link.getFromNode().getId().index(),connectorMarginalCost * key.lengthA,connectorMarginalTime * key.lengthA,key.lengthA,
+                        key.link.getToNode().getId().index(),connectorMarginalCost * key.lengthB,connectorMarginalTime * key.lengthB,key.lengthB,
+                        0.,stopCriterion);
+
+                for(int j = 0 ; j < endDataList.length ; j++) {
+                    groupResults[g * endDataList.length + j] = NodeCalculator.accumulate(lcpTree, endDataList[j], decayFunction);
                 }
-                feature.setAttribute("accessibility_" + endData.getDescription(),accessibility);
             }
         }
     }
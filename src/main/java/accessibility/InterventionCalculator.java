@@ -6,7 +6,6 @@ package accessibility;
 
 import accessibility.decay.DecayFunction;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.IdMap;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.core.router.util.TravelDisutility;
@@ -15,6 +14,7 @@ import org.matsim.core.utils.misc.Counter;
 import org.matsim.vehicles.Vehicle;
 import routing.graph.*;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -28,39 +28,45 @@ public final class InterventionCalculator extends NodeCalculator {
     }
 
 
-    public Map<Id<Node>,double[]> calculateReverse(List<Id<Node>> startNodes, double[] startWeights, Set<Id<Node>> endNodes) {
+    // Supply increase at each end node from new destinations at the start nodes, as delta[start][end] with ends indexed
+    // by position in endNodes. One tree per start node, calculated in parallel.
+    public double[][] calculateReverse(List<Id<Node>> startNodes, double[] startWeights, List<Id<Node>> endNodes) {
 
-        PathTree lcpTree = new LcpTree2Way(routingGraph);
-        StopCriterion stopCriterion = decayFunction.getTreeStopCriterion();
+        double[][] results = new double[startNodes.size()][endNodes.size()];
+        int[] endNodeIndices = endNodes.stream().mapToInt(Id::index).toArray();
 
-        IdMap<Node,double[]> results = new IdMap<>(Node.class);
-        for(Id<Node> nodeId : endNodes) {
-            results.put(nodeId,new double[startNodes.size()]);
+        ConcurrentLinkedQueue<Integer> startQueue = new ConcurrentLinkedQueue<>();
+        for(int i = 0 ; i < startNodes.size() ; i++) {
+            startQueue.add(i);
         }
 
-        for(int i = 0 ; i < startNodes.size() ; i++) {
-            lcpTree.calculate(startNodes.get(i).index(),0.,stopCriterion);
-            double wt = startWeights[i];
-            for(Id<Node> node : endNodes) {
-                int toNodeIndex = node.index();
-                double dist = lcpTree.getDistance(toNodeIndex);
-                double time = lcpTree.getTime(toNodeIndex).orElse(Double.POSITIVE_INFINITY);
-                if(decayFunction.beyondCutoff(dist,time)) {
-                    results.get(node)[i] = 0;
-                } else {
-                    double cost = lcpTree.getCost(toNodeIndex);
-                    results.get(node)[i] = decayFunction.getDecay(cost) * wt;
-                }
+        int threadCount = Math.min(numberOfThreads, startNodes.size());
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            ReverseWorker worker = new ReverseWorker(startQueue, startNodes, startWeights, endNodeIndices, routingGraph, decayFunction, results);
+            threads[i] = new Thread(worker, "Reverse-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
             }
         }
 
         return results;
     }
 
-    public Map<Id<Node>,double[]> calculateDemand(Set<Id<Node>> testNodes, Map<Id<Node>,Double> population, Map<Id<Node>,double[]> accessibility, double[] newWeights) {
+    // Demand for each test node. Population and supply[type] are indexed by position in origins.
+    public Map<Id<Node>,double[]> calculateDemand(Collection<Id<Node>> testNodes, List<Id<Node>> origins, double[] population,
+                                                  double[][] supply, double[] newWeights) {
 
         // prepare calculation
         ConcurrentHashMap<Id<Node>,double[]> results = new ConcurrentHashMap<>(testNodes.size());
+        int[] originNodeIndices = origins.stream().mapToInt(Id::index).toArray();
 
         // do calculation
         ConcurrentLinkedQueue<Id<Node>> testNodesQueue = new ConcurrentLinkedQueue<>(testNodes);
@@ -68,7 +74,7 @@ public final class InterventionCalculator extends NodeCalculator {
         Counter counter = new Counter("Calculating accessibility node ", " / " + testNodes.size());
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            NodeWorker worker = new NodeWorker(testNodesQueue, population, accessibility, newWeights, routingGraph, decayFunction, results, counter);
+            NodeWorker worker = new NodeWorker(testNodesQueue, originNodeIndices, population, supply, newWeights, routingGraph, decayFunction, results, counter);
             threads[i] = new Thread(worker, "Accessibility-" + i);
             threads[i].start();
         }
@@ -85,10 +91,175 @@ public final class InterventionCalculator extends NodeCalculator {
         return Collections.unmodifiableMap(new HashMap<>(results));
     }
 
+    // One tree per candidate, keeping the decay to every origin within the cutoff. If filePath is given the matrix is memory-mapped.
+    DecayMatrix calculateDecayMatrix(List<Id<Node>> candidates, List<Id<Node>> origins, String filePath) throws IOException {
+
+        DecayMatrix matrix = new DecayMatrix(candidates, origins.size(), filePath);
+        int[] originNodeIndices = origins.stream().mapToInt(Id::index).toArray();
+
+        ConcurrentLinkedQueue<Integer> rowQueue = new ConcurrentLinkedQueue<>();
+        for(int i = 0 ; i < candidates.size() ; i++) {
+            rowQueue.add(i);
+        }
+
+        Counter counter = new Counter("Calculating decay matrix row ", " / " + candidates.size());
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            MatrixWorker worker = new MatrixWorker(rowQueue, candidates, originNodeIndices, routingGraph, decayFunction, matrix, counter);
+            threads[i] = new Thread(worker, "DecayMatrix-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        matrix.finish();
+        return matrix;
+    }
+
+    // Demand for each test node from the decay matrix. Population and supply[type] are indexed by compact origin index.
+    Map<Id<Node>,double[]> calculateDemand(DecayMatrix matrix, Collection<Id<Node>> testNodes, double[] population, double[][] supply, double[] newWeights) {
+        ConcurrentHashMap<Id<Node>,double[]> results = new ConcurrentHashMap<>(testNodes.size());
+        ConcurrentLinkedQueue<Id<Node>> testNodesQueue = new ConcurrentLinkedQueue<>(testNodes);
+
+        int threadCount = Math.min(numberOfThreads, testNodes.size());
+        Thread[] threads = new Thread[threadCount];
+        for (int i = 0; i < threadCount; i++) {
+            threads[i] = new Thread(() -> {
+                while (true) {
+                    Id<Node> testNodeId = testNodesQueue.poll();
+                    if (testNodeId == null) {
+                        return;
+                    }
+                    results.put(testNodeId, matrix.demand(matrix.getRow(testNodeId), population, supply, newWeights));
+                }
+            }, "MatrixDemand-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        return Collections.unmodifiableMap(new HashMap<>(results));
+    }
+
+    private static class MatrixWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> rows;
+        private final List<Id<Node>> candidates;
+        private final int[] originNodeIndices;
+        private final SpeedyGraph graph;
+        private final DecayFunction decayFunction;
+        private final DecayMatrix matrix;
+        private final Counter counter;
+
+        MatrixWorker(ConcurrentLinkedQueue<Integer> rows, List<Id<Node>> candidates, int[] originNodeIndices,
+                     SpeedyGraph graph, DecayFunction decayFunction, DecayMatrix matrix, Counter counter) {
+            this.rows = rows;
+            this.candidates = candidates;
+            this.originNodeIndices = originNodeIndices;
+            this.graph = graph;
+            this.decayFunction = decayFunction;
+            this.matrix = matrix;
+            this.counter = counter;
+        }
+
+        public void run() {
+            PathTree lcpTree = new LcpTree2Way(graph);
+            StopCriterion stopCriterion = decayFunction.getTreeStopCriterion();
+            int[] cols = new int[originNodeIndices.length];
+            double[] values = new double[originNodeIndices.length];
+
+            while (true) {
+                Integer row = this.rows.poll();
+                if (row == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                lcpTree.calculate(candidates.get(row).index(),0.,stopCriterion);
+
+                // Zero decay adds nothing to demand or supply, so it is not stored
+                int n = 0;
+                for (int o = 0 ; o < originNodeIndices.length ; o++) {
+                    int nodeIdx = originNodeIndices[o];
+                    double dist = lcpTree.getDistance(nodeIdx);
+                    double time = lcpTree.getTime(nodeIdx).orElse(Double.POSITIVE_INFINITY);
+                    if(!decayFunction.beyondCutoff(dist,time)) {
+                        double decay = decayFunction.getDecay(lcpTree.getCost(nodeIdx));
+                        if(decay > 0) {
+                            cols[n] = o;
+                            values[n] = decay;
+                            n++;
+                        }
+                    }
+                }
+                matrix.setRow(row, cols, values, n);
+            }
+        }
+    }
+
+    private static class ReverseWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> starts;
+        private final List<Id<Node>> startNodes;
+        private final double[] startWeights;
+        private final int[] endNodeIndices;
+        private final SpeedyGraph graph;
+        private final DecayFunction decayFunction;
+        private final double[][] results;
+
+        ReverseWorker(ConcurrentLinkedQueue<Integer> starts, List<Id<Node>> startNodes, double[] startWeights, int[] endNodeIndices,
+                      SpeedyGraph graph, DecayFunction decayFunction, double[][] results) {
+            this.starts = starts;
+            this.startNodes = startNodes;
+            this.startWeights = startWeights;
+            this.endNodeIndices = endNodeIndices;
+            this.graph = graph;
+            this.decayFunction = decayFunction;
+            this.results = results;
+        }
+
+        public void run() {
+            PathTree lcpTree = new LcpTree2Way(graph);
+            StopCriterion stopCriterion = decayFunction.getTreeStopCriterion();
+
+            while (true) {
+                Integer i = this.starts.poll();
+                if (i == null) {
+                    return;
+                }
+
+                lcpTree.calculate(startNodes.get(i).index(),0.,stopCriterion);
+                double wt = startWeights[i];
+                double[] result = results[i];
+                for(int e = 0 ; e < endNodeIndices.length ; e++) {
+                    int toNodeIndex = endNodeIndices[e];
+                    double dist = lcpTree.getDistance(toNodeIndex);
+                    double time = lcpTree.getTime(toNodeIndex).orElse(Double.POSITIVE_INFINITY);
+                    if(!decayFunction.beyondCutoff(dist,time)) {
+                        result[e] = decayFunction.getDecay(lcpTree.getCost(toNodeIndex)) * wt;
+                    }
+                }
+            }
+        }
+    }
+
     private static class NodeWorker implements Runnable {
         private final ConcurrentLinkedQueue<Id<Node>> testNodes;
-        Map<Id<Node>,Double> population;
-        private final Map<Id<Node>,double[]> accessibility;
+        private final int[] originNodeIndices;
+        private final double[] population;
+        private final double[][] supply;
         private final double[] newWeights;
         private final int destTypeCount;
         private final SpeedyGraph graph;
@@ -96,18 +267,17 @@ public final class InterventionCalculator extends NodeCalculator {
         private final DecayFunction decayFunction;
         private final Counter counter;
 
-        NodeWorker(ConcurrentLinkedQueue<Id<Node>> testNodes,
-                   Map<Id<Node>,Double> population,
-                   Map<Id<Node>,double[]> accessibility,
-                   double[] newWeights,
+        NodeWorker(ConcurrentLinkedQueue<Id<Node>> testNodes, int[] originNodeIndices,
+                   double[] population, double[][] supply, double[] newWeights,
                    SpeedyGraph graph, DecayFunction decayFunction,
                    ConcurrentHashMap<Id<Node>,double[]> results, Counter counter) {
             this.testNodes = testNodes;
+            this.originNodeIndices = originNodeIndices;
             this.population = population;
-            this.accessibility = accessibility;
+            this.supply = supply;
             this.newWeights = newWeights;
             this.graph = graph;
-            this.destTypeCount = accessibility.values().iterator().next().length;
+            this.destTypeCount = newWeights.length;
             this.decayFunction = decayFunction;
             this.accessibilityData = results;
             this.counter = counter;
@@ -127,17 +297,15 @@ public final class InterventionCalculator extends NodeCalculator {
                 lcpTree.calculate(testNodeId.index(),0.,stopCriterion);
 
                 double[] demand = new double[destTypeCount];
-                for (Map.Entry<Id<Node>, double[]> e : this.accessibility.entrySet()) {
-                    Id<Node> nodeId = e.getKey();
-                    int nodeIdx = nodeId.index();
-                    double[] access = e.getValue();
+                for (int o = 0 ; o < originNodeIndices.length ; o++) {
+                    int nodeIdx = originNodeIndices[o];
                     double dist = lcpTree.getDistance(nodeIdx);
                     double time = lcpTree.getTime(nodeIdx).orElse(Double.POSITIVE_INFINITY);
                     if(!decayFunction.beyondCutoff(dist,time)) {
                         double decay = decayFunction.getDecay(lcpTree.getCost(nodeIdx));
                         for(int i = 0 ; i < destTypeCount ; i++) {
                             double newAccess = newWeights[i] * decay;
-                            demand[i] += population.get(nodeId) * newAccess / (newAccess + access[i]);
+                            demand[i] += population[o] * newAccess / (newAccess + supply[i][o]);
                         }
                     }
                 }
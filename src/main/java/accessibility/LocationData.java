@@ -1,5 +1,6 @@
 package accessibility;
 
+import network.NetworkSnapper;
 import org.apache.log4j.Logger;
 import org.locationtech.jts.geom.Coordinate;
 import org.locationtech.jts.geom.Geometry;
@@ -8,9 +9,9 @@ import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.IdMap;
 import org.matsim.api.core.v01.IdSet;
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.utils.io.IOUtils;
 import org.matsim.core.utils.misc.Counter;
 
@@ -104,10 +105,20 @@ public class LocationData {
     }
 
     public void estimateNetworkNodes(Network xy2lNetwork) {
+        estimateNetworkNodes(new NetworkSnapper(xy2lNetwork));
+    }
+
+    // Snaps all coordinates in one parallel batch, then groups the to-nodes by location
+    public void estimateNetworkNodes(NetworkSnapper snapper) {
+        List<Coord> allCoords = new ArrayList<>();
+        coords.values().forEach(allCoords::addAll);
+        Link[] links = snapper.getNearestLinks(allCoords);
+
+        int i = 0;
         for (Map.Entry<String, List<Coord>> e : coords.entrySet()) {
             IdSet<Node> nodeIds = new IdSet<>(Node.class);
-            for (Coord coord : e.getValue()) {
-                nodeIds.add(NetworkUtils.getNearestLinkExactly(xy2lNetwork, coord).getToNode().getId());
+            for (int j = 0 ; j < e.getValue().size() ; j++) {
+                nodeIds.add(links[i++].getToNode().getId());
             }
             nodes.put(e.getKey(), nodeIds);
         }
@@ -0,0 +1,103 @@
+package accessibility;
+
+import accessibility.resources.AccessibilityProperties;
+import accessibility.resources.AccessibilityResources;
+import gis.GpkgReader;
+import io.RowSpillFile;
+import io.Shard;
+import network.NetworkUtils2;
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Geometry;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import resources.Properties;
+import resources.Resources;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+
+// Merges node accessibility results of a sharded RunAnalysis (shard.count / shard.index) and checks every start node is covered.
+// Writes the merged spill file to the checkpoint.nodes path, so re-running RunAnalysis with checkpoint.resume=true
+// (and no shard) produces the feature outputs without recalculating any node.
+
+public class MergeNodeShards {
+
+    private final static Logger log = Logger.getLogger(MergeNodeShards.class);
+    private final static char SEP = ',';
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2 || args.length > 3) {
+            throw new RuntimeException("Program requires 2 or 3 arguments: \n" +
+                    "(0) General Properties file (as used for the shard runs)\n" +
+                    "(1) Accessibility properties file \n" +
+                    "(2) OPTIONAL: Output nodes CSV file \n");
+        }
+
+        Resources.initializeResources(args[0]);
+        AccessibilityResources.initializeResources(args[1]);
+        int shardCount = Resources.instance.getInt(Properties.SHARD_COUNT);
+        String checkpointFilename = AccessibilityResources.instance.getString(AccessibilityProperties.CHECKPOINT_NODES);
+        String outputNodesFilename = AccessibilityResources.instance.getString(AccessibilityProperties.OUTPUT_NODES);
+        List<String> endLocationsDescriptions = AccessibilityResources.instance.getStringList(AccessibilityProperties.END_DESCRIPTION);
+        int endLocationsSize = endLocationsDescriptions.size();
+
+        // Start nodes, as selected in RunAnalysis
+        Network fullNetwork = NetworkUtils2.readFullNetwork();
+        Network network = NetworkUtils2.extractModeSpecificNetwork(fullNetwork,AccessibilityResources.instance.getMode());
+        Geometry regionBoundary = GpkgReader.readRegionBoundary();
+        Set<Id<Node>> startNodes = NetworkUtils2.getNodesInBoundary(network,regionBoundary);
+
+        // Read shards
+        Map<Id<Node>,double[]> nodeResults = new HashMap<>(startNodes.size());
+        for(int k = 0 ; k < shardCount ; k++) {
+            String filePath = checkpointFilename + Shard.getSuffix(k,shardCount);
+            Map<Integer,double[]> rows = RowSpillFile.read(filePath,"accessibility",endLocationsSize);
+            for(Map.Entry<Integer,double[]> e : rows.entrySet()) {
+                if(nodeResults.put(Id.createNodeId(e.getKey()),e.getValue()) != null) {
+                    throw new RuntimeException("Node " + e.getKey() + " found in more than one shard!");
+                }
+            }
+            log.info("Read " + rows.size() + " nodes from " + filePath);
+        }
+
+        // Validate coverage
+        int missing = 0;
+        for(Id<Node> nodeId : startNodes) {
+            if(!nodeResults.containsKey(nodeId)) {
+                missing++;
+            }
+        }
+        if(missing > 0) {
+            throw new RuntimeException(missing + " of " + startNodes.size() + " start nodes missing from shards. Re-run the incomplete shards with " + Properties.CHECKPOINT_RESUME + "=true.");
+        }
+        nodeResults.keySet().retainAll(startNodes);
+
+        // Merged spill file (used by RunAnalysis when resuming)
+        try (RowSpillFile merged = new RowSpillFile(checkpointFilename,"accessibility",endLocationsSize,false)) {
+            for(Map.Entry<Id<Node>,double[]> e : nodeResults.entrySet()) {
+                merged.write(Integer.parseInt(e.getKey().toString()),e.getValue());
+            }
+        }
+
+        if(outputNodesFilename != null) {
+            AccessibilityWriter.writeNodesAsGpkg(nodeResults,endLocationsDescriptions,fullNetwork,outputNodesFilename);
+        }
+
+        if(args.length == 3) {
+            try (PrintWriter out = new PrintWriter(new FileWriter(args[2]))) {
+                out.println("node" + SEP + String.join(String.valueOf(SEP),endLocationsDescriptions));
+                for(Map.Entry<Id<Node>,double[]> e : nodeResults.entrySet()) {
+                    StringBuilder line = new StringBuilder(e.getKey().toString());
+                    for(double value : e.getValue()) {
+                        line.append(SEP).append(value);
+                    }
+                    out.println(line);
+                }
+            }
+            log.info("Wrote merged node results to " + args[2]);
+        }
+    }
+}
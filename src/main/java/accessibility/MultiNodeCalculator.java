@@ -0,0 +1,165 @@
+package accessibility;
+
+import accessibility.decay.DecayFunction;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.core.utils.misc.Counter;
+import org.matsim.vehicles.Vehicle;
+import resources.Properties;
+import resources.Resources;
+import routing.graph.*;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Node accessibility for several specifications (decay function + destination sets) sharing one routing graph.
+// Each start node's tree is computed once per distinct cutoff and evaluated for every specification with that cutoff,
+// so each specification sees exactly the truncated tree (including its frontier) that RunAnalysis would compute.
+
+public class MultiNodeCalculator {
+    private final static Person PERSON = PopulationUtils.getFactory().createPerson(Id.create("thePerson", Person.class));
+    private final static Logger log = Logger.getLogger(MultiNodeCalculator.class);
+    private final static int CHECK_NODES = 20;
+    private final SpeedyGraph routingGraph;
+    private final int numberOfThreads;
+
+    public MultiNodeCalculator(Network routingNetwork, TravelTime travelTime, TravelDisutility travelDisutility, Vehicle vehicle) {
+        this.routingGraph = new SpeedyGraph(routingNetwork,travelTime,travelDisutility,PERSON,vehicle);
+        this.numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
+    }
+
+    // Returns one result map per specification, with the same order as the inputs
+    public List<Map<Id<Node>,double[]>> calculate(Set<Id<Node>> startNodes, List<DecayFunction> decayFunctions,
+                                                  List<List<LocationData>> endData, Boolean fwd) {
+
+        int specCount = decayFunctions.size();
+        CompiledLocationData[][] compiledEndData = new CompiledLocationData[specCount][];
+        List<ConcurrentHashMap<Id<Node>,double[]>> results = new ArrayList<>(specCount);
+        for(int s = 0 ; s < specCount ; s++) {
+            compiledEndData[s] = endData.get(s).stream().map(CompiledLocationData::new).toArray(CompiledLocationData[]::new);
+            results.add(new ConcurrentHashMap<>(startNodes.size()));
+        }
+        DecayFunction[] decay = decayFunctions.toArray(new DecayFunction[0]);
+
+        // Specifications grouped by cutoff (time, distance), one tree per group
+        Map<String,List<Integer>> cutoffGroups = new LinkedHashMap<>();
+        for(int s = 0 ; s < specCount ; s++) {
+            double[] parameters = decay[s].getParameters();
+            cutoffGroups.computeIfAbsent(parameters[0] + "|" + parameters[1], k -> new ArrayList<>()).add(s);
+        }
+        int[][] groupSpecs = cutoffGroups.values().stream().map(g -> g.stream().mapToInt(Integer::intValue).toArray()).toArray(int[][]::new);
+        log.info(specCount + " specifications need " + groupSpecs.length + " trees per start node.");
+
+        // do calculation
+        ConcurrentLinkedQueue<Id<Node>> startNodesQueue = new ConcurrentLinkedQueue<>(startNodes);
+
+        Counter counter = new Counter("Calculating accessibility (" + specCount + " specifications) node ", " / " + startNodes.size());
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            MultiNodeWorker worker = new MultiNodeWorker(startNodesQueue, compiledEndData, decay, groupSpecs, fwd, routingGraph, results, counter);
+            threads[i] = new Thread(worker, "Accessibility-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        check(results, compiledEndData, decay, fwd);
+
+        List<Map<Id<Node>,double[]>> output = new ArrayList<>(specCount);
+        for(ConcurrentHashMap<Id<Node>,double[]> result : results) {
+            output.add(Collections.unmodifiableMap(new HashMap<>(result)));
+        }
+        return output;
+    }
+
+    // Recalculates a sample of start nodes with one tree per specification (as in RunAnalysis) and fails on any difference
+    private void check(List<ConcurrentHashMap<Id<Node>,double[]>> results, CompiledLocationData[][] endData,
+                       DecayFunction[] decayFunctions, Boolean fwd) {
+        PathTree lcpTree = fwd != null ? new LcpTree1Way(routingGraph, fwd) : new LcpTree2Way(routingGraph);
+        int checked = 0;
+        for(Id<Node> nodeId : results.get(0).keySet()) {
+            if(checked == CHECK_NODES) {
+                break;
+            }
+            checked++;
+            for(int s = 0 ; s < endData.length ; s++) {
+                lcpTree.calculate(nodeId.index(), 0., decayFunctions[s].getTreeStopCriterion());
+                double[] actual = results.get(s).get(nodeId);
+                for(int i = 0 ; i < endData[s].length ; i++) {
+                    double expected = NodeCalculator.accumulate(lcpTree, endData[s][i], decayFunctions[s]);
+                    if(expected != actual[i]) {
+                        throw new RuntimeException("Shared tree accessibility for node " + nodeId + ", specification " + s +
+                                ", destination set " + i + " is " + actual[i] + " but a single tree gives " + expected);
+                    }
+                }
+            }
+        }
+        log.info("Checked " + checked + " start nodes against single-specification trees.");
+    }
+
+    private static class MultiNodeWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Id<Node>> startNodes;
+        private final CompiledLocationData[][] endData;
+        private final DecayFunction[] decayFunctions;
+        private final int[][] groupSpecs;
+        private final Boolean fwd;
+        private final SpeedyGraph graph;
+        private final List<ConcurrentHashMap<Id<Node>,double[]>> results;
+        private final Counter counter;
+
+        MultiNodeWorker(ConcurrentLinkedQueue<Id<Node>> startNodes, CompiledLocationData[][] endData,
+                        DecayFunction[] decayFunctions, int[][] groupSpecs, Boolean fwd, SpeedyGraph graph,
+                        List<ConcurrentHashMap<Id<Node>,double[]>> results, Counter counter) {
+            this.startNodes = startNodes;
+            this.endData = endData;
+            this.decayFunctions = decayFunctions;
+            this.groupSpecs = groupSpecs;
+            this.fwd = fwd;
+            this.graph = graph;
+            this.results = results;
+            this.counter = counter;
+        }
+
+        public void run() {
+            PathTree lcpTree;
+            if(fwd != null) {
+                lcpTree = new LcpTree1Way(this.graph,fwd);
+            } else {
+                lcpTree = new LcpTree2Way(this.graph);
+            }
+
+            while (true) {
+                Id<Node> fromNodeId = this.startNodes.poll();
+                if (fromNodeId == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                for (int[] specs : groupSpecs) {
+                    lcpTree.calculate(fromNodeId.index(), 0., decayFunctions[specs[0]].getTreeStopCriterion());
+                    for (int s : specs) {
+                        double[] accessibilities = new double[endData[s].length];
+                        for (int i = 0; i < endData[s].length; i++) {
+                            accessibilities[i] = NodeCalculator.accumulate(lcpTree, endData[s][i], decayFunctions[s]);
+                        }
+                        results.get(s).put(fromNodeId, accessibilities);
+                    }
+                }
+            }
+        }
+    }
+}
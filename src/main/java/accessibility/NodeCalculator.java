@@ -5,8 +5,10 @@
 package accessibility;
 
 import accessibility.decay.DecayFunction;
+import io.RowSpillFile;
+import io.Shard;
+import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Id;
-import org.matsim.api.core.v01.IdSet;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Person;
@@ -19,6 +21,7 @@ import resources.Properties;
 import resources.Resources;
 import routing.graph.*;
 
+import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -30,12 +33,55 @@ public class NodeCalculator {
     final SpeedyGraph routingGraph;
     final DecayFunction decayFunction;
     final int numberOfThreads;
+    private final Network routingNetwork;
+    private final static Logger log = Logger.getLogger(NodeCalculator.class);
+    private final static int METHOD_CHECK_NODES = 20;
+    private final static int METHOD_CHECK_DESTINATIONS = 20;
+    private final static double METHOD_CHECK_TOLERANCE = 1e-9;
+    private final static double SCATTER_OVERHEAD = 1.5;
+    private String spillFilePath;
+    private boolean resume;
+    private Shard shard;
+    private Method method = Method.ORIGIN;
+    private String footprintFilePath;
+    private String cacheDir;
+
+    // Origin-centric: one tree per start node. Destination-centric: one reverse tree per destination access node (1-way
+    // trees only). Auto: whichever is estimated to be cheaper. Destination-centric is checked against origin-centric trees
+    // for a sample of start nodes and destinations before the run, falling back to origin-centric if they differ.
+    public enum Method { ORIGIN, DESTINATION, AUTO }
 
     public NodeCalculator(Network routingNetwork, TravelTime travelTime, TravelDisutility travelDisutility,
                           Vehicle vehicle, DecayFunction decayFunction) {
         this.routingGraph = new SpeedyGraph(routingNetwork,travelTime,travelDisutility,PERSON,vehicle);
         this.decayFunction = decayFunction;
         this.numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
+        this.routingNetwork = routingNetwork;
+    }
+
+    // Persist completed node results to a spill file (node IDs must be integers); if resume is true, skip nodes already in it
+    public void setCheckpoint(String spillFilePath, boolean resume) {
+        this.spillFilePath = spillFilePath;
+        this.resume = resume;
+    }
+
+    public void setMethod(Method method) {
+        this.method = method;
+    }
+
+    // Record the nodes settled by each start node's tree, for incremental recalculation after network edits (see RunIncrementalAnalysis)
+    public void setFootprint(String footprintFilePath) {
+        this.footprintFilePath = footprintFilePath;
+    }
+
+    // Reuse results cached for the same graph, destinations and decay function, and add newly calculated nodes to the cache
+    public void setCache(String cacheDir) {
+        this.cacheDir = cacheDir;
+    }
+
+    // Only calculate this shard's start nodes (results are partial, see MergeNodeShards)
+    public void setShard(Shard shard) {
+        this.shard = shard;
     }
 
     public Map<Id<Node>,double[]> fill(Set<Id<Node>> startNodes, int arraySize) {
@@ -48,18 +94,118 @@ public class NodeCalculator {
         return result;
     }
 
-    public Map<Id<Node>,double[]> calculate(Set<Id<Node>> startNodes, List<LocationData> endData, Boolean fwd) {
+    public Map<Id<Node>,double[]> calculate(Set<Id<Node>> allStartNodes, List<LocationData> endData, Boolean fwd) {
 
         // prepare calculation
+        Set<Id<Node>> startNodes = shard != null ? new HashSet<>(shard.select(allStartNodes, Comparator.comparing(Id::toString))) : allStartNodes;
         ConcurrentHashMap<Id<Node>,double[]> accessibilityResults = new ConcurrentHashMap<>(startNodes.size());
 
-        // do calculation
-        ConcurrentLinkedQueue<Id<Node>> startNodesQueue = new ConcurrentLinkedQueue<>(startNodes);
+        // Flat destination arrays for the inner loop
+        CompiledLocationData[] compiledEndData = endData.stream().map(CompiledLocationData::new).toArray(CompiledLocationData[]::new);
+        boolean destinationCentric = useDestinationCentric(startNodes, compiledEndData, fwd, spillFilePath != null || footprintFilePath != null);
+
+        // Cached results (nodes already in the cache are skipped)
+        ResultCache cache = null;
+        if(cacheDir != null) {
+            if(footprintFilePath != null) {
+                throw new RuntimeException("Tree footprints can't be written when using the result cache.");
+            }
+            cache = new ResultCache(cacheDir, routingGraph, endData, decayFunction, fwd, destinationCentric ? Method.DESTINATION : Method.ORIGIN);
+            Map<Integer,double[]> cachedRows;
+            try {
+                cachedRows = cache.read();
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to read result cache " + cache.getFilePath(), e);
+            }
+            for(Id<Node> nodeId : startNodes) {
+                double[] row = cachedRows.get(Integer.parseInt(nodeId.toString()));
+                if(row != null) {
+                    accessibilityResults.put(nodeId, row);
+                }
+            }
+            log.info(accessibilityResults.size() + " of " + startNodes.size() + " start nodes found in cache.");
+        }
+
+        // Checkpoint (nodes already in the spill file are skipped)
+        RowSpillFile spillFile = null;
+        if(spillFilePath != null) {
+            try {
+                spillFile = new RowSpillFile(spillFilePath, "accessibility", endData.size(), resume);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open spill file " + spillFilePath, e);
+            }
+            for(Map.Entry<Integer,double[]> e : spillFile.getCompletedRows().entrySet()) {
+                Id<Node> nodeId = Id.createNodeId(e.getKey());
+                if(startNodes.contains(nodeId)) {
+                    accessibilityResults.putIfAbsent(nodeId, e.getValue());
+                }
+            }
+
+            // Cached rows are copied so that the spill file stays complete (e.g. for MergeNodeShards)
+            for(Map.Entry<Id<Node>,double[]> e : accessibilityResults.entrySet()) {
+                int key = Integer.parseInt(e.getKey().toString());
+                if(!spillFile.getCompletedRows().containsKey(key)) {
+                    spillFile.write(key, e.getValue());
+                }
+            }
+        }
+        ConcurrentLinkedQueue<Id<Node>> startNodesQueue = new ConcurrentLinkedQueue<>();
+        for(Id<Node> nodeId : startNodes) {
+            if(!accessibilityResults.containsKey(nodeId)) {
+                startNodesQueue.add(nodeId);
+            }
+        }
+
+        // Footprints need every start node's tree, so resumed runs (which skip completed nodes) can't write them
+        TreeFootprint footprint = null;
+        int[] nodeKeys = null;
+        if(footprintFilePath != null) {
+            if(startNodesQueue.size() < startNodes.size()) {
+                throw new RuntimeException("Tree footprints can't be written when resuming from a checkpoint.");
+            }
+            try {
+                footprint = new TreeFootprint(footprintFilePath);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open footprint file " + footprintFilePath, e);
+            }
+            nodeKeys = new int[routingGraph.getNodeCount()];
+            for(Node node : routingNetwork.getNodes().values()) {
+                nodeKeys[node.getId().index()] = Integer.parseInt(node.getId().toString());
+            }
+        }
+
+        // Destination-centric mode runs one reverse tree per access node instead of one tree per start node
+        int calculated = startNodesQueue.size();
+        if(destinationCentric && !startNodesQueue.isEmpty()) {
+            accessibilityResults.putAll(calculateDestinationCentric(new HashSet<>(startNodesQueue), compiledEndData, fwd));
+        } else {
+            calculateOriginCentric(startNodesQueue, compiledEndData, fwd, accessibilityResults, spillFile, footprint, nodeKeys);
+        }
+
+        if(cache != null && calculated > 0) {
+            Map<Integer,double[]> rows = new HashMap<>(accessibilityResults.size());
+            for(Map.Entry<Id<Node>,double[]> e : accessibilityResults.entrySet()) {
+                rows.put(Integer.parseInt(e.getKey().toString()), e.getValue());
+            }
+            try {
+                cache.merge(rows);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write result cache " + cache.getFilePath(), e);
+            }
+        }
 
-        Counter counter = new Counter("Calculating accessibility node ", " / " + startNodes.size());
+        return Collections.unmodifiableMap(new HashMap<>(accessibilityResults));
+    }
+
+    private void calculateOriginCentric(ConcurrentLinkedQueue<Id<Node>> startNodesQueue, CompiledLocationData[] compiledEndData, Boolean fwd,
+                                        ConcurrentHashMap<Id<Node>,double[]> accessibilityResults, RowSpillFile spillFile,
+                                        TreeFootprint footprint, int[] nodeKeys) {
+        // do calculation
+        Counter counter = new Counter("Calculating accessibility node ", " / " + startNodesQueue.size());
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            NodeWorker worker = new NodeWorker(startNodesQueue, endData, fwd, routingGraph, accessibilityResults, decayFunction, counter);
+            NodeWorker worker = new NodeWorker(startNodesQueue, compiledEndData, fwd, routingGraph, accessibilityResults, decayFunction, spillFile, counter);
+            worker.setFootprint(footprint, nodeKeys);
             threads[i] = new Thread(worker, "Accessibility-" + i);
             threads[i].start();
         }
@@ -73,30 +219,221 @@ public class NodeCalculator {
             }
         }
 
-        return Collections.unmodifiableMap(new HashMap<>(accessibilityResults));
+        if(spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if(footprint != null) {
+            try {
+                footprint.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private boolean useDestinationCentric(Set<Id<Node>> startNodes, CompiledLocationData[] endData, Boolean fwd, boolean checkpoint) {
+        if(method == Method.ORIGIN || startNodes.isEmpty()) {
+            return false;
+        }
+        if(fwd == null) {
+            log.info("Destination-centric calculation requires 1-way trees (2-way trees take distances from the forward tree). Using origin-centric calculation.");
+            return false;
+        }
+        if(checkpoint) {
+            log.info("Checkpoints and footprints require one tree per start node. Using origin-centric calculation.");
+            return false;
+        }
+
+        // Sample of start nodes and destinations (spread over each destination list)
+        List<Id<Node>> sampleNodes = new ArrayList<>(METHOD_CHECK_NODES);
+        Iterator<Id<Node>> it = startNodes.iterator();
+        while(it.hasNext() && sampleNodes.size() < METHOD_CHECK_NODES) {
+            sampleNodes.add(it.next());
+        }
+        int[] startIndex = new int[routingGraph.getNodeCount()];
+        Arrays.fill(startIndex, -1);
+        for(int i = 0 ; i < sampleNodes.size() ; i++) {
+            startIndex[sampleNodes.get(i).index()] = i;
+        }
+        List<int[]> sampleDestinations = new ArrayList<>();
+        for(int e = 0 ; e < endData.length ; e++) {
+            int size = endData[e].size();
+            int count = Math.min(size, METHOD_CHECK_DESTINATIONS);
+            for(int j = 0 ; j < count ; j++) {
+                sampleDestinations.add(new int[] {e, (int) ((long) j * size / count)});
+            }
+        }
+
+        // Origin-centric trees (also counting settled nodes per tree)
+        PathTree lcpTree = new LcpTree1Way(routingGraph, fwd);
+        StopCriterion cutoff = decayFunction.getTreeStopCriterion();
+        int[] settled = new int[1];
+        StopCriterion counting = (node, arrTime, cost, distance, depTime) -> {
+            if(cutoff.stop(node, arrTime, cost, distance, depTime)) {
+                return true;
+            }
+            settled[0]++;
+            return false;
+        };
+        double[][] expected = new double[sampleNodes.size()][sampleDestinations.size()];
+        for(int i = 0 ; i < sampleNodes.size() ; i++) {
+            lcpTree.calculate(sampleNodes.get(i).index(), 0., counting);
+            for(int p = 0 ; p < sampleDestinations.size() ; p++) {
+                int[] destination = sampleDestinations.get(p);
+                expected[i][p] = cheapestCost(lcpTree, endData[destination[0]], destination[1], decayFunction);
+            }
+        }
+
+        // Destination-centric trees for the same pairs
+        DestinationWorker worker = new DestinationWorker(null, endData, fwd, routingGraph, startIndex, sampleNodes.size(), decayFunction, null);
+        double maxDifference = 0.;
+        for(int p = 0 ; p < sampleDestinations.size() ; p++) {
+            int[] destination = sampleDestinations.get(p);
+            worker.scatter(endData[destination[0]], destination[1]);
+            for(int i = 0 ; i < sampleNodes.size() ; i++) {
+                double expectedDecay = expected[i][p] == Double.MAX_VALUE ? 0. : decayFunction.getDecay(expected[i][p]);
+                double actualCost = worker.getBestCost(i);
+                double actualDecay = actualCost == Double.MAX_VALUE ? 0. : decayFunction.getDecay(actualCost);
+                maxDifference = Math.max(maxDifference, Math.abs(actualDecay - expectedDecay));
+            }
+        }
+        log.info("Destination-centric check: max decay difference to origin-centric trees = " + maxDifference + " over " +
+                sampleNodes.size() + " start nodes and " + sampleDestinations.size() + " destinations.");
+        if(maxDifference > METHOD_CHECK_TOLERANCE) {
+            log.warn("Destination-centric results differ from origin-centric trees on this network. Using origin-centric calculation.");
+            return false;
+        }
+
+        if(method == Method.AUTO) {
+            // Origin-centric: tree + scan of all access nodes per start node. Destination-centric: reverse tree (with its frontier) + scatter per access node.
+            double treeSize = (double) settled[0] / sampleNodes.size();
+            double reverseTreeSize = worker.trees > 0 ? (double) worker.polledNodes / worker.trees : 0.;
+            long accessNodes = Arrays.stream(endData).mapToLong(d -> d.nodeIndices.length).sum();
+            double originCost = startNodes.size() * (treeSize + accessNodes);
+            double destinationCost = accessNodes * reverseTreeSize * SCATTER_OVERHEAD;
+            log.info("Accessibility mode estimate: origin-centric " + startNodes.size() + " trees of ~" + Math.round(treeSize) +
+                    " nodes, destination-centric " + accessNodes + " trees of ~" + Math.round(reverseTreeSize) + " nodes. Using " +
+                    (destinationCost < originCost ? "destination" : "origin") + "-centric calculation.");
+            return destinationCost < originCost;
+        }
+        log.info("Using destination-centric calculation.");
+        return true;
+    }
+
+    private Map<Id<Node>,double[]> calculateDestinationCentric(Set<Id<Node>> startNodes, CompiledLocationData[] endData, Boolean fwd) {
+
+        // Compact index of start nodes
+        int nodeCount = routingGraph.getNodeCount();
+        int[] startIndex = new int[nodeCount];
+        Arrays.fill(startIndex, -1);
+        List<Id<Node>> startNodeList = new ArrayList<>(startNodes);
+        for(int i = 0 ; i < startNodeList.size() ; i++) {
+            startIndex[startNodeList.get(i).index()] = i;
+        }
+
+        ConcurrentLinkedQueue<int[]> destinations = new ConcurrentLinkedQueue<>();
+        for(int e = 0 ; e < endData.length ; e++) {
+            for(int d = 0 ; d < endData[e].size() ; d++) {
+                destinations.add(new int[] {e, d});
+            }
+        }
+
+        Counter counter = new Counter("Calculating accessibility destination ", " / " + destinations.size());
+        Thread[] threads = new Thread[numberOfThreads];
+        DestinationWorker[] workers = new DestinationWorker[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            workers[i] = new DestinationWorker(destinations, endData, fwd, routingGraph, startIndex, startNodeList.size(), decayFunction, counter);
+            threads[i] = new Thread(workers[i], "Accessibility-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Merge thread-local accumulators
+        Map<Id<Node>,double[]> results = new HashMap<>(startNodeList.size());
+        for(int i = 0 ; i < startNodeList.size() ; i++) {
+            double[] accessibilities = new double[endData.length];
+            for(DestinationWorker worker : workers) {
+                for(int e = 0 ; e < endData.length ; e++) {
+                    accessibilities[e] += worker.accumulators[e][i];
+                }
+            }
+            results.put(startNodeList.get(i), accessibilities);
+        }
+        return Collections.unmodifiableMap(results);
+    }
+
+    // Sum of weight x decay over destinations, using each destination's cheapest access node within the cutoff
+    static double accumulate(PathTree lcpTree, CompiledLocationData endData, DecayFunction decayFunction) {
+        double[] weights = endData.weights;
+        double accessibility = 0.;
+        for (int d = 0; d < weights.length; d++) {
+            double cost = cheapestCost(lcpTree, endData, d, decayFunction);
+            if (cost != Double.MAX_VALUE) {
+                accessibility += decayFunction.getDecay(cost) * weights[d];
+            }
+        }
+        return accessibility;
+    }
+
+    // Cost of destination d's cheapest access node within the cutoff (Double.MAX_VALUE if none)
+    static double cheapestCost(PathTree lcpTree, CompiledLocationData endData, int d, DecayFunction decayFunction) {
+        int[] nodeIndices = endData.nodeIndices;
+        double cost = Double.MAX_VALUE;
+        for (int k = endData.offsets[d]; k < endData.offsets[d + 1]; k++) {
+            int toNodeIndex = nodeIndices[k];
+            if (decayFunction.beyondCutoff(lcpTree.getDistance(toNodeIndex), lcpTree.getRawTime(toNodeIndex))) {
+                continue;
+            }
+            double nodeCost = lcpTree.getCost(toNodeIndex);
+            if (nodeCost < cost) {
+                cost = nodeCost;
+            }
+        }
+        return cost;
     }
 
     protected static class NodeWorker implements Runnable {
         private final ConcurrentLinkedQueue<Id<Node>> startNodes;
-        private final List<LocationData> endDataList;
+        private final CompiledLocationData[] endDataList;
         private final Boolean fwd;
         private final SpeedyGraph graph;
         private final ConcurrentHashMap<Id<Node>,double[]> accessibilityData;
         private final DecayFunction decayFunction;
+        private final RowSpillFile spillFile;
         private final Counter counter;
+        private TreeFootprint footprint;
+        private int[] nodeKeys;
 
-        NodeWorker(ConcurrentLinkedQueue<Id<Node>> startNodes, List<LocationData> endDataList,
+        NodeWorker(ConcurrentLinkedQueue<Id<Node>> startNodes, CompiledLocationData[] endDataList,
                    Boolean fwd, SpeedyGraph graph, ConcurrentHashMap<Id<Node>,double[]> results,
-                   DecayFunction decayFunction, Counter counter) {
+                   DecayFunction decayFunction, RowSpillFile spillFile, Counter counter) {
             this.startNodes = startNodes;
             this.endDataList = endDataList;
             this.fwd = fwd;
             this.graph = graph;
             this.accessibilityData = results;
             this.decayFunction = decayFunction;
+            this.spillFile = spillFile;
             this.counter = counter;
         }
 
+        void setFootprint(TreeFootprint footprint, int[] nodeKeys) {
+            this.footprint = footprint;
+            this.nodeKeys = nodeKeys;
+        }
+
         public void run() {
             PathTree lcpTree;
             if(fwd != null) {
@@ -106,6 +443,12 @@ public class NodeCalculator {
             }
             StopCriterion stopCriterion = decayFunction.getTreeStopCriterion();
 
+            SettledNodes settledNodes = null;
+            if(footprint != null) {
+                settledNodes = new SettledNodes(stopCriterion, nodeKeys);
+                stopCriterion = settledNodes;
+            }
+
             while (true) {
                 Id<Node> fromNodeId = this.startNodes.poll();
                 if (fromNodeId == null) {
@@ -113,38 +456,208 @@ public class NodeCalculator {
                 }
 
                 this.counter.incCounter();
+                if(settledNodes != null) {
+                    settledNodes.reset();
+                }
                 lcpTree.calculate(fromNodeId.index(), 0., stopCriterion);
+                if(settledNodes != null) {
+                    footprint.write(Integer.parseInt(fromNodeId.toString()), settledNodes.keys, settledNodes.count);
+                }
 
 
-                double[] accessibilities = new double[endDataList.size()];
-                int i = 0;
-                for (LocationData endData : endDataList) {
-                    Map<String, IdSet<Node>> endNodes = endData.getNodes();
-                    Map<String, Double> endWeights = endData.getWeights();
-
-                    double accessibility = 0.;
-                    for (Map.Entry<String, Double> endWeight : endWeights.entrySet()) {
-                        double cost = Double.MAX_VALUE;
-                        for (Id<Node> toNodeId : endNodes.get(endWeight.getKey())) {
-                            int toNodeIndex = toNodeId.index();
-                            double nodeDist = lcpTree.getDistance(toNodeIndex);
-                            double nodeTime = lcpTree.getTime(toNodeIndex).orElse(Double.POSITIVE_INFINITY);
-                            if (decayFunction.beyondCutoff(nodeDist, nodeTime)) {
-                                continue;
-                            }
-                            double nodeCost = lcpTree.getCost(toNodeIndex);
-                            if (nodeCost < cost) {
-                                cost = nodeCost;
-                            }
-                        }
-                        if (cost != Double.MAX_VALUE) {
-                            accessibility += decayFunction.getDecay(cost) * endWeight.getValue();
+                double[] accessibilities = new double[endDataList.length];
+                for (int i = 0; i < endDataList.length; i++) {
+                    accessibilities[i] = accumulate(lcpTree, endDataList[i], decayFunction);
+                }
+                this.accessibilityData.put(fromNodeId, accessibilities);
+                if(spillFile != null) {
+                    spillFile.write(Integer.parseInt(fromNodeId.toString()), accessibilities);
+                }
+            }
+        }
+    }
+
+    // Wraps the cutoff criterion to collect the IDs of settled nodes (once each, as 2-way trees settle nodes in both directions)
+    private static class SettledNodes implements StopCriterion {
+        private final StopCriterion cutoff;
+        private final int[] nodeKeys;
+        private final int[] stamps;
+        private int stamp;
+        int[] keys = new int[1024];
+        int count;
+
+        SettledNodes(StopCriterion cutoff, int[] nodeKeys) {
+            this.cutoff = cutoff;
+            this.nodeKeys = nodeKeys;
+            this.stamps = new int[nodeKeys.length];
+        }
+
+        void reset() {
+            stamp++;
+            count = 0;
+        }
+
+        @Override
+        public boolean stop(int nodeIndex, double arrivalTime, double travelCost, double distance, double departureTime) {
+            if(stamps[nodeIndex] != stamp) {
+                stamps[nodeIndex] = stamp;
+                if(count == keys.length) {
+                    keys = Arrays.copyOf(keys, count * 2);
+                }
+                keys[count++] = nodeKeys[nodeIndex];
+            }
+            return cutoff.stop(nodeIndex, arrivalTime, travelCost, distance, departureTime);
+        }
+    }
+
+    private static class DestinationWorker implements Runnable {
+        private final ConcurrentLinkedQueue<int[]> destinations;
+        private final CompiledLocationData[] endDataList;
+        private final Boolean fwd;
+        private final SpeedyGraph graph;
+        private final int[] startIndex;
+        private final DecayFunction decayFunction;
+        private final Counter counter;
+
+        // Thread-local results, merged once all workers are done
+        final double[][] accumulators;
+
+        // Reverse trees: nodes settled before the cutoff, then the frontier around them (settled too, so costs are exact)
+        private final PathTree lcpTree;
+        private final SpeedyGraph.LinkIterator LI;
+        private final StopCriterion stopCriterion;
+        private final int[] settledNodes;
+        private int settledCount;
+        private boolean cutoffReached;
+        private double frontierBound;
+        long polledNodes;
+        int trees;
+
+        private final int[] reachedNodes;
+        private final int[] reachedStamp;
+        private int reachedCount;
+        private int currentReached;
+
+        // Cheapest cost per start node for the current destination
+        private final double[] bestCost;
+        private final int[] stamp;
+        private final int[] touched;
+        private int currentStamp;
+
+        DestinationWorker(ConcurrentLinkedQueue<int[]> destinations, CompiledLocationData[] endDataList, Boolean fwd,
+                          SpeedyGraph graph, int[] startIndex, int startNodeCount, DecayFunction decayFunction, Counter counter) {
+            this.destinations = destinations;
+            this.endDataList = endDataList;
+            this.fwd = fwd;
+            this.graph = graph;
+            this.startIndex = startIndex;
+            this.decayFunction = decayFunction;
+            this.counter = counter;
+            this.accumulators = new double[endDataList.length][startNodeCount];
+            this.settledNodes = new int[graph.getNodeCount()];
+            this.reachedNodes = new int[graph.getNodeCount()];
+            this.reachedStamp = new int[graph.getNodeCount()];
+            this.bestCost = new double[startNodeCount];
+            this.stamp = new int[startNodeCount];
+            this.touched = new int[startNodeCount];
+
+            // Reverse direction: trees start at the destination
+            this.lcpTree = new LcpTree1Way(graph, !fwd);
+            this.LI = fwd ? graph.getInLinkIterator() : graph.getOutLinkIterator();
+            StopCriterion cutoff = decayFunction.getTreeStopCriterion();
+            this.stopCriterion = (node, arrTime, cost, distance, depTime) -> {
+                polledNodes++;
+                if (!cutoffReached) {
+                    if (!cutoff.stop(node, arrTime, cost, distance, depTime)) {
+                        settledNodes[settledCount++] = node;
+                        LI.reset(node);
+                        while (LI.next()) {
+                            frontierBound = Math.max(frontierBound, cost + graph.getLinkDisutility(LI.getLinkIndex()));
                         }
+                        return false;
                     }
-                    accessibilities[i] = accessibility;
-                    i++;
+                    cutoffReached = true;
                 }
-                this.accessibilityData.put(fromNodeId, accessibilities);
+                // Every frontier node costs at most frontierBound
+                return cost > frontierBound;
+            };
+        }
+
+        public void run() {
+            while (true) {
+                int[] destination = this.destinations.poll();
+                if (destination == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                CompiledLocationData endData = endDataList[destination[0]];
+                int d = destination[1];
+                int touchedCount = scatter(endData, d);
+
+                double weight = endData.weights[d];
+                double[] accumulator = accumulators[destination[0]];
+                for (int t = 0; t < touchedCount; t++) {
+                    int i = touched[t];
+                    accumulator[i] += decayFunction.getDecay(bestCost[i]) * weight;
+                }
+            }
+        }
+
+        // Cheapest access node of destination d for each start node within the cutoff, returns the number of start nodes reached
+        int scatter(CompiledLocationData endData, int d) {
+            currentStamp++;
+            int touchedCount = 0;
+            for (int k = endData.offsets[d]; k < endData.offsets[d + 1]; k++) {
+                settledCount = 0;
+                cutoffReached = false;
+                frontierBound = Double.NEGATIVE_INFINITY;
+                lcpTree.calculate(endData.nodeIndices[k], 0., stopCriterion);
+                trees++;
+                collectReached(endData.nodeIndices[k]);
+                for (int n = 0; n < reachedCount; n++) {
+                    int nodeIndex = reachedNodes[n];
+                    int i = startIndex[nodeIndex];
+                    if (i == -1 || decayFunction.beyondCutoff(lcpTree.getDistance(nodeIndex), lcpTree.getRawTime(nodeIndex))) {
+                        continue;
+                    }
+                    double cost = lcpTree.getCost(nodeIndex);
+                    if (stamp[i] != currentStamp) {
+                        stamp[i] = currentStamp;
+                        bestCost[i] = cost;
+                        touched[touchedCount++] = i;
+                    } else if (cost < bestCost[i]) {
+                        bestCost[i] = cost;
+                    }
+                }
+            }
+            return touchedCount;
+        }
+
+        // Cost from the last scattered destination (Double.MAX_VALUE if not reached)
+        double getBestCost(int i) {
+            return stamp[i] == currentStamp ? bestCost[i] : Double.MAX_VALUE;
+        }
+
+        // Settled nodes and the frontier around them, as read by origin-centric accumulation
+        private void collectReached(int accessNode) {
+            currentReached++;
+            reachedCount = 0;
+            addReached(accessNode);
+            for (int n = 0; n < settledCount; n++) {
+                int nodeIndex = settledNodes[n];
+                addReached(nodeIndex);
+                LI.reset(nodeIndex);
+                while (LI.next()) {
+                    addReached(fwd ? LI.getFromNodeIndex() : LI.getToNodeIndex());
+                }
+            }
+        }
+
+        private void addReached(int nodeIndex) {
+            if (reachedStamp[nodeIndex] != currentReached) {
+                reachedStamp[nodeIndex] = currentReached;
+                reachedNodes[reachedCount++] = nodeIndex;
             }
         }
     }
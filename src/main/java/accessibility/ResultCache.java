@@ -0,0 +1,161 @@
+package accessibility;
+
+import accessibility.decay.DecayFunction;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.IdSet;
+import org.matsim.api.core.v01.network.Node;
+import routing.graph.GraphFingerprint;
+import routing.graph.SpeedyGraph;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+// Content-addressed cache of node accessibility results. The file name is a SHA-256 of the graph (network, travel time
+// and disutility), the destinations (nodes and transformed weights), the decay function, the direction and the
+// calculation method, so any change to these gives a new file and stale results are never reused. Runs sharing a cache
+// directory (e.g. shards) merge their rows into the file under a file lock.
+// Layout (columnar): magic, version, row length, row count, sorted node IDs, then one column of values per destination type.
+
+final class ResultCache {
+
+    private final static Logger log = Logger.getLogger(ResultCache.class);
+    private final static int MAGIC = 0x4A414343; // "JACC"
+    private final static int VERSION = 1;
+
+    private final String filePath;
+    private final int rowLength;
+
+    ResultCache(String cacheDir, SpeedyGraph graph, List<LocationData> endData, DecayFunction decayFunction, Boolean fwd,
+                NodeCalculator.Method method) {
+        this.rowLength = endData.size();
+        this.filePath = Paths.get(cacheDir, toHex(key(graph, endData, decayFunction, fwd, method)) + ".acc").toString();
+    }
+
+    private static byte[] key(SpeedyGraph graph, List<LocationData> endData, DecayFunction decayFunction, Boolean fwd,
+                              NodeCalculator.Method method) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        digest.update(GraphFingerprint.hash(graph));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(decayFunction.getClass().getName()).append(Arrays.toString(decayFunction.getParameters()));
+        sb.append("|fwd=").append(fwd);
+        sb.append("|method=").append(method);
+        for(LocationData data : endData) {
+            sb.append("|").append(data.getDescription());
+            Map<String, IdSet<Node>> nodes = data.getNodes();
+            Map<String, Double> weights = data.getWeights();
+            for(String id : new TreeSet<>(nodes.keySet())) {
+                List<String> nodeIds = new ArrayList<>();
+                for(Id<Node> nodeId : nodes.get(id)) {
+                    nodeIds.add(nodeId.toString());
+                }
+                Collections.sort(nodeIds);
+                sb.append(";").append(id).append("=").append(weights.get(id)).append(nodeIds);
+            }
+            digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+            sb.setLength(0);
+        }
+        digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+        return digest.digest();
+    }
+
+    String getFilePath() {
+        return filePath;
+    }
+
+    // Cached rows by node ID (empty if there is no cache file for this key)
+    Map<Integer,double[]> read() throws IOException {
+        File file = new File(filePath);
+        if(!file.exists()) {
+            log.info("No cached results at " + filePath);
+            return new HashMap<>(0);
+        }
+        Map<Integer,double[]> result = readFile(file);
+        log.info("Read " + result.size() + " cached node results from " + filePath);
+        return result;
+    }
+
+    private Map<Integer,double[]> readFile(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != rowLength) {
+                throw new IOException(filePath + " is not a result cache file for " + rowLength + " destination types");
+            }
+            int rowCount = in.readInt();
+            int[] keys = new int[rowCount];
+            for(int i = 0 ; i < rowCount ; i++) {
+                keys[i] = in.readInt();
+            }
+            double[][] rows = new double[rowCount][rowLength];
+            for(int j = 0 ; j < rowLength ; j++) {
+                for(int i = 0 ; i < rowCount ; i++) {
+                    rows[i][j] = in.readDouble();
+                }
+            }
+            Map<Integer,double[]> result = new HashMap<>(rowCount);
+            for(int i = 0 ; i < rowCount ; i++) {
+                result.put(keys[i], rows[i]);
+            }
+            return result;
+        }
+    }
+
+    // Adds the rows to the cache file. The file is re-read under an exclusive lock (on a separate lock file, as the cache
+    // file itself is replaced), so rows written by other runs since this run's read are kept.
+    void merge(Map<Integer,double[]> rows) throws IOException {
+        Path target = Paths.get(filePath);
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try (FileChannel channel = FileChannel.open(Paths.get(filePath + ".lock"), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+             FileLock lock = channel.lock()) {
+            Map<Integer,double[]> merged = target.toFile().exists() ? readFile(target.toFile()) : new HashMap<>(rows.size());
+            int existing = merged.size();
+            merged.putAll(rows);
+            write(target, merged);
+            log.info("Cached " + (merged.size() - existing) + " new node results at " + filePath + " (" + merged.size() + " in total)");
+        }
+    }
+
+    // Writes to a temporary file and moves it into place, so readers never see a partial file
+    private void write(Path target, Map<Integer,double[]> rows) throws IOException {
+        int[] keys = rows.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), "acc", ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp.toFile()), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(rowLength);
+            out.writeInt(keys.length);
+            for(int key : keys) {
+                out.writeInt(key);
+            }
+            for(int j = 0 ; j < rowLength ; j++) {
+                for(int key : keys) {
+                    out.writeDouble(rows.get(key)[j]);
+                }
+            }
+        }
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+}
@@ -5,6 +5,8 @@ import accessibility.resources.AccessibilityProperties;
 import accessibility.resources.AccessibilityResources;
 import gis.GisUtils;
 import gis.GpkgReader;
+import io.Shard;
+import network.NetworkSnapper;
 import network.NetworkUtils2;
 import org.geotools.geometry.jts.Geometries;
 import org.locationtech.jts.geom.Geometry;
@@ -14,6 +16,7 @@ import org.matsim.api.core.v01.network.Node;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.vehicles.Vehicle;
+import resources.Properties;
 import resources.Resources;
 
 import org.apache.log4j.Logger;
@@ -91,27 +94,17 @@ public class RunAnalysis {
         Boolean fwd = AccessibilityResources.instance.fwdCalculation();
 
         // Checks on whether to perform ANY calculations
-        if(df == null) {
-            log.error("No decay function. Skipping all accessibility calculations.");
-            return;
-        }
-        if(endLocationsFilenames.size() == 0) {
-            log.error("No end locations given. Skipping all accessibility calculations.");
+        if(!checkInputs(propertiesFilepath, df, endLocationsFilenames, endLocationsDescriptions,
+                inputFilename, outputNodesFilename, outputFeaturesFilename)) {
             return;
         }
         int endLocationsSize = endLocationsFilenames.size();
-        if(endLocationsSize != endLocationsDescriptions.size()) {
-            log.error("Number of end locations does not match number of end descriptions.");
-        }
-        if (outputNodesFilename == null && (inputFilename == null || outputFeaturesFilename == null)) {
-            log.error("No input/output files given. Skipping all accessibility calculations.");
-            return;
-        }
 
         List<LocationData> endDataList = new ArrayList<>(endLocationsSize);
+        NetworkSnapper snapper = new NetworkSnapper(network);
         for(int i = 0 ; i < endLocationsSize ; i++) {
             LocationData endData = new LocationData(endLocationsDescriptions.get(i),endLocationsFilenames.get(i),networkBoundary);
-            endData.estimateNetworkNodes(network);
+            endData.estimateNetworkNodes(snapper);
             endData.transformWeights(endLocationsAlpha.get(i));
             endDataList.add(endData);
         }
@@ -129,10 +122,43 @@ public class RunAnalysis {
             log.info("Running node accessibility calculation...");
             long startTime = System.currentTimeMillis();
             NodeCalculator calc = new NodeCalculator(network,tt, td, veh, df);
+            String nodeMethod = AccessibilityResources.instance.getString(AccessibilityProperties.NODE_METHOD);
+            if(nodeMethod != null) {
+                calc.setMethod(NodeCalculator.Method.valueOf(nodeMethod.toUpperCase()));
+            }
+            String checkpointFilename = AccessibilityResources.instance.getString(AccessibilityProperties.CHECKPOINT_NODES);
+            boolean resume = Boolean.parseBoolean(Resources.instance.getString(Properties.CHECKPOINT_RESUME));
+            Shard shard = Shard.fromProperties();
+            if(shard != null) {
+                if(checkpointFilename == null) {
+                    throw new RuntimeException("Shard mode requires " + AccessibilityProperties.CHECKPOINT_NODES + " for partial outputs!");
+                }
+                calc.setShard(shard);
+                calc.setCheckpoint(checkpointFilename + shard.getSuffix(), resume);
+            } else if(checkpointFilename != null) {
+                calc.setCheckpoint(checkpointFilename, resume);
+            }
+            String cacheDir = Resources.instance.getString(Properties.RESULT_CACHE);
+            if(cacheDir != null) {
+                calc.setCache(cacheDir);
+            }
+            String footprintFilename = AccessibilityResources.instance.getString(AccessibilityProperties.FOOTPRINT_NODES);
+            if(footprintFilename != null) {
+                if(shard != null) {
+                    throw new RuntimeException(AccessibilityProperties.FOOTPRINT_NODES + " is not supported in shard mode!");
+                }
+                calc.setFootprint(footprintFilename);
+            }
             nodeResults = calc.calculate(startNodes, endDataList, fwd);
             long endTime = System.currentTimeMillis();
             log.info("Calculation time: " + (endTime - startTime));
 
+            // Partial results are only written to the shard spill file
+            if(shard != null) {
+                log.info("Shard mode: " + shard + " written to " + checkpointFilename + shard.getSuffix() + ". Run MergeNodeShards once all shards are complete.");
+                return;
+            }
+
             // Output nodes as CSV (if it was provided in properties file)
             if(outputNodesFilename != null) {
                 AccessibilityWriter.writeNodesAsGpkg(nodeResults,endLocationsDescriptions,fullNetwork,outputNodesFilename);
@@ -150,4 +176,26 @@ public class RunAnalysis {
             GisUtils.writeFeaturesToGpkg(features.getCollection(), features.getDescription() + "_result", outputFeaturesFilename);
         }
     }
-}
\ No newline at end of file
+
+    // Returns false if the properties file gives nothing to calculate (also used by RunAnalysisBatch)
+    static boolean checkInputs(String propertiesFilepath, DecayFunction df, List<String> endLocationsFilenames,
+                               List<String> endLocationsDescriptions, String inputFilename,
+                               String outputNodesFilename, String outputFeaturesFilename) {
+        if(df == null) {
+            log.error(propertiesFilepath + ": No decay function. Skipping all accessibility calculations.");
+            return false;
+        }
+        if(endLocationsFilenames.size() == 0) {
+            log.error(propertiesFilepath + ": No end locations given. Skipping all accessibility calculations.");
+            return false;
+        }
+        if(endLocationsFilenames.size() != endLocationsDescriptions.size()) {
+            log.error(propertiesFilepath + ": Number of end locations does not match number of end descriptions.");
+        }
+        if (outputNodesFilename == null && (inputFilename == null || outputFeaturesFilename == null)) {
+            log.error(propertiesFilepath + ": No input/output files given. Skipping all accessibility calculations.");
+            return false;
+        }
+        return true;
+    }
+}
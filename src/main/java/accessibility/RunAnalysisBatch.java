@@ -0,0 +1,185 @@
+package accessibility;
+
+import accessibility.decay.DecayFunction;
+import accessibility.decay.DecayFunctions;
+import accessibility.resources.AccessibilityProperties;
+import accessibility.resources.AccessibilityResources;
+import gis.GisUtils;
+import gis.GpkgReader;
+import network.NetworkSnapper;
+import network.NetworkUtils2;
+import org.apache.log4j.Logger;
+import org.geotools.geometry.jts.Geometries;
+import org.locationtech.jts.geom.Geometry;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+import resources.Resources;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// Runs several accessibility properties files in one job. Specifications are grouped by (mode, disutility, direction)
+// so each group builds its routing graph once and computes every node tree once per distinct cutoff for all of its
+// decay functions and destination sets. Networks and destination data are shared between specifications.
+
+public class RunAnalysisBatch {
+
+    public static final Logger log = Logger.getLogger(RunAnalysisBatch.class);
+
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2) {
+            throw new RuntimeException("Program requires at least 2 arguments: \n" +
+                    "(0) General Properties file\n" +
+                    "(1+) Accessibility properties file(s) \n");
+        }
+
+        Resources.initializeResources(args[0]);
+
+        // Read network
+        Network fullNetwork = NetworkUtils2.readFullNetwork();
+
+        // Read boundary shapefiles
+        log.info("Reading boundary shapefiles...");
+        Geometry regionBoundary = GpkgReader.readRegionBoundary();
+        Geometry networkBoundary = GpkgReader.readNetworkBoundary();
+        if(!regionBoundary.within(networkBoundary)) {
+            throw new RuntimeException("Region boundary must be within network boundary!");
+        }
+
+        // Read specifications
+        Map<String,Network> modeNetworks = new HashMap<>();
+        Map<String,NetworkSnapper> modeSnappers = new HashMap<>();
+        Map<String,LocationData> locationDataCache = new HashMap<>();
+        Map<String,List<Specification>> groups = new LinkedHashMap<>();
+        for(int i = 1 ; i < args.length ; i++) {
+            Specification spec = readSpecification(args[i], fullNetwork, networkBoundary, modeNetworks, modeSnappers, locationDataCache);
+            if(spec != null) {
+                groups.computeIfAbsent(spec.groupKey, k -> new ArrayList<>()).add(spec);
+            }
+        }
+        log.info("Grouped " + groups.values().stream().mapToInt(List::size).sum() + " specifications into " + groups.size() + " tree groups.");
+
+        // Calculate each group
+        for(Map.Entry<String,List<Specification>> group : groups.entrySet()) {
+            log.info("Calculating group " + group.getKey());
+            List<Specification> specs = group.getValue();
+            Specification first = specs.get(0);
+            Network network = modeNetworks.get(first.mode);
+
+            // Node accessibility for all specifications needing it, sharing trees
+            List<Specification> nodeSpecs = specs.stream().filter(Specification::needsNodes).collect(Collectors.toList());
+            if(!nodeSpecs.isEmpty()) {
+                Set<Id<Node>> startNodes = NetworkUtils2.getNodesInBoundary(network,regionBoundary);
+                long startTime = System.currentTimeMillis();
+                MultiNodeCalculator calc = new MultiNodeCalculator(network, first.tt, first.td, first.veh);
+                List<Map<Id<Node>,double[]>> nodeResults = calc.calculate(startNodes,
+                        nodeSpecs.stream().map(s -> s.decayFunction).collect(Collectors.toList()),
+                        nodeSpecs.stream().map(s -> s.endDataList).collect(Collectors.toList()), first.fwd);
+                log.info("Calculation time: " + (System.currentTimeMillis() - startTime));
+                for(int i = 0 ; i < nodeSpecs.size() ; i++) {
+                    nodeSpecs.get(i).nodeResults = nodeResults.get(i);
+                }
+            }
+
+            // Outputs
+            for(Specification spec : specs) {
+                if(spec.outputNodesFilename != null && spec.nodeResults != null) {
+                    AccessibilityWriter.writeNodesAsGpkg(spec.nodeResults, spec.endLocationsDescriptions, fullNetwork, spec.outputNodesFilename);
+                }
+                if(spec.features != null && spec.outputFeaturesFilename != null) {
+                    log.info("Running accessibility calculation for " + spec.propertiesFilepath + "...");
+                    FeatureCalculator.calculate(network, spec.features.getCollection(), spec.endDataList,
+                            spec.nodeResults, spec.features.getRadius(), spec.fwd, spec.tt, spec.td, spec.veh, spec.decayFunction);
+                    log.info("Saving output features to " + spec.outputFeaturesFilename);
+                    GisUtils.writeFeaturesToGpkg(spec.features.getCollection(), spec.features.getDescription() + "_result", spec.outputFeaturesFilename);
+                }
+                spec.nodeResults = null;
+            }
+        }
+    }
+
+    private static Specification readSpecification(String propertiesFilepath, Network fullNetwork, Geometry networkBoundary,
+                                                   Map<String,Network> modeNetworks, Map<String,NetworkSnapper> modeSnappers,
+                                                   Map<String,LocationData> locationDataCache) throws IOException {
+
+        AccessibilityResources.initializeResources(propertiesFilepath);
+        Specification spec = new Specification();
+        spec.propertiesFilepath = propertiesFilepath;
+        spec.mode = AccessibilityResources.instance.getMode();
+        spec.tt = AccessibilityResources.instance.getTravelTime();
+        spec.veh = AccessibilityResources.instance.getVehicle();
+        spec.td = AccessibilityResources.instance.getTravelDisutility();
+        spec.fwd = AccessibilityResources.instance.fwdCalculation();
+        spec.groupKey = spec.mode + "|" + AccessibilityResources.instance.getString(AccessibilityProperties.IMPEDANCE) + "|" +
+                AccessibilityResources.instance.getString(AccessibilityProperties.CYCLE_STRESS_THRESHOLD) + "|" + spec.fwd;
+
+        Network network = modeNetworks.computeIfAbsent(spec.mode, m -> NetworkUtils2.extractModeSpecificNetwork(fullNetwork,m));
+
+        String inputFilename = AccessibilityResources.instance.getString(AccessibilityProperties.INPUT);
+        List<String> endLocationsFilenames = AccessibilityResources.instance.getStringList(AccessibilityProperties.END_LOCATIONS);
+        spec.endLocationsDescriptions = AccessibilityResources.instance.getStringList(AccessibilityProperties.END_DESCRIPTION);
+        List<Double> endLocationsAlpha = AccessibilityResources.instance.getStringList(AccessibilityProperties.END_ALPHA).stream().map(Double::parseDouble).collect(Collectors.toList());
+        spec.outputNodesFilename = AccessibilityResources.instance.getString(AccessibilityProperties.OUTPUT_NODES);
+        spec.outputFeaturesFilename = AccessibilityResources.instance.getString(AccessibilityProperties.OUTPUT_FEATURES);
+
+        spec.decayFunction = DecayFunctions.getFromProperties(network,networkBoundary);
+
+        if(!RunAnalysis.checkInputs(propertiesFilepath, spec.decayFunction, endLocationsFilenames, spec.endLocationsDescriptions,
+                inputFilename, spec.outputNodesFilename, spec.outputFeaturesFilename)) {
+            return null;
+        }
+        int endLocationsSize = endLocationsFilenames.size();
+
+        if(inputFilename != null) {
+            spec.features = new FeatureData(inputFilename, spec.endLocationsDescriptions);
+        }
+
+        // Destination data is shared between specifications with the same description, file, alpha and mode
+        spec.endDataList = new ArrayList<>(endLocationsSize);
+        for(int i = 0 ; i < endLocationsSize ; i++) {
+            String description = spec.endLocationsDescriptions.get(i);
+            String filename = endLocationsFilenames.get(i);
+            double alpha = endLocationsAlpha.get(i);
+            String key = description + "|" + filename + "|" + alpha + "|" + spec.mode;
+            LocationData endData = locationDataCache.get(key);
+            if(endData == null) {
+                endData = new LocationData(description,filename,networkBoundary);
+                endData.estimateNetworkNodes(modeSnappers.computeIfAbsent(spec.mode, m -> new NetworkSnapper(network)));
+                endData.transformWeights(alpha);
+                locationDataCache.put(key,endData);
+            }
+            spec.endDataList.add(endData);
+        }
+        return spec;
+    }
+
+    private static class Specification {
+        String propertiesFilepath;
+        String groupKey;
+        String mode;
+        TravelTime tt;
+        Vehicle veh;
+        TravelDisutility td;
+        Boolean fwd;
+        DecayFunction decayFunction;
+        FeatureData features;
+        List<LocationData> endDataList;
+        List<String> endLocationsDescriptions;
+        String outputNodesFilename;
+        String outputFeaturesFilename;
+        Map<Id<Node>,double[]> nodeResults;
+
+        // As in RunAnalysis: node results are needed for polygon features, or if only node outputs are requested
+        boolean needsNodes() {
+            if(features == null) {
+                return outputNodesFilename != null;
+            }
+            return Geometries.POLYGON.equals(features.getGeometryType()) || Geometries.MULTIPOLYGON.equals(features.getGeometryType());
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package accessibility;
+
+import accessibility.decay.DecayFunction;
+import accessibility.decay.DecayFunctions;
+import accessibility.resources.AccessibilityProperties;
+import accessibility.resources.AccessibilityResources;
+import gis.GisUtils;
+import gis.GpkgReader;
+import io.RowSpillFile;
+import network.NetworkSnapper;
+import network.NetworkUtils2;
+import org.apache.log4j.Logger;
+import org.geotools.geometry.jts.Geometries;
+import org.locationtech.jts.geom.Geometry;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.api.core.v01.population.Person;
+import org.matsim.core.network.NetworkUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.population.PopulationUtils;
+import org.matsim.core.router.util.TravelDisutility;
+import org.matsim.core.router.util.TravelTime;
+import org.matsim.vehicles.Vehicle;
+import resources.Resources;
+import routing.graph.GraphDiff;
+import routing.graph.SpeedyGraph;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.*;
+import java.util.stream.Collectors;
+
+// Recalculates node accessibility after a network edit (e.g. from UpgradeCycleNetwork) for only the start nodes whose
+// base trees reached a changed link. Requires a base RunAnalysis run with checkpoint.nodes and footprint.nodes set.
+// Unaffected nodes keep their base results. Writes the changed nodes (old and new values) to a CSV, the merged node
+// results to output.nodes (if given) and re-aggregates polygon features (if input and output are given).
+
+public class RunIncrementalAnalysis {
+
+    private final static Logger log = Logger.getLogger(RunIncrementalAnalysis.class);
+    private final static Person PERSON = PopulationUtils.getFactory().createPerson(Id.create("thePerson", Person.class));
+    private final static char SEP = ',';
+
+    public static void main(String[] args) throws IOException {
+        if(args.length != 4) {
+            throw new RuntimeException("Program requires 4 arguments: \n" +
+                    "(0) General Properties file (with the base network)\n" +
+                    "(1) Accessibility properties file (as used for the base run) \n" +
+                    "(2) Edited network (.xml) \n" +
+                    "(3) Output CSV of changed nodes \n");
+        }
+
+        Resources.initializeResources(args[0]);
+        AccessibilityResources.initializeResources(args[1]);
+
+        String checkpointFilename = AccessibilityResources.instance.getString(AccessibilityProperties.CHECKPOINT_NODES);
+        String footprintFilename = AccessibilityResources.instance.getString(AccessibilityProperties.FOOTPRINT_NODES);
+        if(checkpointFilename == null || footprintFilename == null) {
+            throw new RuntimeException("Incremental analysis requires the base run's " + AccessibilityProperties.CHECKPOINT_NODES +
+                    " and " + AccessibilityProperties.FOOTPRINT_NODES + " files!");
+        }
+
+        String mode = AccessibilityResources.instance.getMode();
+        TravelTime tt = AccessibilityResources.instance.getTravelTime();
+        Vehicle veh = AccessibilityResources.instance.getVehicle();
+        TravelDisutility td = AccessibilityResources.instance.getTravelDisutility();
+        Boolean fwd = AccessibilityResources.instance.fwdCalculation();
+
+        // Base and edited networks
+        Network fullNetwork = NetworkUtils2.readFullNetwork();
+        Network network = NetworkUtils2.extractModeSpecificNetwork(fullNetwork,mode);
+        log.info("Reading edited network...");
+        Network editedFullNetwork = NetworkUtils.createNetwork();
+        new MatsimNetworkReader(editedFullNetwork).readFile(args[2]);
+        Network editedNetwork = NetworkUtils2.extractModeSpecificNetwork(editedFullNetwork,mode);
+
+        Geometry regionBoundary = GpkgReader.readRegionBoundary();
+        Geometry networkBoundary = GpkgReader.readNetworkBoundary();
+
+        // Decay parameters as in the base run
+        DecayFunction df = DecayFunctions.getFromProperties(network,networkBoundary);
+        if(df == null) {
+            throw new RuntimeException("No decay function.");
+        }
+
+        // Changed links, by comparing the graphs link by link
+        SpeedyGraph baseGraph = new SpeedyGraph(network,tt,td,PERSON,veh);
+        SpeedyGraph editedGraph = new SpeedyGraph(editedNetwork,tt,td,PERSON,veh);
+        int[] changedLinks = GraphDiff.changedLinks(baseGraph,editedGraph);
+        log.info(changedLinks.length + " links changed.");
+
+        // An origin is affected if its base tree settled an end node of a changed link (in either network)
+        Set<Integer> changedNodeKeys = new HashSet<>();
+        for(int linkIndex : changedLinks) {
+            addEndNodeKeys(baseGraph, linkIndex, changedNodeKeys);
+            addEndNodeKeys(editedGraph, linkIndex, changedNodeKeys);
+        }
+        Set<Integer> affected = TreeFootprint.findAffectedOrigins(footprintFilename,changedNodeKeys);
+
+        // End locations, which must snap to the same nodes in both networks
+        List<String> endLocationsFilenames = AccessibilityResources.instance.getStringList(AccessibilityProperties.END_LOCATIONS);
+        List<String> endLocationsDescriptions = AccessibilityResources.instance.getStringList(AccessibilityProperties.END_DESCRIPTION);
+        List<Double> endLocationsAlpha = AccessibilityResources.instance.getStringList(AccessibilityProperties.END_ALPHA).stream().map(Double::parseDouble).collect(Collectors.toList());
+        int endLocationsSize = endLocationsFilenames.size();
+        NetworkSnapper baseSnapper = new NetworkSnapper(network);
+        NetworkSnapper editedSnapper = new NetworkSnapper(editedNetwork);
+        List<LocationData> endDataList = new ArrayList<>(endLocationsSize);
+        for(int i = 0 ; i < endLocationsSize ; i++) {
+            LocationData baseEndData = new LocationData(endLocationsDescriptions.get(i),endLocationsFilenames.get(i),networkBoundary);
+            baseEndData.estimateNetworkNodes(baseSnapper);
+            LocationData endData = new LocationData(endLocationsDescriptions.get(i),endLocationsFilenames.get(i),networkBoundary);
+            endData.estimateNetworkNodes(editedSnapper);
+            if(!endData.getNodes().equals(baseEndData.getNodes())) {
+                throw new RuntimeException("The edit changes the network nodes of " + endLocationsDescriptions.get(i) +
+                        " destinations. Use RunAnalysis to recalculate all nodes.");
+            }
+            endData.transformWeights(endLocationsAlpha.get(i));
+            endDataList.add(endData);
+        }
+
+        // Start nodes: affected nodes and nodes not in the base run (new nodes)
+        Map<Integer,double[]> baseRows = RowSpillFile.read(checkpointFilename,"accessibility",endLocationsSize);
+        Set<Id<Node>> startNodes = NetworkUtils2.getNodesInBoundary(editedNetwork,regionBoundary);
+        Set<Id<Node>> recalculate = new HashSet<>();
+        for(Id<Node> nodeId : startNodes) {
+            int key = Integer.parseInt(nodeId.toString());
+            if(affected.contains(key) || !baseRows.containsKey(key)) {
+                recalculate.add(nodeId);
+            }
+        }
+        log.info("Recalculating " + recalculate.size() + " of " + startNodes.size() + " start nodes.");
+
+        long startTime = System.currentTimeMillis();
+        NodeCalculator calc = new NodeCalculator(editedNetwork,tt,td,veh,df);
+
+        // Base runs with footprints always use one tree per start node, so recalculated nodes must too
+        calc.setMethod(NodeCalculator.Method.ORIGIN);
+        Map<Id<Node>,double[]> newResults = calc.calculate(recalculate,endDataList,fwd);
+        log.info("Calculation time: " + (System.currentTimeMillis() - startTime));
+
+        // Merge, and write the nodes whose results changed
+        Map<Id<Node>,double[]> nodeResults = new HashMap<>(startNodes.size());
+        int changedNodes = 0;
+        try (PrintWriter out = new PrintWriter(new FileWriter(args[3]))) {
+            StringBuilder header = new StringBuilder("node");
+            for(String description : endLocationsDescriptions) {
+                header.append(SEP).append(description).append("_base");
+            }
+            for(String description : endLocationsDescriptions) {
+                header.append(SEP).append(description).append("_edited");
+            }
+            out.println(header);
+            for(Id<Node> nodeId : startNodes) {
+                double[] baseValues = baseRows.get(Integer.parseInt(nodeId.toString()));
+                double[] values = newResults.get(nodeId);
+                if(values == null) {
+                    values = baseValues;
+                } else if(!Arrays.equals(values, baseValues)) {
+                    StringBuilder line = new StringBuilder(nodeId.toString());
+                    for(int i = 0 ; i < endLocationsSize ; i++) {
+                        line.append(SEP).append(baseValues != null ? String.valueOf(baseValues[i]) : "");
+                    }
+                    for(double value : values) {
+                        line.append(SEP).append(value);
+                    }
+                    out.println(line);
+                    changedNodes++;
+                }
+                nodeResults.put(nodeId,values);
+            }
+        }
+        log.info(changedNodes + " nodes changed. Wrote changed nodes to " + args[3]);
+
+        String outputNodesFilename = AccessibilityResources.instance.getString(AccessibilityProperties.OUTPUT_NODES);
+        if(outputNodesFilename != null) {
+            AccessibilityWriter.writeNodesAsGpkg(nodeResults,endLocationsDescriptions,editedFullNetwork,outputNodesFilename);
+        }
+
+        // Polygon features are re-aggregated from the merged node results (point features have no footprints)
+        String inputFilename = AccessibilityResources.instance.getString(AccessibilityProperties.INPUT);
+        String outputFeaturesFilename = AccessibilityResources.instance.getString(AccessibilityProperties.OUTPUT_FEATURES);
+        if(inputFilename != null && outputFeaturesFilename != null) {
+            FeatureData features = new FeatureData(inputFilename, endLocationsDescriptions);
+            if(Geometries.POLYGON.equals(features.getGeometryType()) || Geometries.MULTIPOLYGON.equals(features.getGeometryType())) {
+                log.info("Running accessibility calculation...");
+                FeatureCalculator.calculate(editedNetwork, features.getCollection(), endDataList,
+                        nodeResults, features.getRadius(), fwd, tt, td, veh, df);
+                log.info("Saving output features to " + outputFeaturesFilename);
+                GisUtils.writeFeaturesToGpkg(features.getCollection(), features.getDescription() + "_result", outputFeaturesFilename);
+            } else {
+                log.warn("Point features are not supported in incremental mode. Use RunAnalysis for " + inputFilename);
+            }
+        }
+    }
+
+    private static void addEndNodeKeys(SpeedyGraph graph, int linkIndex, Set<Integer> nodeKeys) {
+        if(linkIndex < graph.getLinkCount()) {
+            Link link = graph.getLink(linkIndex);
+            if(link != null) {
+                nodeKeys.add(Integer.parseInt(link.getFromNode().getId().toString()));
+                nodeKeys.add(Integer.parseInt(link.getToNode().getId().toString()));
+            }
+        }
+    }
+}
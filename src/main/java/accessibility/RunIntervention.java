@@ -6,7 +6,9 @@ import accessibility.resources.AccessibilityResources;
 import com.google.common.math.LongMath;
 import gis.GisUtils;
 import gis.GpkgReader;
+import io.RowSpillFile;
 import io.ioUtils;
+import network.NetworkSnapper;
 import network.NetworkUtils2;
 import org.apache.log4j.Logger;
 import org.locationtech.jts.geom.Geometry;
@@ -19,14 +21,15 @@ import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.vehicles.Vehicle;
 import org.opengis.feature.simple.SimpleFeature;
+import resources.Properties;
 import resources.Resources;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.*;
+import java.util.function.Function;
 import java.util.stream.Collectors;
-import java.util.stream.IntStream;
 
 public class RunIntervention {
 
@@ -122,7 +125,8 @@ public class RunIntervention {
 
         // Read population
         LocationData populationData = new LocationData(null,populationFile,regionBoundary);
-        populationData.estimateNetworkNodes(network);
+        NetworkSnapper snapper = new NetworkSnapper(network);
+        populationData.estimateNetworkNodes(snapper);
         IdMap<Node,String> populationNodeIdMap = populationData.getNodeIdMap();
         IdMap<Node,Double> population = populationData.getNodeWeightMap();
         Set<Id<Node>> populationNodes = population.keySet();
@@ -132,7 +136,7 @@ public class RunIntervention {
         double[] newDestinationWeight = new double[destTypeCount];
         for(int i = 0 ; i < destTypeCount ; i++) {
             LocationData endData = new LocationData(destinationDescriptions.get(i),destinationFilenames.get(i),networkBoundary);
-            endData.estimateNetworkNodes(network);
+            endData.estimateNetworkNodes(snapper);
             endData.transformWeights(destinationAlphas.get(i));
             destinationDataList.add(endData);
             Map<String,Double> weights = endData.getWeights();
@@ -150,82 +154,187 @@ public class RunIntervention {
         IdMap<Node,String> candidateNodeIdMap = GisUtils.getCandidateNodes(regionBoundary,developmentAreas,network);
         assert candidateNodeIdMap.size() > 0;
 
-        // Supply and demand results
-        List<Map<Id<Node>,double[]>> supply = new ArrayList<>();
-        List<Map<Id<Node>,double[]>> demand = new ArrayList<>();
-        List<List<Id<Node>>> newDestinations = new ArrayList<>();
-
+        // Origins and candidates in a fixed order. Supply and demand are arrays [type][position].
+        List<Id<Node>> origins = new ArrayList<>(populationNodes);
+        List<Id<Node>> candidates = new ArrayList<>(candidateNodeIdMap.keySet());
+        double[] populationArray = origins.stream().mapToDouble(population::get).toArray();
+        int originCount = origins.size();
 
         // Initialise calculator
         InterventionCalculator calc = new InterventionCalculator(network,tt,td,veh,df);
 
+        // Selection method
+        CelfSelector celf = null;
+        if("celf".equalsIgnoreCase(AccessibilityResources.instance.getString(AccessibilityProperties.SELECTION_METHOD))) {
+            if(demandOutputFile != null) {
+                log.warn("Demand output requires demand for all candidates in every iteration. Using full greedy selection instead of CELF.");
+            } else {
+                celf = new CelfSelector(destTypeCount, Resources.instance.getInt(Properties.NUMBER_OF_THREADS));
+            }
+        }
+
         // Calculate supply-side accessibility
-        supply.add(0,calc.calculate(populationNodes,destinationDataList,null));
+        final double[][] supply = toArrays(calc.calculate(populationNodes,destinationDataList,null), origins, destTypeCount);
+        double[][] baseSupply = copy(supply);
+
+        // Only the supply snapshots that are written are kept (iteration 0 and powers of two). Every iteration's
+        // change in supply can be logged to disk instead.
+        TreeMap<Integer,double[][]> supplySnapshots = new TreeMap<>();
+        if(supplyOutputFile != null) {
+            supplySnapshots.put(0, copy(supply));
+        }
+        String supplyLogFile = AccessibilityResources.instance.getString(AccessibilityProperties.SUPPLY_LOG);
+        RowSpillFile supplyLog = supplyLogFile != null ? new RowSpillFile(supplyLogFile, "supply-delta", originCount, false) : null;
+
+        // Demand for all candidates is only kept if it is written
+        TreeMap<Integer,double[][]> demandHistory = demandOutputFile != null ? new TreeMap<>() : null;
+
+        // Optional precalculated candidate x origin decay matrix (the network and decay function don't change between
+        // iterations, so each iteration becomes a sparse update over population and supply arrays)
+        String decayMatrixFile = AccessibilityResources.instance.getString(AccessibilityProperties.DECAY_MATRIX_FILE);
+        boolean useMatrix = decayMatrixFile != null || Boolean.parseBoolean(AccessibilityResources.instance.getString(AccessibilityProperties.DECAY_MATRIX));
+        if(useMatrix) {
+            log.info("Precalculating candidate decay matrix...");
+        }
+        final DecayMatrix matrix = useMatrix ? calc.calculateDecayMatrix(candidates, origins, decayMatrixFile) : null;
+        Function<Set<Id<Node>>,Map<Id<Node>,double[]>> demandFunction;
+        if(matrix != null) {
+            demandFunction = nodes -> calc.calculateDemand(matrix, nodes, populationArray, supply, newDestinationWeight);
+        } else {
+            demandFunction = nodes -> calc.calculateDemand(nodes, origins, populationArray, supply, newDestinationWeight);
+        }
+
+        // Results for the selected destinations
+        List<List<Id<Node>>> newDestinations = new ArrayList<>();
+        List<double[]> selectedDemand = new ArrayList<>();
+        List<double[][]> selectedSupply = new ArrayList<>();
 
         // Main loop
         int i = 0;
         do {
 
-            // Get current supply
-            Map<Id<Node>, double[]> currSupply = supply.get(i);
-
-            // Compute demand for all candidate nodes
-            log.info("Calculating demand for candidate nodes...");
-            demand.add(i, calc.calculateDemand(candidateNodeIdMap.keySet(), population, currSupply, newDestinationWeight));
-
-            // Select candidate with the highest demand
+            // Select candidate with the highest demand (ties go to the lowest node index)
             List<Id<Node>> currDestinations = new ArrayList<>();
-            for (int j = 0; j < destTypeCount; j++) {
-                Id<Node> selected = null;
-                double highest = Double.MIN_VALUE;
-                for (Map.Entry<Id<Node>, double[]> e : demand.get(i).entrySet()) {
-                    double value = e.getValue()[j];
-                    if (value > highest) {
-                        selected = e.getKey();
-                        highest = value;
+            Map<Id<Node>,double[]> currDemand;
+            if(celf != null) {
+                log.info("Calculating demand for candidate nodes (lazy)...");
+                currDemand = celf.select(candidateNodeIdMap.keySet(), demandFunction, i, currDestinations);
+            } else {
+                log.info("Calculating demand for candidate nodes...");
+                currDemand = demandFunction.apply(candidateNodeIdMap.keySet());
+                for (int j = 0; j < destTypeCount; j++) {
+                    Id<Node> selected = CelfSelector.selectBest(currDemand, j);
+                    if(selected == null) {
+                        throw new RuntimeException("No candidate with positive demand in iteration " + i);
                     }
+                    currDestinations.add(j,selected);
                 }
-                assert selected != null;
-                currDestinations.add(j,selected);
-                log.info(destinationDescriptions.get(j) + " No " + i + " placed at node " + selected + ". Demand = " + highest);
+            }
+            double[] currSelectedDemand = new double[destTypeCount];
+            for (int j = 0; j < destTypeCount; j++) {
+                Id<Node> selected = currDestinations.get(j);
+                currSelectedDemand[j] = currDemand.get(selected)[j];
+                log.info(destinationDescriptions.get(j) + " No " + i + " placed at node " + selected + ". Demand = " + currSelectedDemand[j]);
             }
             newDestinations.add(currDestinations);
-
-            // Increment iteration number
-            i++;
+            selectedDemand.add(currSelectedDemand);
+            if(demandHistory != null) {
+                demandHistory.put(i, toArrays(currDemand, candidates, destTypeCount));
+            }
 
             // Update population accessibility
             log.info("Updating supply...");
-            Map<Id<Node>, double[]> increase = calc.calculateReverse(currDestinations, newDestinationWeight, populationNodes);
-            Map<Id<Node>, double[]> newSupply = new HashMap<>(populationNodes.size());
-            populationNodes.forEach(nodeId -> newSupply.put(nodeId,IntStream.range(0, destTypeCount).mapToDouble(j -> (currSupply.get(nodeId))[j] + (increase.get(nodeId))[j]).toArray()));
+            double[][] delta;
+            if(matrix != null) {
+                delta = new double[destTypeCount][originCount];
+                for (int j = 0; j < destTypeCount; j++) {
+                    matrix.addSupply(matrix.getRow(currDestinations.get(j)), newDestinationWeight[j], delta[j]);
+                }
+            } else {
+                delta = calc.calculateReverse(currDestinations, newDestinationWeight, origins);
+            }
+            for (int j = 0; j < destTypeCount; j++) {
+                for (int o = 0; o < originCount; o++) {
+                    supply[j][o] += delta[j][o];
+                }
+                if(supplyLog != null) {
+                    supplyLog.write(i * destTypeCount + j, delta[j]);
+                }
+            }
+            selectedSupply.add(supplyStatistics(populationArray, baseSupply, supply));
+
+            // Increment iteration number
+            i++;
 
-            // Store current supply
-            supply.add(i, newSupply);
+            // Store current supply (if written)
+            if(supplyOutputFile != null && LongMath.isPowerOfTwo(i)) {
+                supplySnapshots.put(i, copy(supply));
+            }
 
             // Termination criteria
         } while (i < maxDestinations);
+        if(celf != null) {
+            log.info("CELF evaluated " + celf.getEvaluations() + " candidate trees over " + i + " iterations (full greedy: " +
+                    ((long) i * candidateNodeIdMap.size()) + ").");
+        }
+        if(supplyLog != null) {
+            supplyLog.close();
+        }
 
         // Write new node locations
         log.info("Writing new node locations...");
-        printNewDestinations(destinationsOutputFile, network, candidateNodeIdMap, population, supply, demand, newDestinations, newDestinationWeight, destinationDescriptions);
+        printNewDestinations(destinationsOutputFile, network, candidateNodeIdMap, selectedDemand, selectedSupply, newDestinations, newDestinationWeight, destinationDescriptions);
 
         // Write changes in population accessibility
         if(demandOutputFile != null) {
             log.info("Writing demand-side output for each (potential) destination node...");
-            writeEachIteration(demandOutputFile, network, candidateNodeIdMap, demand, destinationDescriptions,false);
+            writeEachIteration(demandOutputFile, network, candidateNodeIdMap, candidates, demandHistory, destinationDescriptions);
         }
 
         if(supplyOutputFile != null) {
             log.info("Writing supply-side output for each population location and iteration...");
-            writeEachIteration(supplyOutputFile, network, populationNodeIdMap, supply, destinationDescriptions,true);
+            writeEachIteration(supplyOutputFile, network, populationNodeIdMap, origins, supplySnapshots, destinationDescriptions);
+        }
+    }
+
+    // Values per destination type, indexed by position in nodes
+    private static double[][] toArrays(Map<Id<Node>,double[]> values, List<Id<Node>> nodes, int destTypeCount) {
+        double[][] arrays = new double[destTypeCount][nodes.size()];
+        for(int n = 0 ; n < nodes.size() ; n++) {
+            double[] nodeValues = values.get(nodes.get(n));
+            for(int j = 0 ; j < destTypeCount ; j++) {
+                arrays[j][n] = nodeValues[j];
+            }
         }
+        return arrays;
     }
 
+    private static double[][] copy(double[][] arrays) {
+        double[][] copy = new double[arrays.length][];
+        for(int j = 0 ; j < arrays.length ; j++) {
+            copy[j] = arrays[j].clone();
+        }
+        return copy;
+    }
+
+    // Population-weighted total supply and supply ratio (share of supply that is new) for each destination type
+    private static double[][] supplyStatistics(double[] population, double[][] baseSupply, double[][] supply) {
+        double[][] statistics = new double[supply.length][2];
+        for(int j = 0 ; j < supply.length ; j++) {
+            for(int o = 0 ; o < population.length ; o++) {
+                double supplyAtNode = supply[j][o];
+                if(supplyAtNode > 0) {
+                    statistics[j][0] += population[o] * supplyAtNode;
+                    statistics[j][1] += population[o] * (1 - baseSupply[j][o] / supplyAtNode);
+                }
+            }
+        }
+        return statistics;
+    }
 
     // Prints new destinations and details
-    private static void printNewDestinations(String outputFile, Network network, IdMap<Node,String> nodes, IdMap<Node,Double> population,
-                                             List<Map<Id<Node>, double[]>> supply, List<Map<Id<Node>,double[]>> demand,
+    private static void printNewDestinations(String outputFile, Network network, IdMap<Node,String> nodes,
+                                             List<double[]> demand, List<double[][]> supply,
                                              List<List<Id<Node>>> newNodes, double[] newWeights,
                                              List<String> destinationDescriptions) {
         PrintWriter out = ioUtils.openFileForSequentialWriting(new File(outputFile),false);
@@ -240,20 +349,9 @@ public class RunIntervention {
             int j = 0;
             for(Id<Node> destNodeId : iteration) {
                 Coord coord = network.getNodes().get(destNodeId).getCoord();
-                double supplyRatio = 0;
-                double supplyTotal = 0;
-                for(Map.Entry<Id<Node>,Double> e : population.entrySet()) {
-                    Id<Node> popNodeId = e.getKey();
-                    double pop = e.getValue();
-                    double supplyAtNode = supply.get(i+1).get(popNodeId)[j];
-                    if(supplyAtNode > 0) {
-                        supplyTotal += pop * supplyAtNode;
-                        supplyRatio += pop * (1 - supply.get(0).get(popNodeId)[j] / supplyAtNode);
-                    }
-                }
                 String line = destinationDescriptions.get(j) + SEP + i + SEP + nodes.get(destNodeId) + SEP + destNodeId.toString() + SEP +
-                        coord.getX() + SEP + coord.getY() + SEP + newWeights[j] + SEP + demand.get(i).get(destNodeId)[j] + SEP +
-                        supplyTotal + SEP + supplyRatio;
+                        coord.getX() + SEP + coord.getY() + SEP + newWeights[j] + SEP + demand.get(i)[j] + SEP +
+                        supply.get(i)[j][0] + SEP + supply.get(i)[j][1];
                 out.println(line);
                 j++;
             }
@@ -262,33 +360,34 @@ public class RunIntervention {
         out.close();
     }
 
-    private static void writeEachIteration(String outputFile, Network network, IdMap<Node,String> nodes, List<Map<Id<Node>,double[]>> results,
-                                           List<String> destinationDescriptions, boolean sparse) {
+    // Writes one column per stored iteration. Results are [type][position in order].
+    private static void writeEachIteration(String outputFile, Network network, IdMap<Node,String> nodes, List<Id<Node>> order,
+                                           TreeMap<Integer,double[][]> results, List<String> destinationDescriptions) {
         PrintWriter out = ioUtils.openFileForSequentialWriting(new File(outputFile),false);
         assert out != null;
 
-        int iterations = results.size();
+        Map<Id<Node>,Integer> position = new HashMap<>(order.size());
+        for(int n = 0 ; n < order.size() ; n++) {
+            position.put(order.get(n), n);
+        }
 
         // Write header
         StringBuilder builder = new StringBuilder();
         builder.append("id").append(SEP).append("node").append(SEP).append("x").append(SEP).append("y").append(SEP).append("type");
-        for(int i = 0 ; i < iterations ; i++) {
-            if(i == 0 || LongMath.isPowerOfTwo(i) || !sparse) {
-                builder.append(SEP).append("it_").append(i);
-            }
+        for(int i : results.keySet()) {
+            builder.append(SEP).append("it_").append(i);
         }
         out.println(builder);
 
         // Write rows
         for(Map.Entry<Id<Node>,String> e : nodes.entrySet()) {
             Coord coord = network.getNodes().get(e.getKey()).getCoord();
+            int n = position.get(e.getKey());
             for (int j = 0; j < destinationDescriptions.size(); j++) {
                 builder = new StringBuilder();
                 builder.append(e.getValue()).append(SEP).append(e.getKey()).append(SEP).append(coord.getX()).append(SEP).append(coord.getY()).append(SEP).append(destinationDescriptions.get(j));
-                for (int i = 0; i < iterations; i++) {
-                    if(i == 0 || LongMath.isPowerOfTwo(i) || !sparse) {
-                        builder.append(SEP).append(results.get(i).get(e.getKey())[j]);
-                    }
+                for (double[][] iteration : results.values()) {
+                    builder.append(SEP).append(iteration[j][n]);
                 }
                 out.println(builder);
             }
@@ -0,0 +1,118 @@
+package accessibility;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+// Records the nodes settled by each origin's (truncated) tree, so that after a network edit only origins whose trees
+// reached a changed link's end nodes need to be recalculated. Any edit that can change an origin's result must change
+// a link leaving or entering a settled node.
+// Layout: magic, version, then one record per origin: origin node ID, node count, sorted node IDs as delta-encoded varints.
+
+final class TreeFootprint implements Closeable {
+
+    private final static Logger log = Logger.getLogger(TreeFootprint.class);
+    private final static int MAGIC = 0x4A465450; // "JFTP"
+    private final static int VERSION = 1;
+
+    private final String filePath;
+    private final DataOutputStream out;
+    private long totalNodes;
+    private int origins;
+
+    TreeFootprint(String filePath) throws IOException {
+        this.filePath = filePath;
+        this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    // Called by worker threads as each tree completes (the first n node IDs are used, in any order)
+    void write(int originKey, int[] nodeKeys, int n) {
+        int[] sorted = Arrays.copyOf(nodeKeys, n);
+        Arrays.sort(sorted);
+        synchronized (this) {
+            try {
+                out.writeInt(originKey);
+                writeVarint(out, n);
+                int previous = 0;
+                for(int key : sorted) {
+                    writeVarint(out, key - previous);
+                    previous = key;
+                }
+                totalNodes += n;
+                origins++;
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to write tree footprint to " + filePath, e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        log.info("Wrote footprints of " + origins + " origin trees to " + filePath + " (average " + (origins > 0 ? totalNodes / origins : 0) + " nodes per tree).");
+    }
+
+    // Origins whose footprint includes at least one of the given node IDs (one sequential pass over the file)
+    static Set<Integer> findAffectedOrigins(String filePath, Set<Integer> changedNodeKeys) throws IOException {
+        int[] changed = changedNodeKeys.stream().mapToInt(Integer::intValue).sorted().toArray();
+        Set<Integer> affected = new HashSet<>();
+        int origins = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath), 1 << 16))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(filePath + " is not a tree footprint file");
+            }
+            while(true) {
+                int originKey;
+                try {
+                    originKey = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                origins++;
+                int n = readVarint(in);
+                int key = 0;
+                int c = 0;
+                boolean hit = false;
+                for(int i = 0 ; i < n ; i++) {
+                    key += readVarint(in);
+                    if(!hit) {
+                        while(c < changed.length && changed[c] < key) {
+                            c++;
+                        }
+                        hit = c < changed.length && changed[c] == key;
+                    }
+                }
+                if(hit) {
+                    affected.add(originKey);
+                }
+            }
+        }
+        log.info(affected.size() + " of " + origins + " origins reach a changed node.");
+        return affected;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -23,4 +23,10 @@ public class CumulativeGaussian extends DecayFunction {
         return cost <= a ? 1. : Math.exp(-1 * (cost - a) * (cost - a) / v);
     }
 
+    @Override
+    public double[] getParameters() {
+        double[] cutoffs = super.getParameters();
+        return new double[] {cutoffs[0], cutoffs[1], a, v};
+    }
+
 }
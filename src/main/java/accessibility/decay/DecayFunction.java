@@ -35,5 +35,10 @@ public class DecayFunction {
     public StopCriterion getTreeStopCriterion() {
         return stopCriterion;
     }
+
+    // Cutoffs followed by the function's own parameters (used to fingerprint cached results)
+    public double[] getParameters() {
+        return new double[] {cutoffTime, cutoffDist};
+    }
 }
 
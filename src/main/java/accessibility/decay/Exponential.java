@@ -17,4 +17,10 @@ public class Exponential extends DecayFunction {
         return Math.exp(-1 * beta * cost);
     }
 
+    @Override
+    public double[] getParameters() {
+        double[] cutoffs = super.getParameters();
+        return new double[] {cutoffs[0], cutoffs[1], beta};
+    }
+
 }
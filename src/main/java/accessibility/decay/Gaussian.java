@@ -21,4 +21,10 @@ public class Gaussian extends DecayFunction {
         return Math.exp(-1 * cost * cost / v);
     }
 
+    @Override
+    public double[] getParameters() {
+        double[] cutoffs = super.getParameters();
+        return new double[] {cutoffs[0], cutoffs[1], v};
+    }
+
 }
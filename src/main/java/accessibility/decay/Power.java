@@ -17,4 +17,10 @@ public class Power extends DecayFunction {
         return Math.pow(cost,-1 * a);
     }
 
+    @Override
+    public double[] getParameters() {
+        double[] cutoffs = super.getParameters();
+        return new double[] {cutoffs[0], cutoffs[1], a};
+    }
+
 }
@@ -29,9 +29,15 @@ public class AccessibilityProperties {
     public static final String INPUT = "input";
     public static final String OUTPUT_FEATURES = "output";
     public static final String OUTPUT_NODES = "output.nodes";
+    public static final String NODE_METHOD = "node.method"; // origin (default), destination (1-way trees, checked against origin trees) or auto (cheaper of the two)
+    public static final String CHECKPOINT_NODES = "checkpoint.nodes"; // spill file for node results (resume set in general properties)
+    public static final String FOOTPRINT_NODES = "footprint.nodes"; // record nodes reached by each start node tree (see RunIncrementalAnalysis)
 
     // For Intervention
     public static final String POPULATION = "population";
+    public static final String SELECTION_METHOD = "selection.method"; // greedy (default) or celf (lazy greedy, same picks)
+    public static final String DECAY_MATRIX = "decay.matrix"; // true to precalculate candidate x origin decay once
+    public static final String DECAY_MATRIX_FILE = "decay.matrix.file"; // memory-map the decay matrix at this path (implies decay.matrix)
 
     // Termination Criteria todo: add others
     public static final String MAX_DESTINATIONS = "max.destinations";
@@ -41,6 +47,7 @@ public class AccessibilityProperties {
     public static final String DESTINATION_OUTPUT = "destination.output";
     public static final String SUPPLY_OUTPUT = "supply.output";
     public static final String DEMAND_OUTPUT = "demand.output";
+    public static final String SUPPLY_LOG = "supply.log"; // binary log of each iteration's supply change (key = iteration * types + type)
 
     public static final String DEVELOPMENT_AREAS = "development.areas";
 
@@ -1,22 +1,21 @@
 package census;
 
+import network.NetworkSnapper;
 import org.apache.log4j.Logger;
-import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
-import org.matsim.api.core.v01.network.Node;
-import org.matsim.core.network.NetworkUtils;
-import org.matsim.core.router.FastDijkstraFactory;
-import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.misc.Counter;
 import org.matsim.vehicles.Vehicle;
 import resources.Properties;
 import resources.Resources;
+import routing.graph.LcpPathCalculator;
+import routing.graph.SpeedyGraph;
 import trip.Place;
 import trip.Trip;
+import trip.TripScheduler;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -27,6 +26,7 @@ public class LinkVolumeCalculator {
     private final Set<Trip> trips;
 
     private final Map<String,int[]> allResults;
+    private final Map<Network,NetworkSnapper> snappers = new IdentityHashMap<>();
 
     public LinkVolumeCalculator(Set<Trip> trips) {
         this.trips = trips;
@@ -44,17 +44,19 @@ public class LinkVolumeCalculator {
         logger.info("Calculating network volumes for route " + route);
 
         int numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
+        boolean validate = Boolean.parseBoolean(Resources.instance.getString(Properties.VOLUME_VALIDATE));
+        NetworkSnapper snapper = snappers.computeIfAbsent(xy2lNetwork, NetworkSnapper::new);
 
-        // Do calculation
-        ConcurrentLinkedQueue<Trip> tripsQueue = new ConcurrentLinkedQueue<>(trips);
+        // Do calculation (one tree per origin node, volumes loaded onto the tree)
+        SpeedyGraph graph = new SpeedyGraph(network, travelTime, travelDisutility, null, vehicle);
+        ConcurrentLinkedQueue<TripScheduler.Group> groupsQueue = TripScheduler.byOrigin(trips, origin, destination, snapper);
+        int tripCount = groupsQueue.stream().mapToInt(TripScheduler.Group::size).sum();
 
-        Counter counter = new Counter(route + ": Route ", " / " + trips.size());
+        Counter counter = new Counter(route + ": Origin ", " / " + groupsQueue.size() + " (" + tripCount + " trips)");
         TripWorker[] workers = new TripWorker[numberOfThreads];
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            LeastCostPathCalculator dijkstra = new FastDijkstraFactory(false).
-                    createPathCalculator(network, travelDisutility, travelTime);
-            workers[i] = new TripWorker(tripsQueue, counter, origin, destination, vehicle, network, xy2lNetwork, dijkstra);
+            workers[i] = new TripWorker(groupsQueue, counter, new LcpPathCalculator(graph), validate);
             threads[i] = new Thread(workers[i], "LinkVolumeCalculator-" + route + "-" + i);
             threads[i].start();
         }
@@ -71,11 +73,32 @@ public class LinkVolumeCalculator {
         // Add up results from individual threads
         int size = Id.getNumberOfIds(Link.class);
         int[] results = new int[size];
+        int[] walkedResults = validate ? new int[size] : null;
         for (int i = 0; i < numberOfThreads; i++) {
             int[] threadResults = workers[i].getLinkVolumes();
             for (int j = 0; j < size; j++) {
                 results[j] += threadResults[j];
             }
+            if(validate) {
+                int[] threadWalkedResults = workers[i].getWalkedLinkVolumes();
+                for (int j = 0; j < size; j++) {
+                    walkedResults[j] += threadWalkedResults[j];
+                }
+            }
+        }
+
+        // Validation: tree loading must give the same volumes as walking each trip's path
+        if(validate) {
+            int mismatches = 0;
+            for (int j = 0; j < size; j++) {
+                if(results[j] != walkedResults[j]) {
+                    mismatches++;
+                }
+            }
+            if(mismatches > 0) {
+                throw new RuntimeException(route + ": tree-loaded volumes differ from path volumes on " + mismatches + " links!");
+            }
+            logger.info(route + ": tree-loaded volumes match path volumes on all links.");
         }
 
         allResults.put(route,results);
@@ -85,49 +108,43 @@ public class LinkVolumeCalculator {
 
     private static class TripWorker implements Runnable {
 
-        private final ConcurrentLinkedQueue<Trip> trips;
+        private final ConcurrentLinkedQueue<TripScheduler.Group> groups;
         private final Counter counter;
-        private final Vehicle vehicle;
-        private final Place origin;
-        private final Place destination;
-        private final LeastCostPathCalculator pathCalculator;
-        private final Network routingNetwork;
-        private final Network xy2lNetwork;
+        private final LcpPathCalculator pathCalculator;
         private final int[] results;
+        private final int[] walkedResults;
 
-        public TripWorker(ConcurrentLinkedQueue<Trip> trips, Counter counter,
-                          Place origin, Place destination, Vehicle vehicle,
-                          Network routingNetwork, Network xy2lNetwork,
-                          LeastCostPathCalculator pathCalculator) {
-            this.trips = trips;
+        public TripWorker(ConcurrentLinkedQueue<TripScheduler.Group> groups, Counter counter, LcpPathCalculator pathCalculator,
+                          boolean validate) {
+            this.groups = groups;
             this.counter = counter;
-            this.origin = origin;
-            this.destination = destination;
-            this.vehicle = vehicle;
-            this.routingNetwork = routingNetwork;
-            this.xy2lNetwork = xy2lNetwork;
             this.pathCalculator = pathCalculator;
             this.results = new int[Id.getNumberOfIds(Link.class)];
+            this.walkedResults = validate ? new int[Id.getNumberOfIds(Link.class)] : null;
         }
 
         public void run() {
 
             while(true) {
-                Trip trip = this.trips.poll();
-                if(trip == null) {
+                TripScheduler.Group group = this.groups.poll();
+                if(group == null) {
                     return;
                 }
 
+                int[] destinationNodes = group.getDestinationNodes();
+                pathCalculator.calculate(group.getOriginNode(), destinationNodes, destinationNodes.length);
+                pathCalculator.loadTree(destinationNodes, destinationNodes.length, results);
                 this.counter.incCounter();
 
-                if(trip.routable(origin, destination)) {
-                    Coord cOrig = trip.getCoord(origin);
-                    Coord cDest = trip.getCoord(destination);
-                    Node nOrig = routingNetwork.getNodes().get(NetworkUtils.getNearestLinkExactly(xy2lNetwork, cOrig).getToNode().getId());
-                    Node nDest = routingNetwork.getNodes().get(NetworkUtils.getNearestLinkExactly(xy2lNetwork, cDest).getToNode().getId());
-
-                    for(Link link : pathCalculator.calcLeastCostPath(nOrig, nDest, 0., null, vehicle).links) {
-                        results[link.getId().index()]++;
+                // Validation mode: also walk each trip's path
+                if(walkedResults != null) {
+                    for(int destinationNode : destinationNodes) {
+                        int[] path = pathCalculator.getPath(destinationNode);
+                        if(path != null) {
+                            for(int linkIdx : path) {
+                                walkedResults[linkIdx]++;
+                            }
+                        }
                     }
                 }
             }
@@ -136,5 +153,9 @@ public class LinkVolumeCalculator {
         public int[] getLinkVolumes() {
             return results;
         }
+
+        public int[] getWalkedLinkVolumes() {
+            return walkedResults;
+        }
     }
 }
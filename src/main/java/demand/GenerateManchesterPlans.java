@@ -1,6 +1,7 @@
 package demand;
 import gis.GisUtils;
 import gis.GpkgReader;
+import network.NetworkSnapper;
 import network.NetworkUtils2;
 import org.apache.log4j.Logger;
 import org.locationtech.jts.geom.Geometry;
@@ -71,6 +72,9 @@ public class GenerateManchesterPlans {
     private Network entryNetwork;
     private Network exitNetwork;
     private Network internalNetwork;
+    private NetworkSnapper entrySnapper;
+    private NetworkSnapper exitSnapper;
+    private NetworkSnapper internalSnapper;
     private final double sampleSize;
 
     // Entering point of the class "Generate Random Demand"
@@ -120,6 +124,9 @@ public class GenerateManchesterPlans {
         this.internalNetwork = NetworkUtils2.extractXy2LinksNetwork(vehicleNetwork,l -> !((boolean) l.getAttributes().getAttribute("motorway")));
         this.entryNetwork = NetworkUtils2.extractXy2LinksNetwork(vehicleNetwork,l -> ENTRY_LINKS.contains(l.getId().toString()));
         this.exitNetwork = NetworkUtils2.extractXy2LinksNetwork(vehicleNetwork,l -> EXIT_LINKS.contains(l.getId().toString()));
+        this.internalSnapper = new NetworkSnapper(internalNetwork);
+        this.entrySnapper = new NetworkSnapper(entryNetwork);
+        this.exitSnapper = new NetworkSnapper(exitNetwork);
 
         // Create dijkstra for car network
         Config config = ConfigUtils.createConfig();
@@ -315,18 +322,18 @@ public class GenerateManchesterPlans {
         // Origin Link
         Link originLink;
         if (networkBoundary.contains(origPoint)) {
-            originLink = NetworkUtils.getNearestLinkExactly(internalNetwork, origCoord);
+            originLink = internalSnapper.getNearestLink(origCoord);
         } else {
-            originLink = NetworkUtils.getNearestLinkExactly(entryNetwork, origCoord);
+            originLink = entrySnapper.getNearestLink(origCoord);
         }
         origin.setLinkId(originLink.getId());
 
         // Destination link
         Link destinationLink;
         if (networkBoundary.contains(destPoint)) {
-            destinationLink = NetworkUtils.getNearestLinkExactly(internalNetwork, destCoord);
+            destinationLink = internalSnapper.getNearestLink(destCoord);
         } else {
-            destinationLink = NetworkUtils.getNearestLinkExactly(exitNetwork, destCoord);
+            destinationLink = exitSnapper.getNearestLink(destCoord);
         }
         destination.setLinkId(destinationLink.getId());
 
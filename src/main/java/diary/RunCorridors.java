@@ -20,7 +20,9 @@ import resources.Resources;
 import routing.Bicycle;
 import routing.disutility.DistanceDisutility;
 import routing.travelTime.WalkTravelTime;
+import diary.calculate.CorridorLinks;
 import diary.calculate.LinkCorridorCalculator;
+import io.CorridorFile;
 import io.DiaryReader;
 import trip.Trip;
 
@@ -30,6 +32,7 @@ import java.io.PrintWriter;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import static trip.Place.*;
 
@@ -45,12 +48,13 @@ public class RunCorridors {
         if (args.length != 3) {
             throw new RuntimeException("Program requires 3 arguments: \n" +
                     "(0) Properties file \n" +
-                    "(1) Output csv file path \n" +
+                    "(1) Output file path (.csv, or .bin for a binary corridor file, see io.CorridorFile) \n" +
                     "(2) Mode");
         }
 
         Resources.initializeResources(args[0]);
-        String outputCsv = args[1];
+        String outputFile = args[1];
+        boolean binary = outputFile.endsWith(".bin");
         String mode = args[2];
 
         String boundaryFilePath = Resources.instance.getString(Properties.NETWORK_BOUNDARY);
@@ -87,14 +91,77 @@ public class RunCorridors {
         // Disutility function
         TravelDisutility td = new DistanceDisutility();
 
+        // Corridor engine
+        String engineProperty = Resources.instance.getString(Properties.CORRIDOR_ENGINE);
+        LinkCorridorCalculator.Engine engine = engineProperty != null ?
+                LinkCorridorCalculator.Engine.valueOf(engineProperty.toUpperCase()) : LinkCorridorCalculator.Engine.SUBPATH;
+        logger.info("Corridor engine: " + engine);
+
+        // Optionally compare the via-link engine against the sub-path engine
+        String validateProperty = Resources.instance.getString(Properties.CORRIDOR_VALIDATE);
+        if(validateProperty != null && Integer.parseInt(validateProperty) > 0) {
+            List<Trip> sample = trips.stream().limit(Integer.parseInt(validateProperty)).collect(Collectors.toList());
+            validate(sample, td, veh, modeNetwork);
+        }
+
         // Write header
-        writeHeader(outputCsv);
+        CorridorFile.Writer corridorFile = null;
+        if(binary) {
+            corridorFile = new CorridorFile.Writer(outputFile);
+        } else {
+            writeHeader(outputFile);
+        }
 
         // Calculate corridors in partitions of 1000
         for(List<Trip> partition : Iterables.partition(trips,1000)) {
-            Map<Trip, IdMap<Link,Double>> results = LinkCorridorCalculator.calculate(partition,ORIGIN, DESTINATION, td, veh, modeNetwork, modeNetwork, 1.25);
-            writeResults(results,outputCsv);
+            Map<Trip, CorridorLinks> results = LinkCorridorCalculator.calculate(partition,ORIGIN, DESTINATION, td, veh, modeNetwork, modeNetwork, 1.25, engine);
+            if(binary) {
+                for(Map.Entry<Trip, CorridorLinks> result : results.entrySet()) {
+                    corridorFile.write(tripKey(result.getKey()), result.getValue());
+                }
+            } else {
+                writeResults(results,outputFile);
+            }
+        }
+        if(corridorFile != null) {
+            corridorFile.close();
+        }
+    }
+
+    // Key of a trip in binary corridor files
+    public static String tripKey(Trip trip) {
+        return trip.getHouseholdId() + "-" + trip.getPersonId() + "-" + trip.getTripId();
+    }
+
+    // Logs, per trip and overall, the overlap of corridor links (Jaccard) and the mean absolute detour difference on shared links
+    private static void validate(List<Trip> sample, TravelDisutility td, Vehicle veh, Network modeNetwork) {
+        logger.info("Validating via-link engine against sub-path engine for " + sample.size() + " trips...");
+        Map<Trip, CorridorLinks> expected = LinkCorridorCalculator.calculate(sample,ORIGIN, DESTINATION, td, veh, modeNetwork, modeNetwork, 1.25, LinkCorridorCalculator.Engine.SUBPATH);
+        Map<Trip, CorridorLinks> actual = LinkCorridorCalculator.calculate(sample,ORIGIN, DESTINATION, td, veh, modeNetwork, modeNetwork, 1.25, LinkCorridorCalculator.Engine.VIA_LINK);
+
+        long shared = 0;
+        long union = 0;
+        double detourDiff = 0.;
+        for(Map.Entry<Trip, CorridorLinks> e : expected.entrySet()) {
+            IdMap<Link,Double> a = e.getValue().toMap();
+            IdMap<Link,Double> b = actual.get(e.getKey()).toMap();
+            int tripShared = 0;
+            for(Map.Entry<Id<Link>,Double> linkDetour : a.entrySet()) {
+                Double other = b.get(linkDetour.getKey());
+                if(other != null) {
+                    tripShared++;
+                    detourDiff += Math.abs(other - linkDetour.getValue());
+                }
+            }
+            int tripUnion = a.size() + b.size() - tripShared;
+            shared += tripShared;
+            union += tripUnion;
+            Trip trip = e.getKey();
+            logger.info(tripKey(trip) + ": " + a.size() + " sub-path links, " +
+                    b.size() + " via links, jaccard = " + (tripUnion > 0 ? (double) tripShared / tripUnion : 1.));
         }
+        logger.info("Validation: jaccard = " + (union > 0 ? (double) shared / union : 1.) +
+                ", mean absolute detour difference on shared links = " + (shared > 0 ? detourDiff / shared : 0.));
     }
 
     private static void writeHeader(String outputCsv) {
@@ -109,21 +176,23 @@ public class RunCorridors {
     }
 
 
-    private static void writeResults(Map<Trip, IdMap<Link,Double>> results, String outputCsv) {
+    private static void writeResults(Map<Trip, CorridorLinks> results, String outputCsv) {
         // Write results to combined CSV
         PrintWriter out = ioUtils.openFileForSequentialWriting(new File(outputCsv), true);
         assert out != null;
 
         // Write rows
-        for (Map.Entry<Trip, IdMap<Link,Double>> result : results.entrySet()) {
+        for (Map.Entry<Trip, CorridorLinks> result : results.entrySet()) {
 
-            for (Map.Entry<Id<Link>, Double> linkDetour : result.getValue().entrySet()) {
-                Id<Link> linkId = linkDetour.getKey();
+            int[] linkIndices = result.getValue().getLinkIndices();
+            double[] detours = result.getValue().getDetours();
+            for (int i = 0; i < linkIndices.length; i++) {
+                Id<Link> linkId = Id.get(linkIndices[i], Link.class);
                 String row = result.getKey().getHouseholdId() +
                         SEP + result.getKey().getPersonId() +
                         SEP + result.getKey().getTripId() +
                         SEP + linkId +
-                        SEP + (linkDetour.getValue() - 1.);
+                        SEP + (detours[i] - 1.);
                 out.println(row);
             }
         }
@@ -3,6 +3,7 @@ package diary;
 import estimation.RouteAttribute;
 import gis.GpkgReader;
 import io.ioUtils;
+import network.NetworkSnapper;
 import network.NetworkUtils2;
 import org.apache.log4j.Logger;
 import org.locationtech.jts.geom.Geometry;
@@ -11,21 +12,22 @@ import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.misc.Counter;
 import org.matsim.vehicles.Vehicle;
 import org.opengis.referencing.FactoryException;
+import resources.Properties;
 import resources.Resources;
 import routing.Bicycle;
 import routing.Gradient;
-import routing.disutility.JibeDisutility4;
+import routing.graph.ChoiceSetGenerator;
 import routing.disutility.components.JctStress;
 import routing.disutility.components.LinkAmbience;
 import routing.disutility.components.LinkStress;
 import routing.travelTime.WalkTravelTime;
 import diary.calculate.LogitDataCalculator;
 import io.DiaryReader;
+import trip.PathStore;
 import trip.Trip;
 
 import java.io.*;
@@ -41,21 +43,25 @@ public class RunMultiRouter {
 
     private final static int SAMPLES = 1000;
 
+    // Upper bounds of the sampled marginal costs (gradient, vgvi, stressLink, stressJct; 0 = not sampled), also used as
+    // the maximum weights of the choice set generator. Gradient: 0-30 for cycling, 0-2 for walking. Stress link: 0-10.
+    private final static double[] MC_MAX = {0., 2., 0., 30.};
+
     private final static String SEP = ",";
 
     public static void main(String[] args) throws IOException, FactoryException {
         if (args.length != 5) {
             throw new RuntimeException("Program requires 5 arguments: \n" +
                     "(0) Properties file \n" +
-                    "(1) Previous output csv file path \n" +
-                    "(2) New output csv file path\n" +
+                    "(1) Previous output file path (.csv or .bin) \n" +
+                    "(2) New output file path (.csv, or .bin for paths only)\n" +
                     "(3) Marginal costs file path\n" +
                     "(4) Mode");
         }
 
         Resources.initializeResources(args[0]);
-        String inputCsv = args[1];
-        String outputCsv = args[2];
+        String inputFile = args[1];
+        String outputFile = args[2];
         String mcCsv = args[3];
         String mode = args[4];
 
@@ -95,11 +101,12 @@ public class RunMultiRouter {
 
         // Precalculate origin/destination nodes for each trip
         logger.info("Precalculating origin and destination nodes...");
+        NetworkSnapper snapper = new NetworkSnapper(network);
         Iterator<Trip> it = selectedTrips.iterator();
         while(it.hasNext()) {
             Trip trip = it.next();
-            Node origNode = network.getNodes().get(NetworkUtils.getNearestLinkExactly(network, trip.getCoord(ORIGIN)).getToNode().getId());
-            Node destNode = network.getNodes().get(NetworkUtils.getNearestLinkExactly(network, trip.getCoord(DESTINATION)).getToNode().getId());
+            Node origNode = network.getNodes().get(snapper.getNearestLink(trip.getCoord(ORIGIN)).getToNode().getId());
+            Node destNode = network.getNodes().get(snapper.getNearestLink(trip.getCoord(DESTINATION)).getToNode().getId());
             if(origNode.equals(destNode)) {
                 it.remove();
                 logger.warn("HouseholdID " + trip.getHouseholdId() + " Person " + trip.getPersonId() + " Trip " + trip.getTripId() +
@@ -110,20 +117,24 @@ public class RunMultiRouter {
         }
 
         // READ PREVIOUS TRIPS
+        PathStore pathStore = new PathStore(selectedTrips);
         int currPathCount = 0;
-        if(inputCsv.endsWith(".csv")) {
-            readPreviousPaths(selectedTrips,inputCsv);
-            currPathCount = selectedTrips.stream().mapToInt(t -> t.getPaths().size()).sum();
+        if(inputFile.endsWith(".bin")) {
+            pathStore.read(inputFile);
+        } else if(inputFile.endsWith(".csv")) {
+            readPreviousPaths(pathStore,inputFile);
+        }
+        if(inputFile.endsWith(".bin") || inputFile.endsWith(".csv")) {
+            currPathCount = pathStore.getPathCount();
             logger.info("Passed over " + currPathCount + " paths from previous run(s).");
         }
 
         // GENERATE RANDOM NUMBERS AND WRITE SAMPLES
         logger.info("Randomly sampling " + SAMPLES + " sets of marginal cost values.");
-        double[] mcGradient = new double[SAMPLES]; //random.doubles(SAMPLES,0,100).toArray(); // 0-30 for cycling, 0-2 for walking
-        double[] mcVgvi = random.doubles(SAMPLES,0,2).toArray();
-        double[] mcStressLink = new double[SAMPLES]; //random.doubles(SAMPLES,0,10).toArray();
-        double[] mcStressJct = random.doubles(SAMPLES,0,30).toArray();
-        int[] newPathCount = new int[SAMPLES];
+        double[] mcGradient = sample(random, MC_MAX[0]);
+        double[] mcVgvi = sample(random, MC_MAX[1]);
+        double[] mcStressLink = sample(random, MC_MAX[2]);
+        double[] mcStressJct = sample(random, MC_MAX[3]);
 
         // ESTIMATE PATHS
         logger.info("Estimating paths...");
@@ -134,36 +145,53 @@ public class RunMultiRouter {
         disutilityComponents.add(new RouteAttribute("stressLink", l -> LinkStress.getStress(l,mode)));
         disutilityComponents.add(new RouteAttribute("stressJct", l -> JctStress.getStressProp(l,mode)));
 
-        LogitDataCalculator calc = new LogitDataCalculator(selectedTrips);
-        for (int i = 0 ; i < SAMPLES ; i++) {
-            logger.info("Estimating path for sample " + (i+1) + "...");
-            JibeDisutility4 disutility = new JibeDisutility4(network,veh,mode,tt,disutilityComponents,
-                    new double[] {mcGradient[i],mcVgvi[i],mcStressLink[i],mcStressJct[i]});
-            calc.calculate(veh,network,disutility,tt);
-            int thisPathCount = selectedTrips.stream().mapToInt(t -> t.getPaths().size()).sum();
-            newPathCount[i] = thisPathCount - currPathCount;
-            currPathCount = thisPathCount;
-            logger.info("Created " + newPathCount[i] + " new paths. Total path count = " + currPathCount);
-        }
+        LogitDataCalculator calc = new LogitDataCalculator(selectedTrips, pathStore);
+        String choiceSetMethod = Resources.instance.getString(Properties.CHOICE_SET_METHOD);
+        PrintWriter out;
+        if(choiceSetMethod != null && !choiceSetMethod.equalsIgnoreCase("sampling")) {
 
+            // Choice set generator, with maximum weights as in the sampling ranges
+            ChoiceSetGenerator.Method method = ChoiceSetGenerator.Method.valueOf(choiceSetMethod.toUpperCase());
+            String targetPathsProperty = Resources.instance.getString(Properties.CHOICE_SET_PATHS);
+            int targetPaths = targetPathsProperty != null ? Integer.parseInt(targetPathsProperty) : 10;
+            int newPaths = calc.calculateChoiceSets(veh,network,tt,mode,disutilityComponents,MC_MAX,method,targetPaths);
+            currPathCount = pathStore.getPathCount();
+            logger.info("Created " + newPaths + " new paths. Total path count = " + currPathCount);
+        } else {
+            double[][] sampleWeights = new double[SAMPLES][];
+            for (int i = 0 ; i < SAMPLES ; i++) {
+                sampleWeights[i] = new double[] {mcGradient[i],mcVgvi[i],mcStressLink[i],mcStressJct[i]};
+            }
+            int[] newPathCount = calc.calculateSamples(veh,network,tt,mode,disutilityComponents,sampleWeights);
+            currPathCount = pathStore.getPathCount();
+            logger.info("Created " + Arrays.stream(newPathCount).sum() + " new paths. Total path count = " + currPathCount);
 
-        // WRITE SAMPLE DATA
-        logger.info("Writing randomly sampled marginal cost values to " + mcCsv);
-        File mcCsvFile = new File(mcCsv);
-        boolean writeHeader = !mcCsvFile.exists();
-        PrintWriter out = ioUtils.openFileForSequentialWriting(mcCsvFile,true);
-        assert out != null;
-        if(writeHeader) {
-            out.println("mcGradient" + SEP + "mcVgvi" + SEP + "mcStressLink" + SEP + "mcStressJct" + SEP + "newPathCount");
-        }
-        for(int i = 0 ; i < SAMPLES ; i++) {
-            out.println(mcGradient[i] + SEP + mcVgvi[i] + SEP + mcStressLink[i] + SEP + mcStressJct[i] + SEP + newPathCount[i]);
+            // WRITE SAMPLE DATA
+            logger.info("Writing randomly sampled marginal cost values to " + mcCsv);
+            File mcCsvFile = new File(mcCsv);
+            boolean writeHeader = !mcCsvFile.exists();
+            out = ioUtils.openFileForSequentialWriting(mcCsvFile,true);
+            assert out != null;
+            if(writeHeader) {
+                out.println("mcGradient" + SEP + "mcVgvi" + SEP + "mcStressLink" + SEP + "mcStressJct" + SEP + "newPathCount");
+            }
+            for(int i = 0 ; i < SAMPLES ; i++) {
+                out.println(mcGradient[i] + SEP + mcVgvi[i] + SEP + mcStressLink[i] + SEP + mcStressJct[i] + SEP + newPathCount[i]);
+            }
+            out.close();
         }
-        out.close();
 
         // WRITE PATH RESULTS
-        logger.info("Writing routes to " + outputCsv);
-        out = ioUtils.openFileForSequentialWriting(new File(outputCsv), false);
+        if(outputFile.endsWith(".bin")) {
+            pathStore.write(outputFile);
+            return;
+        }
+        logger.info("Writing routes to " + outputFile);
+        Link[] links = new Link[Id.getNumberOfIds(Link.class)];
+        for(Link link : network.getLinks().values()) {
+            links[link.getId().index()] = link;
+        }
+        out = ioUtils.openFileForSequentialWriting(new File(outputFile), false);
         assert out != null;
 
         // Write header
@@ -174,17 +202,17 @@ public class RunMultiRouter {
         // Write routes
         for(Trip trip : selectedTrips) {
             int pathId = 0;
-            for(List<Id<Link>> path : trip.getPaths()) {
-                StringBuilder links = new StringBuilder();
+            for(int[] path : pathStore.getPaths(trip)) {
+                StringBuilder linkIds = new StringBuilder();
                 double distance = 0.;
                 double travelTime = 0.;
                 double gradient = 0.;
                 double vgvi = 0.;
                 double stressLink = 0.;
                 double stressJct = 0.;
-                for(Id<Link> linkId : path) {
-                    Link link = network.getLinks().get(linkId);
-                    links.append(linkId.toString()).append("-");
+                for(int linkIdx : path) {
+                    Link link = links[linkIdx];
+                    linkIds.append(link.getId().toString()).append("-");
                     double linkLength = link.getLength();
                     double linkTime = tt.getLinkTravelTime(link,trip.getStartTime(),null,veh);
                     distance += linkLength;
@@ -197,17 +225,21 @@ public class RunMultiRouter {
                         stressJct += linkTime * (junctionWidth / linkLength) * JctStress.getStress(link,mode);
                     }
                 }
-                links.deleteCharAt(links.length() - 1);
+                linkIds.deleteCharAt(linkIds.length() - 1);
                 out.println(trip.getHouseholdId() + SEP + trip.getPersonId() + SEP + trip.getTripId() + SEP + pathId + SEP +
                         distance + SEP + travelTime + SEP + gradient + SEP + vgvi + SEP + stressLink + SEP + stressJct + SEP +
-                        links);
+                        linkIds);
                 pathId++;
             }
         }
         out.close();
     }
 
-    private static void readPreviousPaths(Set<Trip> trips, String inputCsv) throws IOException {
+    private static double[] sample(Random random, double max) {
+        return max > 0. ? random.doubles(SAMPLES,0,max).toArray() : new double[SAMPLES];
+    }
+
+    private static void readPreviousPaths(PathStore pathStore, String inputCsv) throws IOException {
         Counter counter = new Counter("Line-");
         BufferedReader in = new BufferedReader(new FileReader(inputCsv));
         in.readLine();
@@ -219,29 +251,16 @@ public class RunMultiRouter {
             String householdId = lineElements[0];
             int personId = Integer.parseInt(lineElements[1]);
             int tripId = Integer.parseInt(lineElements[2]);
-            Trip trip = findTrip(trips,householdId,personId,tripId);
+            Trip trip = pathStore.getTrip(householdId,personId,tripId);
 
             String[] linkIds = lineElements[10].split("-");
-            List<Id<Link>> path = new ArrayList<>();
-            for (String linkId : linkIds) {
-                path.add(Id.createLinkId(linkId));
+            int[] path = new int[linkIds.length];
+            for (int i = 0 ; i < linkIds.length ; i++) {
+                path[i] = Id.createLinkId(linkIds[i]).index();
             }
-            trip.addPathFast(path);
+            pathStore.add(trip,path);
         }
         in.close();
         logger.info("Read " + counter.getCounter() + " existing paths.");
     }
-
-    private static Trip findTrip(Set<Trip> trips, String householdId, int personId, int tripId) {
-        for(Trip trip : trips) {
-            if(trip.getHouseholdId().equals(householdId)) {
-                if(trip.getPersonId() == personId) {
-                    if(trip.getTripId() == tripId) {
-                        return trip;
-                    }
-                }
-            }
-        }
-        throw new RuntimeException("Trip from CSV not found! HouseholdId: " + householdId + ", personId: " + personId + ", tripId: " + tripId);
-    }
 }
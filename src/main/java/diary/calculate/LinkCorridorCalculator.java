@@ -1,5 +1,6 @@
 package diary.calculate;
 
+import network.NetworkSnapper;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
@@ -8,12 +9,12 @@ import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.population.Person;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.population.PopulationUtils;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.utils.misc.Counter;
 import org.matsim.vehicles.Vehicle;
 import resources.Resources;
+import routing.graph.LcpPathCalculator;
 import routing.graph.SimpleTree;
 import routing.graph.SpeedyGraph;
 import trip.Place;
@@ -34,11 +35,35 @@ public final class LinkCorridorCalculator {
 
     public static final Logger log = Logger.getLogger(LinkCorridorCalculator.class);
 
-    public static Map<Trip,IdMap<Link,Double>> calculate(Collection<Trip> trips, Place origin, Place destination,
+    // SUBPATH: largest stretch of any sub-path crossing the link (all-pairs matrix per corridor).
+    // VIA_LINK: global stretch of the shortest path through the link (forward and backward trees only).
+    public enum Engine { SUBPATH, VIA_LINK }
+
+    public static Map<Trip,CorridorLinks> calculate(Collection<Trip> trips, Place origin, Place destination,
                                                          TravelDisutility td, Vehicle vehicle, Network routingNetwork, Network xy2lNetwork, double distDetour) {
+        return calculate(trips, origin, destination, td, vehicle, routingNetwork, xy2lNetwork, distDetour, Engine.SUBPATH);
+    }
+
+    public static Map<Trip,CorridorLinks> calculate(Collection<Trip> trips, Place origin, Place destination,
+                                                         TravelDisutility td, Vehicle vehicle, Network routingNetwork, Network xy2lNetwork,
+                                                         double distDetour, Engine engine) {
 
         int numberOfThreads = Resources.instance.getInt(resources.Properties.NUMBER_OF_THREADS);
         SpeedyGraph graph = new SpeedyGraph(routingNetwork,null,td,PERSON,vehicle);
+        NetworkSnapper snapper = new NetworkSnapper(xy2lNetwork);
+
+        // Optional per-worker memory budget for the pairwise cost matrix. Without it, corridors are limited to
+        // MAX_MATRIX_DIM nodes as before; with a smaller budget, more corridors get a reduced outer detour limit.
+        int maxDim = MAX_MATRIX_DIM;
+        String budgetProperty = Resources.instance.getString(resources.Properties.CORRIDOR_MEMORY_MB);
+        if(budgetProperty != null) {
+            long budgetBytes = Long.parseLong(budgetProperty) * 1024 * 1024;
+            maxDim = (int) Math.min(MAX_MATRIX_DIM, Math.sqrt(budgetBytes / (double) Double.BYTES));
+            log.info("Corridor matrix budget: " + budgetProperty + " MB per worker (up to " + maxDim + " nodes per corridor).");
+            if(maxDim < MAX_MATRIX_DIM) {
+                log.warn("Corridors with more than " + maxDim + " nodes (default " + MAX_MATRIX_DIM + ") use a reduced detour limit.");
+            }
+        }
 
         // prepare calculation
         ConcurrentLinkedQueue<Trip> odPairsQueue = new ConcurrentLinkedQueue<>(trips);
@@ -47,7 +72,7 @@ public final class LinkCorridorCalculator {
         Thread[] threads = new Thread[numberOfThreads];
         RouteWorker[] workers = new RouteWorker[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            workers[i] = new RouteWorker(odPairsQueue, counter, origin, destination, routingNetwork, xy2lNetwork, graph, distDetour);
+            workers[i] = new RouteWorker(odPairsQueue, counter, origin, destination, routingNetwork, snapper, graph, distDetour, maxDim, engine);
             threads[i] = new Thread(workers[i], "Accessibility-" + i);
             threads[i].start();
         }
@@ -62,7 +87,7 @@ public final class LinkCorridorCalculator {
         }
 
         // Combine results
-        Map<Trip,IdMap<Link,Double>> allResults = new HashMap<>();
+        Map<Trip,CorridorLinks> allResults = new HashMap<>();
         for (int i = 0; i < numberOfThreads; i++) {
             allResults.putAll(workers[i].results);
         }
@@ -76,31 +101,39 @@ public final class LinkCorridorCalculator {
         private final Place origin;
         private final Place destination;
         private final Network routingNetwork;
-        private final Network xy2lNetwork;
+        private final NetworkSnapper snapper;
         private final SpeedyGraph graph;
         private final double detourLimit;
+        private final int maxDim;
+        private final Engine engine;
         private final int[] ref;
-        private final double[][] matrix;
+        private int[] localNodes;
+        private int dim;
+        private double[] matrix = new double[0];
         private final SimpleTree origTree;
         private final SimpleTree destTree;
-        private final Map<Trip,IdMap<Link,Double>> results;
+        private final LcpPathCalculator pairCalculator;
+        private final Map<Trip,CorridorLinks> results;
 
         public RouteWorker(ConcurrentLinkedQueue<Trip> trips, Counter counter,
                            Place origin, Place destination,
-                           Network routingNetwork, Network xy2lNetwork, SpeedyGraph graph,
-                           double detourLimit) {
+                           Network routingNetwork, NetworkSnapper snapper, SpeedyGraph graph,
+                           double detourLimit, int maxDim, Engine engine) {
             this.trips = trips;
             this.counter = counter;
             this.origin = origin;
             this.destination = destination;
             this.routingNetwork = routingNetwork;
-            this.xy2lNetwork = xy2lNetwork;
+            this.snapper = snapper;
             this.graph = graph;
             this.detourLimit = detourLimit;
+            this.maxDim = maxDim;
+            this.engine = engine;
             this.ref = new int[graph.getNodeCount()];
-            this.matrix = new double[MAX_MATRIX_DIM+500][MAX_MATRIX_DIM+500];
+            this.localNodes = new int[1024];
             this.origTree = new SimpleTree(graph);
             this.destTree = new SimpleTree(graph);
+            this.pairCalculator = new LcpPathCalculator(graph);
             this.results = new HashMap<>(trips.size() / Resources.instance.getInt(resources.Properties.NUMBER_OF_THREADS));
         }
 
@@ -120,13 +153,11 @@ public final class LinkCorridorCalculator {
                 if (trip.routable(origin, destination)) {
 
                     IdMap<Link, Double> linkDetours = new IdMap<>(Link.class);
-                    Map<Integer, Double> fromNodeIdxDetours = new HashMap<>();
-                    Map<Integer, Double> toNodeIdxDetours = new HashMap<>();
 
                     Coord cOrig = trip.getCoord(origin);
                     Coord cDest = trip.getCoord(destination);
-                    Node nOrig = routingNetwork.getNodes().get(NetworkUtils.getNearestLinkExactly(xy2lNetwork, cOrig).getToNode().getId());
-                    Node nDest = routingNetwork.getNodes().get(NetworkUtils.getNearestLinkExactly(xy2lNetwork, cDest).getToNode().getId());
+                    Node nOrig = routingNetwork.getNodes().get(snapper.getNearestLink(cOrig).getToNode().getId());
+                    Node nDest = routingNetwork.getNodes().get(snapper.getNearestLink(cDest).getToNode().getId());
                     int startNodeIdx = nOrig.getId().index();
                     int endNodeIdx = nDest.getId().index();
 
@@ -143,60 +174,153 @@ public final class LinkCorridorCalculator {
                     int validNodes = updateReference(shortestDist * this.detourLimit);
                     log.info(tripName + ": " + shortestDist + " metres. " + validNodes + " nodes within " + this.detourLimit + " detour.");
 
-                    if (validNodes > MAX_MATRIX_DIM) {
-                        log.info(tripName + ": Reducing outer detour limit...");
-                        double[] dist = new double[validNodes];
-                        for (int i = 0; i < graph.getNodeCount(); i++) {
-                            if (ref[i] != -1) {
-                                dist[ref[i]] = origTree.getCost(i) + destTree.getCost(i);
-                            }
+                    int c;
+                    if (engine == Engine.VIA_LINK) {
+                        c = viaLinkCorridor(tripName, shortestDist, linkDetours);
+                    } else {
+                        c = subPathCorridor(tripName, shortestDist, validNodes, startNodeIdx, endNodeIdx, linkDetours);
+                    }
+
+                    // Store results
+                    results.put(trip,CorridorLinks.fromMap(linkDetours));
+                    log.info(tripName + ": " + shortestDist + " metres. " + c + " links.");
+
+                } else {
+                    log.info(tripName + ": NOT ROUTABLE!");
+                }
+            }
+        }
+
+        // Detour of each link as the largest stretch of any sub-path of its via path crossing the link (nested walks
+        // up both trees against the corridor's all-pairs matrix)
+        private int subPathCorridor(String tripName, double shortestDist, int validNodes, int startNodeIdx, int endNodeIdx,
+                                    IdMap<Link, Double> linkDetours) {
+            Map<Integer, Double> fromNodeIdxDetours = new HashMap<>();
+            Map<Integer, Double> toNodeIdxDetours = new HashMap<>();
+
+            if (validNodes > maxDim) {
+                log.info(tripName + ": Reducing outer detour limit...");
+                double[] dist = new double[validNodes];
+                for (int k = 0; k < validNodes; k++) {
+                    dist[k] = origTree.getCost(localNodes[k]) + destTree.getCost(localNodes[k]);
+                }
+                Arrays.sort(dist);
+
+                // Exclude ties at the limit so the budget is never exceeded
+                int m = maxDim - 1;
+                while (m > 0 && dist[m] == dist[maxDim]) {
+                    m--;
+                }
+                double maxCost = dist[m];
+                validNodes = updateReference(maxCost);
+                log.info(tripName + ": " + shortestDist + " metres. " + validNodes + " nodes within " + maxCost / shortestDist + " detour.");
+            }
+
+            // Updating shortest distance matrix for region
+            log.info(tripName + ": Updating shortest cost matrix...");
+            updateMatrix();
+            assert shortestDist == matrix[ref[startNodeIdx] * dim + ref[endNodeIdx]];
+
+            // Identify & tree from all candidate nodes
+            SpeedyGraph.LinkIterator li = graph.getOutLinkIterator();
+            int c = 0;
+            for (int k = 0; k < dim; k++) {
+                int i = localNodes[k];
+                li.reset(i);
+                while (li.next()) {
+                    int linkIdx = li.getLinkIndex();
+                    int j = li.getToNodeIndex();
+                    if (ref[j] != -1) {
+                        double maxDetour = getMaxDetour(i, j, graph.getLinkDisutility(linkIdx),tripName);
+                        if (maxDetour < this.detourLimit) {
+                            c++;
+                            linkDetours.put(graph.getLink(linkIdx).getId(), maxDetour);
+                            fromNodeIdxDetours.put(i, maxDetour);
+                            toNodeIdxDetours.put(j, maxDetour);
                         }
-                        Arrays.sort(dist);
-                        validNodes = updateReference(dist[MAX_MATRIX_DIM-1]);
-                        log.info(tripName + ": " + shortestDist + " metres. " + validNodes + " nodes within " + dist[MAX_MATRIX_DIM-1] / shortestDist + " detour.");
                     }
+                }
+            }
 
-                    // Updating shortest distance matrix for region
-                    log.info(tripName + ": Updating shortest cost matrix...");
-                    updateMatrix(startNodeIdx,endNodeIdx);
-                    assert shortestDist == matrix[ref[startNodeIdx]][ref[endNodeIdx]];
+            // Loop over again and fill in gaps
+            fillGaps(origTree, linkDetours, fromNodeIdxDetours);
+            fillGaps(destTree, linkDetours, toNodeIdxDetours);
+            return c;
+        }
 
-                    // Identify & tree from all candidate nodes
-                    SpeedyGraph.LinkIterator li = graph.getOutLinkIterator();
-                    int c = 0;
-                    for (int i = 0; i < graph.getNodeCount(); i++) {
-                        if (ref[i] != -1) {
-                            li.reset(i);
-                            while (li.next()) {
-                                int linkIdx = li.getLinkIndex();
-                                int j = li.getToNodeIndex();
-                                if (ref[j] != -1) {
-                                    double maxDetour = getMaxDetour(i, j, graph.getLinkDisutility(linkIdx),tripName);
-                                    if (maxDetour < this.detourLimit) {
-                                        c++;
-                                        linkDetours.put(graph.getLink(linkIdx).getId(), maxDetour);
-                                        fromNodeIdxDetours.put(i, maxDetour);
-                                        toNodeIdxDetours.put(j, maxDetour);
-                                    }
-                                }
+        // Via-link detour: (origin cost + link cost + destination cost) / shortest cost, i.e. the global stretch of the
+        // shortest path forced through the link. Each link's via path is the origin tree path to its from-node, the link,
+        // and the destination tree path from its to-node, so tree links take the lowest detour of any via path through them.
+        // Sub-path stretch is not checked. Plateau links (on both trees) are counted for diagnostics.
+        // Linear in the corridor size, plus one sort per tree.
+        private int viaLinkCorridor(String tripName, double shortestDist, IdMap<Link, Double> linkDetours) {
+            double[] fwdDetour = new double[dim];
+            double[] bwdDetour = new double[dim];
+            Arrays.fill(fwdDetour, Double.POSITIVE_INFINITY);
+            Arrays.fill(bwdDetour, Double.POSITIVE_INFINITY);
+
+            SpeedyGraph.LinkIterator li = graph.getOutLinkIterator();
+            int c = 0;
+            int plateauLinks = 0;
+            for (int k = 0; k < dim; k++) {
+                int i = localNodes[k];
+                li.reset(i);
+                while (li.next()) {
+                    int linkIdx = li.getLinkIndex();
+                    int j = li.getToNodeIndex();
+                    if (ref[j] != -1) {
+                        double detour = (origTree.getCost(i) + graph.getLinkDisutility(linkIdx) + destTree.getCost(j)) / shortestDist;
+                        if (detour < this.detourLimit) {
+                            c++;
+                            if (origTree.getComingFromLink(j) == linkIdx && destTree.getComingFromLink(i) == linkIdx) {
+                                plateauLinks++;
                             }
+                            putMin(linkDetours, linkIdx, detour);
+                            fwdDetour[k] = Math.min(fwdDetour[k], detour);
+                            bwdDetour[ref[j]] = Math.min(bwdDetour[ref[j]], detour);
                         }
                     }
+                }
+            }
 
-                    // Loop over again and fill in gaps
-                    fillGaps(origTree, linkDetours, fromNodeIdxDetours);
-                    fillGaps(destTree, linkDetours, toNodeIdxDetours);
+            // Pass the lowest detour back up each tree (children before parents), covering the tree parts of all via paths
+            propagate(origTree, fwdDetour, linkDetours);
+            propagate(destTree, bwdDetour, linkDetours);
 
-                    // Store results
-                    results.put(trip,linkDetours);
-                    log.info(tripName + ": " + shortestDist + " metres. " + c + " links.");
+            log.info(tripName + ": " + plateauLinks + " of " + c + " via links on plateaus.");
+            return c;
+        }
 
-                } else {
-                    log.info(tripName + ": NOT ROUTABLE!");
+        private void propagate(SimpleTree tree, double[] nodeDetour, IdMap<Link, Double> linkDetours) {
+            Integer[] order = new Integer[dim];
+            for (int k = 0; k < dim; k++) {
+                order[k] = k;
+            }
+            Arrays.sort(order, (a, b) -> Double.compare(tree.getCost(localNodes[b]), tree.getCost(localNodes[a])));
+            for (int k : order) {
+                double detour = nodeDetour[k];
+                int nodeIdx = localNodes[k];
+                int linkIdx = tree.getComingFromLink(nodeIdx);
+                if (Double.isInfinite(detour) || linkIdx == -1) {
+                    continue;
+                }
+                putMin(linkDetours, linkIdx, detour);
+                int parent = ref[tree.getComingFrom(nodeIdx)];
+                if (parent != -1 && detour < nodeDetour[parent]) {
+                    nodeDetour[parent] = detour;
                 }
             }
         }
 
+        private void putMin(IdMap<Link, Double> linkDetours, int linkIdx, double detour) {
+            Id<Link> link = graph.getLink(linkIdx).getId();
+            Double current = linkDetours.get(link);
+            if (current == null || detour < current) {
+                linkDetours.put(link, detour);
+            }
+        }
+
+        // Compact local indices (ref: graph -> local, localNodes: local -> graph) of nodes within the cost limit
         private int updateReference(double maxCost) {
             Arrays.fill(ref, -1);
             int refIdx = 0;
@@ -204,26 +328,30 @@ public final class LinkCorridorCalculator {
                 double origCost = origTree.getCost(i);
                 double destCost = destTree.getCost(i);
                 if (origCost + destCost <= maxCost) {
+                    if (refIdx == localNodes.length) {
+                        localNodes = Arrays.copyOf(localNodes, refIdx * 2);
+                    }
+                    localNodes[refIdx] = i;
                     ref[i] = refIdx;
                     refIdx++;
                 }
             }
+            dim = refIdx;
             return refIdx;
         }
 
-        private void updateMatrix(int startNodeIdx, int endNodeIdx) {
-            for(double[] row : matrix) {
-                Arrays.fill(row,Double.NaN);
+        // Pairwise costs between corridor nodes, as a dim x dim matrix (only grown, never beyond maxDim x maxDim).
+        // Trees run on the full graph (shortest paths between corridor nodes may leave the corridor) and stop once every
+        // corridor node is settled, so all costs are exact.
+        private void updateMatrix() {
+            if (matrix.length < dim * dim) {
+                matrix = new double[dim * dim];
             }
-            SimpleTree iTree = new SimpleTree(graph);
-            for (int i = 0; i < graph.getNodeCount(); i++) {
-                if (ref[i] != -1) {
-                    iTree.calculate(startNodeIdx, endNodeIdx, i, -1, true);
-                    for (int j = 0; j < graph.getNodeCount(); j++) {
-                        if (ref[j] != -1) {
-                            matrix[ref[i]][ref[j]] = iTree.getCost(j);
-                        }
-                    }
+            for (int k = 0; k < dim; k++) {
+                pairCalculator.calculate(localNodes[k], localNodes, dim);
+                int row = k * dim;
+                for (int l = 0; l < dim; l++) {
+                    matrix[row + l] = pairCalculator.getSettledCost(localNodes[l]);
                 }
             }
         }
@@ -268,7 +396,11 @@ public final class LinkCorridorCalculator {
                         if(refCurrIdxB != -1) {
                             double costB = destTree.getCost(currIdxB);
                             double pathDist = totalCost - costA - costB;
-                            double shortDist = matrix[refCurrIdxA][refCurrIdxB];
+                            double shortDist = matrix[refCurrIdxA * dim + refCurrIdxB];
+                            if (Double.isInfinite(shortDist)) {
+                                log.warn(tripName + ": no path between corridor nodes " + currIdxA + " and " + currIdxB);
+                                return Double.POSITIVE_INFINITY;
+                            }
                             double detour = pathDist / shortDist;
                             if (detour > this.detourLimit) {
                                 return detour;
@@ -1,47 +1,123 @@
 package diary.calculate;
 
+import estimation.RouteAttribute;
 import org.apache.log4j.Logger;
-import org.matsim.api.core.v01.Identifiable;
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
-import org.matsim.core.router.FastDijkstraFactory;
-import org.matsim.core.router.util.LeastCostPathCalculator;
-import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.misc.Counter;
 import org.matsim.vehicles.Vehicle;
 import resources.Properties;
 import resources.Resources;
+import routing.graph.ChoiceSetGenerator;
+import routing.graph.LcpPathCalculator;
+import routing.graph.SpeedyGraph;
+import trip.PathStore;
 import trip.Trip;
+import trip.TripScheduler;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.stream.Collectors;
 
 public class LogitDataCalculator {
 
     private final static Logger logger = Logger.getLogger(LogitDataCalculator.class);
     private final int numberOfThreads;
     private final Set<Trip> trips;
+    private final PathStore pathStore;
 
-    public LogitDataCalculator(Set<Trip> trips) {
+    public LogitDataCalculator(Set<Trip> trips, PathStore pathStore) {
         this.numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
         this.trips = trips;
+        this.pathStore = pathStore;
     }
 
-    public void calculate(Vehicle vehicle, Network network,
-                          TravelDisutility travelDisutility, TravelTime travelTime) {
+    // Routes all trips once per sample of JibeDisutility4-style weights (link time * (1 + sum of weight * attribute)),
+    // with samples processed in parallel. The graph topology, link times and attribute values are shared and each
+    // worker refills its own disutility buffer per sample. Returns the number of new paths found by each sample, counting
+    // a path found by several samples for the lowest of them.
+    public int[] calculateSamples(Vehicle vehicle, Network network, TravelTime travelTime, String mode,
+                                  List<RouteAttribute> attributes, double[][] weights) {
 
-        logger.info("Calculating logitData indicators.");
+        logger.info("Calculating logitData indicators for " + weights.length + " samples.");
+        checkWeights(attributes, weights);
 
-        // Do calculation
-        ConcurrentLinkedQueue<Trip> odPairsQueue = new ConcurrentLinkedQueue<>(trips);
+        // Shared graph, link times (NaN if the mode is not allowed) and attribute values
+        SpeedyGraph graph = new SpeedyGraph(network, travelTime, null, null, vehicle);
+        double[] linkTimes = linkTimes(graph, mode);
+        double[][] attributeValues = attributeValues(graph, attributes);
+        List<TripScheduler.Group> groups = new ArrayList<>(TripScheduler.byOrigin(trips));
 
+        ConcurrentLinkedQueue<Integer> samplesQueue = new ConcurrentLinkedQueue<>();
+        for(int i = 0 ; i < weights.length ; i++) {
+            samplesQueue.add(i);
+        }
+
+        Counter counter = new Counter("Sample ", " / " + weights.length);
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            SampleWorker worker = new SampleWorker(samplesQueue, counter, weights, graph, linkTimes, attributeValues,
+                    groups, pathStore);
+            threads[i] = new Thread(worker, "LogitDataCalculator-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // New paths by the lowest sample that found them, as if the samples had run one after another
+        return pathStore.countNewPaths(weights.length);
+    }
+
+    // Choice sets from a ChoiceSetGenerator instead of random samples. LABELLING routes on a time-only layer, one layer
+    // per attribute with a non-zero maximum weight, and a layer with all maximum weights. The other methods use half
+    // the maximum weights. Returns the number of new paths.
+    public int calculateChoiceSets(Vehicle vehicle, Network network, TravelTime travelTime, String mode,
+                                   List<RouteAttribute> attributes, double[] maxWeights,
+                                   ChoiceSetGenerator.Method method, int targetPaths) {
+
+        logger.info("Calculating logitData indicators with " + method + " choice sets of up to " + targetPaths + " paths.");
+        checkWeights(attributes, new double[][] {maxWeights});
+
+        // Weight layers
+        List<double[]> layerWeights = new ArrayList<>();
+        if(method.equals(ChoiceSetGenerator.Method.LABELLING)) {
+            layerWeights.add(new double[maxWeights.length]);
+            for(int j = 0 ; j < maxWeights.length ; j++) {
+                if(maxWeights[j] > 0) {
+                    double[] dominant = new double[maxWeights.length];
+                    dominant[j] = maxWeights[j];
+                    layerWeights.add(dominant);
+                }
+            }
+            layerWeights.add(maxWeights);
+        } else {
+            layerWeights.add(Arrays.stream(maxWeights).map(w -> w / 2.).toArray());
+        }
+
+        // Shared graph and disutility layers
+        SpeedyGraph graph = new SpeedyGraph(network, travelTime, null, null, vehicle);
+        double[] linkTimes = linkTimes(graph, mode);
+        double[][] attributeValues = attributeValues(graph, attributes);
+        double[][] layers = new double[layerWeights.size()][graph.getLinkCount()];
+        for(int i = 0 ; i < layers.length ; i++) {
+            fillDisutility(layers[i], layerWeights.get(i), linkTimes, attributeValues, graph);
+        }
+
+        int pathCount = pathStore.getPathCount();
+        ConcurrentLinkedQueue<Trip> tripsQueue = new ConcurrentLinkedQueue<>(trips);
         Counter counter = new Counter("Route ", " / " + trips.size());
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            LeastCostPathCalculator dijkstra = new FastDijkstraFactory(false).
-                    createPathCalculator(network, travelDisutility, travelTime);
-            TripWorker worker = new TripWorker(odPairsQueue, counter, vehicle, dijkstra);
+            ChoiceSetGenerator generator = new ChoiceSetGenerator(graph);
+            generator.setTargetPaths(targetPaths);
+            ChoiceSetWorker worker = new ChoiceSetWorker(tripsQueue, counter, generator, method, layers, pathStore);
             threads[i] = new Thread(worker, "LogitDataCalculator-" + i);
             threads[i].start();
         }
@@ -54,24 +130,85 @@ public class LogitDataCalculator {
                 e.printStackTrace();
             }
         }
+        return pathStore.getPathCount() - pathCount;
     }
 
-    static class TripWorker implements Runnable {
+    private static void checkWeights(List<RouteAttribute> attributes, double[][] weights) {
+        for(double[] sampleWeights : weights) {
+            if(sampleWeights.length != attributes.size()) {
+                throw new RuntimeException("Size of marginal weights array (" + sampleWeights.length + ") does not match size of attributes array (" + attributes.size() + ")");
+            }
+            for(int j = 0 ; j < sampleWeights.length ; j++) {
+                if(sampleWeights[j] < 0) {
+                    throw new RuntimeException("Weight for parameter \"" + attributes.get(j).getName() + "\" < 0! Cannot compute disutilities!");
+                }
+            }
+        }
+    }
 
-        private final ConcurrentLinkedQueue<Trip> trips;
-        private final Counter counter;
+    // Link times by link index (NaN if the mode is not allowed)
+    private static double[] linkTimes(SpeedyGraph graph, String mode) {
+        double[] linkTimes = new double[graph.getLinkCount()];
+        for(int i = 0 ; i < linkTimes.length ; i++) {
+            Link link = graph.getLink(i);
+            if(link != null) {
+                linkTimes[i] = link.getAllowedModes().contains(mode) ? graph.getLinkTime(i) : Double.NaN;
+            }
+        }
+        return linkTimes;
+    }
 
-        private final Vehicle vehicle;
+    // Attribute values by attribute and link index
+    private static double[][] attributeValues(SpeedyGraph graph, List<RouteAttribute> attributes) {
+        double[][] attributeValues = new double[attributes.size()][graph.getLinkCount()];
+        for(int i = 0 ; i < graph.getLinkCount() ; i++) {
+            Link link = graph.getLink(i);
+            if(link != null) {
+                for(int j = 0 ; j < attributes.size() ; j++) {
+                    attributeValues[j][i] = attributes.get(j).getValue(link);
+                }
+            }
+        }
+        return attributeValues;
+    }
+
+    // Link time * (1 + sum of weight * attribute value), one attribute column at a time
+    private static void fillDisutility(double[] linkDisutility, double[] weights, double[] linkTimes,
+                                       double[][] attributeValues, SpeedyGraph graph) {
+        int linkCount = linkTimes.length;
+        Arrays.fill(linkDisutility, 1.);
+        for(int j = 0 ; j < weights.length ; j++) {
+            double weight = weights[j];
+            double[] values = attributeValues[j];
+            for(int i = 0 ; i < linkCount ; i++) {
+                linkDisutility[i] += weight * values[i];
+            }
+        }
+        for(int i = 0 ; i < linkCount ; i++) {
+            linkDisutility[i] *= linkTimes[i];
+            if(Double.isNaN(linkDisutility[i]) && graph.getLink(i) != null && !Double.isNaN(linkTimes[i])) {
+                throw new RuntimeException("Null disutility for link " + graph.getLink(i).getId().toString());
+            }
+        }
+    }
 
-        private final LeastCostPathCalculator pathCalculator;
+    static class ChoiceSetWorker implements Runnable {
 
+        private final ConcurrentLinkedQueue<Trip> trips;
+        private final Counter counter;
+        private final ChoiceSetGenerator generator;
+        private final ChoiceSetGenerator.Method method;
+        private final double[][] layers;
+        private final PathStore pathStore;
 
-        public TripWorker(ConcurrentLinkedQueue<Trip> trips, Counter counter,
-                          Vehicle vehicle, LeastCostPathCalculator pathCalculator) {
+        ChoiceSetWorker(ConcurrentLinkedQueue<Trip> trips, Counter counter, ChoiceSetGenerator generator,
+                        ChoiceSetGenerator.Method method, double[][] layers, PathStore pathStore) {
             this.trips = trips;
             this.counter = counter;
-            this.vehicle = vehicle;
-            this.pathCalculator = pathCalculator;
+            this.generator = generator;
+            this.method = method;
+            this.layers = layers;
+            this.pathStore = pathStore;
         }
 
         public void run() {
@@ -83,8 +220,69 @@ public class LogitDataCalculator {
                 }
 
                 this.counter.incCounter();
-                LeastCostPathCalculator.Path path = pathCalculator.calcLeastCostPath(trip.getOrigNode(), trip.getDestNode(), trip.getStartTime(), null, vehicle);
-                trip.addPath(path.links.stream().map(Identifiable::getId).collect(Collectors.toList()));
+                int origNode = trip.getOrigNode().getId().index();
+                int destNode = trip.getDestNode().getId().index();
+                for(int[] path : generator.generate(method, origNode, destNode, layers)) {
+                    pathStore.add(trip, path);
+                }
+            }
+        }
+    }
+
+    static class SampleWorker implements Runnable {
+
+        private final ConcurrentLinkedQueue<Integer> samples;
+        private final Counter counter;
+        private final double[][] weights;
+        private final SpeedyGraph graph;
+        private final double[] linkTimes;
+        private final double[][] attributeValues;
+        private final List<TripScheduler.Group> groups;
+        private final PathStore pathStore;
+
+        private final double[] linkDisutility;
+        private final LcpPathCalculator pathCalculator;
+
+        SampleWorker(ConcurrentLinkedQueue<Integer> samples, Counter counter, double[][] weights, SpeedyGraph graph,
+                     double[] linkTimes, double[][] attributeValues, List<TripScheduler.Group> groups,
+                     PathStore pathStore) {
+            this.samples = samples;
+            this.counter = counter;
+            this.weights = weights;
+            this.graph = graph;
+            this.linkTimes = linkTimes;
+            this.attributeValues = attributeValues;
+            this.groups = groups;
+            this.pathStore = pathStore;
+            this.linkDisutility = new double[linkTimes.length];
+            this.pathCalculator = new LcpPathCalculator(graph);
+            this.pathCalculator.setLinkDisutility(linkDisutility);
+        }
+
+        public void run() {
+
+            while(true) {
+                Integer sample = this.samples.poll();
+                if(sample == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                fillDisutility(linkDisutility, weights[sample], linkTimes, attributeValues, graph);
+
+                for(TripScheduler.Group group : groups) {
+                    Trip[] groupTrips = group.getTrips();
+                    int[] destinationNodes = group.getDestinationNodes();
+                    pathCalculator.calculate(group.getOriginNode(), destinationNodes, groupTrips.length);
+                    for(int i = 0 ; i < groupTrips.length ; i++) {
+                        int[] path = pathCalculator.getPath(destinationNodes[i]);
+                        if(path == null) {
+                            throw new RuntimeException("No path for household " + groupTrips[i].getHouseholdId() +
+                                    " person " + groupTrips[i].getPersonId() + " trip " + groupTrips[i].getTripId());
+                        }
+                        pathStore.add(groupTrips[i], path, sample);
+                    }
+                }
             }
         }
     }
@@ -1,21 +1,25 @@
 package diary.calculate;
 
+import network.NetworkSnapper;
 import org.matsim.api.core.v01.Id;
 import org.matsim.core.router.util.TravelTime;
 import org.matsim.core.utils.misc.Counter;
 import routing.TravelAttribute;
+import routing.graph.LcpPathCalculator;
+import routing.graph.SpeedyGraph;
 import trip.Place;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Identifiable;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.TravelDisutility;
 import org.matsim.vehicles.Vehicle;
 import trip.Trip;
+import trip.TripScheduler;
 
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -34,17 +38,24 @@ public class NetworkIndicatorCalculator implements Runnable {
 
     private final LeastCostPathCalculator pathCalculator;
 
+    // Graph engine: trips grouped by origin node, one truncated tree per group (used instead of pathCalculator when set)
+    private final ConcurrentLinkedQueue<TripScheduler.Group> groups;
+    private final SpeedyGraph graph;
+    private final LcpPathCalculator lcpCalculator;
+    private final double[][] linkColumns;
+    private final List<String> attributeNames;
+
     private final TravelDisutility travelDisutility;
     private final TravelTime travelTime;
 
     private final Network routingNetwork;
-    private final Network xy2lNetwork;
+    private final NetworkSnapper snapper;
     private final LinkedHashMap<String, TravelAttribute> additionalAttributes;
     private final boolean savePath;
 
     public NetworkIndicatorCalculator(ConcurrentLinkedQueue<Trip> trips, Counter counter, String route,
                                       Place origin, Place destination, Vehicle vehicle,
-                                      Network routingNetwork, Network xy2lNetwork,
+                                      Network routingNetwork, NetworkSnapper snapper,
                                       LeastCostPathCalculator pathCalculator, TravelDisutility travelDisutility, TravelTime travelTime,
                                       LinkedHashMap<String, TravelAttribute> additionalAttributes, boolean savePath) {
         this.trips = trips;
@@ -54,16 +65,50 @@ public class NetworkIndicatorCalculator implements Runnable {
         this.destination = destination;
         this.vehicle = vehicle;
         this.routingNetwork = routingNetwork;
-        this.xy2lNetwork = xy2lNetwork;
+        this.snapper = snapper;
         this.pathCalculator = pathCalculator;
         this.travelDisutility = travelDisutility;
         this.travelTime = travelTime;
         this.additionalAttributes = additionalAttributes;
         this.savePath = savePath;
+        this.groups = null;
+        this.graph = null;
+        this.lcpCalculator = null;
+        this.linkColumns = null;
+        this.attributeNames = null;
+    }
+
+    // Routes on the graph and sums attributes from per-link columns (indexed by link index, in the order of attributeNames)
+    public NetworkIndicatorCalculator(ConcurrentLinkedQueue<TripScheduler.Group> groups, Counter counter, String route,
+                                      SpeedyGraph graph, LcpPathCalculator lcpCalculator,
+                                      double[][] linkColumns, List<String> attributeNames, boolean savePath) {
+        this.trips = null;
+        this.counter = counter;
+        this.route = route;
+        this.origin = null;
+        this.destination = null;
+        this.vehicle = null;
+        this.routingNetwork = null;
+        this.snapper = null;
+        this.pathCalculator = null;
+        this.travelDisutility = null;
+        this.travelTime = null;
+        this.additionalAttributes = null;
+        this.savePath = savePath;
+        this.groups = groups;
+        this.graph = graph;
+        this.lcpCalculator = lcpCalculator;
+        this.linkColumns = linkColumns;
+        this.attributeNames = attributeNames;
     }
 
     public void run() {
 
+        if(groups != null) {
+            runGroups();
+            return;
+        }
+
         while(true) {
             Trip trip = this.trips.poll();
             if(trip == null) {
@@ -76,8 +121,8 @@ public class NetworkIndicatorCalculator implements Runnable {
             if(trip.routable(origin, destination)) {
                 Coord cOrig = trip.getCoord(origin);
                 Coord cDest = trip.getCoord(destination);
-                Node nOrig = routingNetwork.getNodes().get(NetworkUtils.getNearestLinkExactly(xy2lNetwork, cOrig).getToNode().getId());
-                Node nDest = routingNetwork.getNodes().get(NetworkUtils.getNearestLinkExactly(xy2lNetwork, cDest).getToNode().getId());
+                Node nOrig = routingNetwork.getNodes().get(snapper.getNearestLink(cOrig).getToNode().getId());
+                Node nDest = routingNetwork.getNodes().get(snapper.getNearestLink(cDest).getToNode().getId());
 
                 // Calculate least cost path
                 LeastCostPathCalculator.Path path = pathCalculator.calcLeastCostPath(nOrig, nDest, trip.getStartTime(), null, vehicle);
@@ -113,4 +158,57 @@ public class NetworkIndicatorCalculator implements Runnable {
             }
         }
     }
+
+    private void runGroups() {
+
+        while(true) {
+            TripScheduler.Group group = this.groups.poll();
+            if(group == null) {
+                return;
+            }
+
+            Trip[] groupTrips = group.getTrips();
+            int[] destinationNodes = group.getDestinationNodes();
+            lcpCalculator.calculate(group.getOriginNode(), destinationNodes, groupTrips.length);
+            for(int i = 0 ; i < groupTrips.length ; i++) {
+                this.counter.incCounter();
+                int[] path = lcpCalculator.getPath(destinationNodes[i]);
+                if(path != null) {
+                    setGraphResults(groupTrips[i], path);
+                }
+            }
+        }
+    }
+
+    private void setGraphResults(Trip trip, int[] path) {
+
+        // Sum each column over the path
+        int columnCount = linkColumns.length;
+        double[] sums = new double[columnCount];
+        for(int c = 0 ; c < columnCount ; c++) {
+            double[] column = linkColumns[c];
+            if(column != null) {
+                double sum = 0.;
+                for(int linkIdx : path) {
+                    sum += column[linkIdx];
+                }
+                sums[c] = sum;
+            }
+        }
+
+        // Set path
+        if(savePath) {
+            List<Id<Link>> linkIDs = new ArrayList<>(path.length);
+            for(int linkIdx : path) {
+                linkIDs.add(graph.getLink(linkIdx).getId());
+            }
+            trip.addRoute(route,linkIDs,sums[2]);
+        }
+
+        Map<String,Object> results = new LinkedHashMap<>();
+        for(int c = 0 ; c < columnCount ; c++) {
+            results.put(attributeNames.get(c), linkColumns[c] != null ? sums[c] : null);
+        }
+        trip.setAttributes(route,results);
+    }
 }
\ No newline at end of file
@@ -1,9 +1,13 @@
 package diary.calculate;
 
+import network.NetworkSnapper;
 import resources.Properties;
 import resources.Resources;
 import routing.TravelAttribute;
+import routing.graph.LcpPathCalculator;
+import routing.graph.SpeedyGraph;
 import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.core.router.FastDijkstraFactory;
 import org.matsim.core.router.util.LeastCostPathCalculator;
@@ -22,6 +26,7 @@ import org.matsim.facilities.ActivityFacilitiesFactoryImpl;
 import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
 import trip.Place;
 import trip.Trip;
+import trip.TripScheduler;
 
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
@@ -32,6 +37,7 @@ public class RouteIndicatorCalculator {
     private final int numberOfThreads;
     private final Set<Trip> trips;
     private final Map<String, List<String>> allAttributeNames;
+    private final Map<Network, NetworkSnapper> snappers = new IdentityHashMap<>();
 
     public RouteIndicatorCalculator(Set<Trip> trips) {
         this.numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
@@ -45,6 +51,15 @@ public class RouteIndicatorCalculator {
                         Network network, Network xy2lNetwork,
                         TravelDisutility travelDisutility, TravelTime travelTime,
                         LinkedHashMap<String,TravelAttribute> additionalAttributes, boolean savePath) {
+        network(route, origin, destination, vehicle, network, xy2lNetwork, travelDisutility, travelTime, additionalAttributes, savePath, false);
+    }
+
+    // Routes on a SpeedyGraph using link values at time 0, one tree per origin node, unless timeDependent (e.g. congested car travel times), in
+    // which case each trip is routed with FastDijkstra at its start time
+    public void network(String route, Place origin, Place destination, Vehicle vehicle,
+                        Network network, Network xy2lNetwork,
+                        TravelDisutility travelDisutility, TravelTime travelTime,
+                        LinkedHashMap<String,TravelAttribute> additionalAttributes, boolean savePath, boolean timeDependent) {
 
         logger.info("Calculating network indicators for route " + route);
 
@@ -57,16 +72,40 @@ public class RouteIndicatorCalculator {
         }
         allAttributeNames.put(route, attributeNames);
 
+        // Graph and per-link attribute values (shared read-only by all threads)
+        SpeedyGraph graph = null;
+        double[][] linkColumns = null;
+        if(!timeDependent) {
+            graph = new SpeedyGraph(network, travelTime, travelDisutility, null, vehicle);
+            linkColumns = linkColumns(graph, travelDisutility, travelTime, additionalAttributes);
+        }
+
         // Do calculation
-        ConcurrentLinkedQueue<Trip> odPairsQueue = new ConcurrentLinkedQueue<>(trips);
+        ConcurrentLinkedQueue<Trip> odPairsQueue = null;
+        ConcurrentLinkedQueue<TripScheduler.Group> groupsQueue = null;
+        NetworkSnapper snapper = snappers.computeIfAbsent(xy2lNetwork, NetworkSnapper::new);
+        int tripCount;
+        if(timeDependent) {
+            odPairsQueue = new ConcurrentLinkedQueue<>(trips);
+            tripCount = trips.size();
+        } else {
+            groupsQueue = TripScheduler.byOrigin(trips, origin, destination, snapper);
+            tripCount = groupsQueue.stream().mapToInt(TripScheduler.Group::size).sum();
+        }
 
-        Counter counter = new Counter(route + ": Route ", " / " + trips.size());
+        Counter counter = new Counter(route + ": Route ", " / " + tripCount);
         Thread[] threads = new Thread[numberOfThreads];
         for (int i = 0; i < numberOfThreads; i++) {
-            LeastCostPathCalculator dijkstra = new FastDijkstraFactory(false).
-                    createPathCalculator(network, travelDisutility, travelTime);
-            NetworkIndicatorCalculator worker = new NetworkIndicatorCalculator(odPairsQueue, counter, route,
-                    origin, destination, vehicle, network, xy2lNetwork, dijkstra, travelDisutility, travelTime, additionalAttributes, savePath);
+            NetworkIndicatorCalculator worker;
+            if(timeDependent) {
+                LeastCostPathCalculator dijkstra = new FastDijkstraFactory(false).
+                        createPathCalculator(network, travelDisutility, travelTime);
+                worker = new NetworkIndicatorCalculator(odPairsQueue, counter, route,
+                        origin, destination, vehicle, network, snapper, dijkstra, travelDisutility, travelTime, additionalAttributes, savePath);
+            } else {
+                worker = new NetworkIndicatorCalculator(groupsQueue, counter, route,
+                        graph, new LcpPathCalculator(graph), linkColumns, attributeNames, savePath);
+            }
             threads[i] = new Thread(worker, "NetworkCalculator-" + route + "-" + i);
             threads[i].start();
         }
@@ -81,6 +120,44 @@ public class RouteIndicatorCalculator {
         }
     }
 
+    // One array per attribute (cost, time, dist, then additional attributes) indexed by link index. An additional
+    // attribute that does not apply to this network's links (ClassCastException) gets a null column.
+    private static double[][] linkColumns(SpeedyGraph graph, TravelDisutility travelDisutility, TravelTime travelTime,
+                                          LinkedHashMap<String,TravelAttribute> additionalAttributes) {
+        int linkCount = graph.getLinkCount();
+        int additional = additionalAttributes != null ? additionalAttributes.size() : 0;
+        double[][] columns = new double[3 + additional][];
+        columns[0] = new double[linkCount];
+        columns[1] = new double[linkCount];
+        columns[2] = new double[linkCount];
+        for(int i = 0 ; i < linkCount ; i++) {
+            Link link = graph.getLink(i);
+            if(link != null) {
+                columns[0][i] = graph.getLinkDisutility(i);
+                columns[1][i] = graph.getLinkTime(i);
+                columns[2][i] = link.getLength();
+            }
+        }
+        if(additionalAttributes != null) {
+            int c = 3;
+            for(TravelAttribute attribute : additionalAttributes.values()) {
+                double[] column = new double[linkCount];
+                try {
+                    for(int i = 0 ; i < linkCount ; i++) {
+                        Link link = graph.getLink(i);
+                        if(link != null) {
+                            column[i] = attribute.getTravelAttribute(link, travelDisutility, travelTime);
+                        }
+                    }
+                } catch (ClassCastException exception) {
+                    column = null;
+                }
+                columns[c++] = column;
+            }
+        }
+        return columns;
+    }
+
     public void pt(String route, Place origin, Place destination, Config config, String scheduleFilePath, String networkFilePath) {
 
         config.transit().setUseTransit(true);
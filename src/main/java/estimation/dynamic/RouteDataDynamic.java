@@ -3,6 +3,7 @@ package estimation.dynamic;
 import estimation.RouteAttribute;
 import estimation.specifications.AbstractModelSpecification;
 import gis.GisUtils;
+import network.NetworkSnapper;
 import org.apache.log4j.Logger;
 import org.matsim.api.core.v01.Coord;
 import org.matsim.api.core.v01.Id;
@@ -10,7 +11,6 @@ import org.matsim.api.core.v01.IdSet;
 import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.api.core.v01.network.Network;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.router.FastDijkstraFactory;
 import org.matsim.core.router.util.LeastCostPathCalculator;
 import org.matsim.core.router.util.TravelDisutility;
@@ -164,10 +164,11 @@ public class RouteDataDynamic implements RouteData, DynamicComponent {
 
         // Sort inter/intra-zonal trips, and compute fixed results for intrazonal
         pathData = new PathData(trips.length);
-        computeVeryShortTripData(pathData,trips,zones,zoneId,u,baseAttributes,network,mode);
+        NetworkSnapper snapper = new NetworkSnapper(network);
+        computeVeryShortTripData(pathData,trips,zones,zoneId,u,baseAttributes,network,snapper,mode);
 
         // Origin and destination nodes
-        computeOriginAndDestinationNodes(pathData,trips,network);
+        computeOriginAndDestinationNodes(pathData,trips,network,snapper);
 
         // use in debugger to check zero costs: IntStream.range(0,cost.length).filter(i->cost[i] == 0).toArray();
         // Compute costs for starting values
@@ -183,13 +184,13 @@ public class RouteDataDynamic implements RouteData, DynamicComponent {
     }
 
 
-    private static void computeOriginAndDestinationNodes(PathData pathData,Trip[] trips,Network network) {
+    private static void computeOriginAndDestinationNodes(PathData pathData,Trip[] trips,Network network,NetworkSnapper snapper) {
         for (int i = 0; i < trips.length; i++) {
             Trip trip = trips[i];
             if (!pathData.tooShort[i]) {
                 if (trip.routable(ORIGIN, DESTINATION)) {
-                    pathData.originNodes[i] = getNode(trip, ORIGIN, network);
-                    pathData.destinationNodes[i] = getNode(trip, DESTINATION, network);
+                    pathData.originNodes[i] = getNode(trip, ORIGIN, network, snapper);
+                    pathData.destinationNodes[i] = getNode(trip, DESTINATION, network, snapper);
                 } else {
                     throw new RuntimeException("Household " + trip.getHouseholdId() + " Person " + trip.getPersonId() +
                             " Trip " + trip.getTripId() + " outside boundary! It shouldn't be here!");
@@ -197,11 +198,11 @@ public class RouteDataDynamic implements RouteData, DynamicComponent {
             }
         }
     }
-    private static Node getNode(Trip trip, Place place, Network net) {
+    private static Node getNode(Trip trip, Place place, Network net, NetworkSnapper snapper) {
         if("E00030420".equals(trip.getZone(place))) {
             return net.getNodes().get(Id.createNodeId(173563));
         } else {
-            return net.getNodes().get(NetworkUtils.getNearestLinkExactly(net, trip.getCoord(place)).getToNode().getId());
+            return net.getNodes().get(snapper.getNearestLink(trip.getCoord(place)).getToNode().getId());
         }
     }
 
@@ -374,7 +375,7 @@ public class RouteDataDynamic implements RouteData, DynamicComponent {
 
     private static void computeVeryShortTripData(PathData pathData, Trip[] trips, Set<SimpleFeature> zones, String zoneId,
                                                  AbstractModelSpecification u, List<RouteAttribute> attributes,
-                                                 Network net, String mode) {
+                                                 Network net, NetworkSnapper snapper, String mode) {
 
         int veryShortTrips = 0;
 
@@ -400,8 +401,8 @@ public class RouteDataDynamic implements RouteData, DynamicComponent {
             String zDest = trips[i].getZone(DESTINATION);
             Coord cOrig = trips[i].getCoord(ORIGIN);
             Coord cDest = trips[i].getCoord(DESTINATION);
-            Link lOrig = NetworkUtils.getNearestLinkExactly(net, cOrig);
-            Link lDest = NetworkUtils.getNearestLinkExactly(net, cDest);
+            Link lOrig = snapper.getNearestLink(cOrig);
+            Link lDest = snapper.getNearestLink(cDest);
             Node nOrig = lOrig.getToNode();
             Node nDest = lDest.getToNode();
 
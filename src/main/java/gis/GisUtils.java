@@ -1,5 +1,6 @@
 package gis;
 
+import network.NetworkSnapper;
 import network.NetworkUtils2;
 import org.apache.log4j.Logger;
 import org.geotools.data.simple.SimpleFeatureCollection;
@@ -17,7 +18,6 @@ import org.matsim.api.core.v01.network.Link;
 import org.matsim.api.core.v01.network.Network;
 import org.matsim.api.core.v01.network.Node;
 import org.matsim.core.gbl.MatsimRandom;
-import org.matsim.core.network.NetworkUtils;
 import org.matsim.core.utils.geometry.geotools.MGC;
 import org.matsim.core.utils.misc.Counter;
 import org.opengis.feature.simple.SimpleFeature;
@@ -100,10 +100,14 @@ public class GisUtils {
         }
         log.info("Identified " + results.size() + " candidates within zones.");
 
+        NetworkSnapper snapper = null;
         for(SimpleFeature z : zones) {
             if(!nodesInside.containsKey(z)) {
+                if(snapper == null) {
+                    snapper = new NetworkSnapper(network);
+                }
                 Point centroid = ((Geometry) z.getDefaultGeometry()).getCentroid();
-                results.put(NetworkUtils.getNearestNode(network,new Coord(centroid.getX(),centroid.getY())).getId(),z.getID());
+                results.put(snapper.getNearestNode(new Coord(centroid.getX(),centroid.getY())).getId(),z.getID());
                 nodesInside.put(z,1);
             }
         }
@@ -0,0 +1,208 @@
+package io;
+
+import diary.calculate.CorridorLinks;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.IdMap;
+import org.matsim.api.core.v01.network.Link;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// Binary file of per-trip corridors (see CorridorLinks), with random access by trip key.
+// Layout: magic, version, then deflated chunks of records (compressed length, raw length, data), then a footer with the
+// trip index (key, chunk offset, position in chunk) and the link ID table, and finally the footer offset.
+// Record: link count, encoded length, delta-encoded link indices, double detours. Link indices refer to the link ID table.
+
+public final class CorridorFile {
+
+    private final static Logger logger = Logger.getLogger(CorridorFile.class);
+    private final static int MAGIC = 0x4A434F52; // "JCOR"
+    private final static int VERSION = 2;
+    private final static int CHUNK_SIZE = 1 << 20;
+
+    private CorridorFile() {
+    }
+
+    public static class Writer implements Closeable {
+        private final String filePath;
+        private final DataOutputStream out;
+        private final ByteArrayOutputStream chunk = new ByteArrayOutputStream(CHUNK_SIZE + (CHUNK_SIZE >> 2));
+        private final DataOutputStream chunkOut = new DataOutputStream(chunk);
+        private final Map<String,long[]> index = new LinkedHashMap<>();
+        private final Set<String> keys = new HashSet<>();
+        private final List<String> pendingKeys = new ArrayList<>();
+        private final List<Integer> pendingPositions = new ArrayList<>();
+        private long filePosition;
+        private int maxLinkIndex = -1;
+
+        public Writer(String filePath) throws IOException {
+            this.filePath = filePath;
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath), 1 << 16));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            filePosition = 8;
+        }
+
+        public synchronized void write(String tripKey, CorridorLinks links) throws IOException {
+            if(!keys.add(tripKey)) {
+                throw new RuntimeException("Trip " + tripKey + " written twice to " + filePath);
+            }
+            pendingKeys.add(tripKey);
+            pendingPositions.add(chunk.size());
+            byte[] encoded = links.getEncodedLinks();
+            chunkOut.writeInt(links.size());
+            chunkOut.writeInt(encoded.length);
+            chunkOut.write(encoded);
+            for(double detour : links.getDetours()) {
+                chunkOut.writeDouble(detour);
+            }
+            int[] indices = links.getLinkIndices();
+            if(indices.length > 0) {
+                maxLinkIndex = Math.max(maxLinkIndex, indices[indices.length - 1]);
+            }
+            if(chunk.size() >= CHUNK_SIZE) {
+                flushChunk();
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            if(pendingKeys.isEmpty()) {
+                return;
+            }
+            byte[] raw = chunk.toByteArray();
+            Deflater deflater = new Deflater();
+            deflater.setInput(raw);
+            deflater.finish();
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(raw.length / 2);
+            byte[] buffer = new byte[1 << 16];
+            while(!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                compressed.write(buffer, 0, n);
+            }
+            deflater.end();
+
+            out.writeInt(compressed.size());
+            out.writeInt(raw.length);
+            compressed.writeTo(out);
+            for(int i = 0 ; i < pendingKeys.size() ; i++) {
+                index.put(pendingKeys.get(i), new long[] {filePosition, pendingPositions.get(i)});
+            }
+            filePosition += 8 + compressed.size();
+            pendingKeys.clear();
+            pendingPositions.clear();
+            chunk.reset();
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            flushChunk();
+            long footerPosition = filePosition;
+            out.writeInt(index.size());
+            for(Map.Entry<String,long[]> e : index.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeLong(e.getValue()[0]);
+                out.writeInt((int) e.getValue()[1]);
+            }
+            out.writeInt(maxLinkIndex + 1);
+            for(int i = 0 ; i <= maxLinkIndex ; i++) {
+                out.writeUTF(Id.get(i, Link.class).toString());
+            }
+            out.writeLong(footerPosition);
+            out.close();
+            logger.info("Wrote corridors of " + index.size() + " trips to " + filePath + " (" + (footerPosition >> 10) + " KB of chunks).");
+        }
+    }
+
+    public static class Reader implements Closeable {
+        private final String filePath;
+        private final RandomAccessFile file;
+        private final Map<String,long[]> index;
+        private final Id<Link>[] linkIds;
+        private long cachedChunkOffset = -1;
+        private byte[] cachedChunk;
+
+        @SuppressWarnings("unchecked")
+        public Reader(String filePath) throws IOException {
+            this.filePath = filePath;
+            this.file = new RandomAccessFile(filePath, "r");
+            if(file.readInt() != MAGIC || file.readInt() != VERSION) {
+                throw new IOException(filePath + " is not a corridor file");
+            }
+            file.seek(file.length() - 8);
+            long footerPosition = file.readLong();
+            file.seek(footerPosition);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file.getFD()), 1 << 16));
+            int tripCount = in.readInt();
+            this.index = new LinkedHashMap<>(tripCount);
+            for(int i = 0 ; i < tripCount ; i++) {
+                String key = in.readUTF();
+                index.put(key, new long[] {in.readLong(), in.readInt()});
+            }
+            int linkCount = in.readInt();
+            this.linkIds = new Id[linkCount];
+            for(int i = 0 ; i < linkCount ; i++) {
+                linkIds[i] = Id.createLinkId(in.readUTF());
+            }
+            logger.info("Opened " + filePath + " with corridors of " + tripCount + " trips.");
+        }
+
+        public Set<String> getTripKeys() {
+            return Collections.unmodifiableSet(index.keySet());
+        }
+
+        // Link detours of one trip (null if the trip isn't in the file)
+        public synchronized IdMap<Link,Double> read(String tripKey) throws IOException {
+            long[] entry = index.get(tripKey);
+            if(entry == null) {
+                return null;
+            }
+            if(entry[0] != cachedChunkOffset) {
+                cachedChunk = readChunk(entry[0]);
+                cachedChunkOffset = entry[0];
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(cachedChunk, (int) entry[1], cachedChunk.length - (int) entry[1]));
+            int n = in.readInt();
+            byte[] encoded = new byte[in.readInt()];
+            in.readFully(encoded);
+            double[] detours = new double[n];
+            for(int i = 0 ; i < n ; i++) {
+                detours[i] = in.readDouble();
+            }
+            int[] indices = new CorridorLinks(encoded, detours).getLinkIndices();
+            IdMap<Link,Double> result = new IdMap<>(Link.class);
+            for(int i = 0 ; i < n ; i++) {
+                result.put(linkIds[indices[i]], detours[i]);
+            }
+            return result;
+        }
+
+        private byte[] readChunk(long offset) throws IOException {
+            file.seek(offset);
+            byte[] compressed = new byte[file.readInt()];
+            byte[] raw = new byte[file.readInt()];
+            file.readFully(compressed);
+            Inflater inflater = new Inflater();
+            inflater.setInput(compressed);
+            try {
+                int n = 0;
+                while(n < raw.length && !inflater.finished()) {
+                    n += inflater.inflate(raw, n, raw.length - n);
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt chunk at " + offset + " in " + filePath, e);
+            } finally {
+                inflater.end();
+            }
+            return raw;
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package io;
+
+import omx.OmxFile;
+import org.apache.log4j.Logger;
+import skim.SparseSkim;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+public class OmxReader {
+
+    private final static Logger logger = Logger.getLogger(OmxReader.class);
+
+    // Reads matrices written by OmxWriter.createOmxSparseSkimMatrix back into CSR format
+    public static Map<String, SparseSkim> readSparseSkimMatrices(String omxFilePath) {
+
+        Map<String,SparseSkim> matrices = new LinkedHashMap<>();
+
+        try (OmxFile omxFile = new OmxFile(omxFilePath)) {
+            omxFile.openReadOnly();
+
+            int[] zoneLookup = (int[]) omxFile.getLookup("zone").getLookup();
+            int zoneCount = zoneLookup.length;
+            Map<Integer,Integer> id2index = new HashMap<>(zoneCount);
+            for(int i = 0 ; i < zoneCount ; i++) {
+                id2index.put(zoneLookup[i],i);
+            }
+
+            for(String name : omxFile.getMatrixNames()) {
+                if(name.endsWith(OmxWriter.SPARSE_DEST_SUFFIX)) {
+                    continue;
+                }
+                int[][] destArray = (int[][]) omxFile.getMatrix(name + OmxWriter.SPARSE_DEST_SUFFIX).getData();
+                double[][] valueArray = (double[][]) omxFile.getMatrix(name).getData();
+
+                int[][] rowColumns = new int[zoneCount][];
+                double[][] rowValues = new double[zoneCount][];
+                for(int i = 0 ; i < zoneCount ; i++) {
+                    int length = 0;
+                    while(length < destArray[i].length && destArray[i][length] != -1) {
+                        length++;
+                    }
+                    rowColumns[i] = new int[length];
+                    rowValues[i] = new double[length];
+                    for(int k = 0 ; k < length ; k++) {
+                        rowColumns[i][k] = id2index.get(destArray[i][k]);
+                        rowValues[i][k] = valueArray[i][k];
+                    }
+                }
+                matrices.put(name, SparseSkim.fromRows(zoneLookup,rowColumns,rowValues));
+            }
+        }
+        logger.info("Read " + matrices.size() + " sparse matrices from " + omxFilePath);
+        return matrices;
+    }
+}
@@ -5,7 +5,9 @@ import omx.OmxLookup;
 import omx.OmxMatrix;
 import omx.hdf5.OmxConstants;
 import org.apache.log4j.Logger;
+import skim.SparseSkim;
 
+import java.io.File;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.Map;
@@ -14,11 +16,14 @@ import java.util.Set;
 public class OmxWriter {
 
     private final static Logger logger = Logger.getLogger(OmxWriter.class);
+    public final static String SPARSE_DEST_SUFFIX = "_dest";
 
     public static void createOmxFile(String omxFilePath, int numberOfZones) {
+        createOmxFile(omxFilePath, new int[] {numberOfZones, numberOfZones});
+    }
 
+    private static void createOmxFile(String omxFilePath, int[] shape) {
         try (OmxFile omxFile = new OmxFile(omxFilePath)) {
-            int[] shape = {numberOfZones, numberOfZones};
             omxFile.openNew(shape);
             omxFile.save();
         }
@@ -90,4 +95,68 @@ public class OmxWriter {
             logger.info(omxFilePath + " matrices written.");
         }
     }
+
+    // Writes sparse matrices in a lookup plus values layout. Each row holds the destination zone IDs reached from the
+    // origin zone (matrix "<name>_dest") and the corresponding values (matrix "<name>"), padded with -1 to the longest row.
+    public static void createOmxSparseSkimMatrix(String omxFilePath, Map<String, SparseSkim> matrices) {
+
+        if(matrices.isEmpty()) {
+            logger.warn("No sparse matrices to write to " + omxFilePath);
+            return;
+        }
+
+        int[] zoneLookup = matrices.values().iterator().next().getZoneLookup();
+        int zoneCount = zoneLookup.length;
+
+        // Row width is the longest row across all matrices
+        int width = 1;
+        for(SparseSkim skim : matrices.values()) {
+            for(int i = 0 ; i < zoneCount ; i++) {
+                width = Math.max(width, skim.getRowLength(i));
+            }
+        }
+
+        File file = new File(omxFilePath);
+        if(file.delete()) {
+            logger.warn("File " + file.getAbsolutePath() + " already exists. Overwriting.");
+        }
+        createOmxFile(omxFilePath, new int[] {zoneCount, width});
+
+        try (OmxFile omxFile = new OmxFile(omxFilePath)) {
+            omxFile.openReadWrite();
+
+            OmxLookup<int[], Integer> lookup = new OmxLookup.OmxIntLookup("zone", zoneLookup, -1);
+            omxFile.addLookup(lookup);
+
+            for (Map.Entry<String,SparseSkim> e : matrices.entrySet()) {
+                SparseSkim skim = e.getValue();
+                int[] rowPointers = skim.getRowPointers();
+                int[] columns = skim.getColumns();
+                double[] values = skim.getValues();
+
+                int[][] destArray = new int[zoneCount][width];
+                double[][] valueArray = new double[zoneCount][width];
+                for(int i = 0 ; i < zoneCount ; i++) {
+                    Arrays.fill(destArray[i], -1);
+                    Arrays.fill(valueArray[i], -1.);
+                    for(int k = rowPointers[i] ; k < rowPointers[i+1] ; k++) {
+                        destArray[i][k - rowPointers[i]] = zoneLookup[columns[k]];
+                        valueArray[i][k - rowPointers[i]] = values[k];
+                    }
+                }
+
+                OmxMatrix.OmxIntMatrix destMat = new OmxMatrix.OmxIntMatrix(e.getKey() + SPARSE_DEST_SUFFIX, destArray, -1);
+                destMat.setAttribute(OmxConstants.OmxNames.OMX_DATASET_TITLE_KEY.getKey(), "sparse_skim_lookup");
+                omxFile.addMatrix(destMat);
+
+                OmxMatrix.OmxDoubleMatrix valueMat = new OmxMatrix.OmxDoubleMatrix(e.getKey(), valueArray, -1.);
+                valueMat.setAttribute(OmxConstants.OmxNames.OMX_DATASET_TITLE_KEY.getKey(), "sparse_skim_matrix");
+                omxFile.addMatrix(valueMat);
+            }
+            omxFile.save();
+            logger.info(omxFile.summary());
+            omxFile.close();
+            logger.info(omxFilePath + " sparse matrices written.");
+        }
+    }
 }
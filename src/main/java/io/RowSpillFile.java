@@ -0,0 +1,126 @@
+package io;
+
+import org.apache.log4j.Logger;
+
+import java.io.*;
+import java.util.HashMap;
+import java.util.Map;
+
+// Append-only binary file of completed result rows (int key + fixed-length double row), used to checkpoint long runs.
+// Layout: magic, version, label, row length, then records of key + row values.
+// A partially written final record (e.g. if the JVM was killed mid-write) is ignored and truncated on resume.
+
+public class RowSpillFile implements Closeable {
+
+    private final static Logger logger = Logger.getLogger(RowSpillFile.class);
+    private final static int MAGIC = 0x4A53504C; // "JSPL"
+    private final static int VERSION = 1;
+    private final static long FLUSH_INTERVAL_MS = 30000;
+
+    private final String filePath;
+    private final int rowLength;
+    private final Map<Integer,double[]> completedRows;
+    private final DataOutputStream out;
+    private long lastFlush;
+    private int rowsWritten;
+
+    // Opens a spill file for writing. If resume is true and the file exists, completed rows are read and kept.
+    public RowSpillFile(String filePath, String label, int rowLength, boolean resume) throws IOException {
+        this.filePath = filePath;
+        this.rowLength = rowLength;
+        File file = new File(filePath);
+        byte[] header = header(label, rowLength);
+
+        if(resume && file.exists() && file.length() >= header.length) {
+            this.completedRows = new HashMap<>();
+            long validLength = readRows(file, header, rowLength, completedRows);
+            if(validLength < file.length()) {
+                logger.warn("Truncating incomplete record at end of " + filePath);
+                try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                    raf.setLength(validLength);
+                }
+            }
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            logger.info("Resuming from " + filePath + " with " + completedRows.size() + " completed rows.");
+        } else {
+            this.completedRows = new HashMap<>(0);
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, false)));
+            this.out.write(header);
+            this.out.flush();
+        }
+        this.lastFlush = System.currentTimeMillis();
+    }
+
+    public Map<Integer,double[]> getCompletedRows() {
+        return completedRows;
+    }
+
+    // Called by worker threads as each row completes
+    public synchronized void write(int key, double[] row) {
+        if(row.length != rowLength) {
+            throw new RuntimeException("Row length " + row.length + " does not match spill file row length " + rowLength);
+        }
+        try {
+            out.writeInt(key);
+            for(double value : row) {
+                out.writeDouble(value);
+            }
+            rowsWritten++;
+            long now = System.currentTimeMillis();
+            if(now - lastFlush > FLUSH_INTERVAL_MS) {
+                out.flush();
+                lastFlush = now;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write to spill file " + filePath, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        logger.info("Wrote " + rowsWritten + " rows to " + filePath);
+    }
+
+    // Reads all complete rows of an existing spill file
+    public static Map<Integer,double[]> read(String filePath, String label, int rowLength) throws IOException {
+        Map<Integer,double[]> rows = new HashMap<>();
+        readRows(new File(filePath), header(label, rowLength), rowLength, rows);
+        return rows;
+    }
+
+    private static long readRows(File file, byte[] expectedHeader, int rowLength, Map<Integer,double[]> rows) throws IOException {
+        long recordSize = 4L + 8L * rowLength;
+        long completeRecords = (file.length() - expectedHeader.length) / recordSize;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] header = new byte[expectedHeader.length];
+            in.readFully(header);
+            for(int i = 0 ; i < header.length ; i++) {
+                if(header[i] != expectedHeader[i]) {
+                    throw new IOException(file.getPath() + " does not match the expected spill file header (different run?)");
+                }
+            }
+            for(long r = 0 ; r < completeRecords ; r++) {
+                int key = in.readInt();
+                double[] row = new double[rowLength];
+                for(int i = 0 ; i < rowLength ; i++) {
+                    row[i] = in.readDouble();
+                }
+                rows.put(key, row);
+            }
+        }
+        return expectedHeader.length + completeRecords * recordSize;
+    }
+
+    private static byte[] header(String label, int rowLength) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream header = new DataOutputStream(bytes)) {
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeUTF(label);
+            header.writeInt(rowLength);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,66 @@
+package io;
+
+import resources.Properties;
+import resources.Resources;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+// Shard k of n over origins, so independent origin trees can be spread over several processes.
+// Origins are sorted before selection, so every process (and the merge step) agrees on the split.
+
+public class Shard {
+
+    private final int index;
+    private final int count;
+
+    public Shard(int index, int count) {
+        if(count < 1 || index < 0 || index >= count) {
+            throw new RuntimeException("Invalid shard " + index + " of " + count + " (index must be in 0.." + (count - 1) + ")");
+        }
+        this.index = index;
+        this.count = count;
+    }
+
+    // Returns null if no shard is defined in the properties file
+    public static Shard fromProperties() {
+        String count = Resources.instance.getString(Properties.SHARD_COUNT);
+        if(count == null) {
+            return null;
+        }
+        return new Shard(Resources.instance.getInt(Properties.SHARD_INDEX), Integer.parseInt(count));
+    }
+
+    public <T> List<T> select(Collection<T> origins, Comparator<? super T> order) {
+        List<T> sorted = new ArrayList<>(origins);
+        sorted.sort(order);
+        List<T> selected = new ArrayList<>(sorted.size() / count + 1);
+        for(int i = index ; i < sorted.size() ; i += count) {
+            selected.add(sorted.get(i));
+        }
+        return selected;
+    }
+
+    public String getSuffix() {
+        return getSuffix(index, count);
+    }
+
+    public static String getSuffix(int index, int count) {
+        return ".shard-" + index + "-of-" + count;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "shard " + index + " of " + count;
+    }
+}
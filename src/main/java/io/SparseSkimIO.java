@@ -0,0 +1,107 @@
+package io;
+
+import org.apache.log4j.Logger;
+import skim.SparseSkim;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Reads and writes sparse (CSR) skim matrices as a compact binary file.
+// Layout: magic, version, zone count, zone lookup, matrix count, then per matrix:
+// name, stored cell count, row pointers, destination indices, values.
+
+public class SparseSkimIO {
+
+    private final static Logger logger = Logger.getLogger(SparseSkimIO.class);
+    private final static int MAGIC = 0x4A435352; // "JCSR"
+    private final static int VERSION = 1;
+
+    public static void write(String filePath, Map<String, SparseSkim> matrices) throws IOException {
+
+        if(matrices.isEmpty()) {
+            logger.warn("No sparse matrices to write to " + filePath);
+            return;
+        }
+
+        int[] zoneLookup = matrices.values().iterator().next().getZoneLookup();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(filePath)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeIntArray(out, zoneLookup);
+            out.writeInt(matrices.size());
+            for(Map.Entry<String,SparseSkim> e : matrices.entrySet()) {
+                SparseSkim skim = e.getValue();
+                if(!Arrays.equals(zoneLookup,skim.getZoneLookup())) {
+                    throw new RuntimeException("Matrix " + e.getKey() + " has a different zone lookup to other matrices in " + filePath);
+                }
+                out.writeUTF(e.getKey());
+                out.writeInt(skim.getNonZeroCount());
+                for(int rowPointer : skim.getRowPointers()) {
+                    out.writeInt(rowPointer);
+                }
+                for(int column : skim.getColumns()) {
+                    out.writeInt(column);
+                }
+                for(double value : skim.getValues()) {
+                    out.writeDouble(value);
+                }
+            }
+        }
+        logger.info(filePath + " sparse matrices written.");
+    }
+
+    public static Map<String, SparseSkim> read(String filePath) throws IOException {
+
+        Map<String,SparseSkim> matrices = new LinkedHashMap<>();
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filePath)))) {
+            if(in.readInt() != MAGIC) {
+                throw new IOException(filePath + " is not a sparse skim file.");
+            }
+            int version = in.readInt();
+            if(version != VERSION) {
+                throw new IOException("Unsupported sparse skim file version " + version + " in " + filePath);
+            }
+            int[] zoneLookup = readIntArray(in);
+            int dimSize = zoneLookup.length;
+            int matrixCount = in.readInt();
+            for(int m = 0 ; m < matrixCount ; m++) {
+                String name = in.readUTF();
+                int nonZeroCount = in.readInt();
+                int[] rowPointers = new int[dimSize + 1];
+                for(int i = 0 ; i <= dimSize ; i++) {
+                    rowPointers[i] = in.readInt();
+                }
+                int[] columns = new int[nonZeroCount];
+                for(int i = 0 ; i < nonZeroCount ; i++) {
+                    columns[i] = in.readInt();
+                }
+                double[] values = new double[nonZeroCount];
+                for(int i = 0 ; i < nonZeroCount ; i++) {
+                    values[i] = in.readDouble();
+                }
+                matrices.put(name, new SparseSkim(zoneLookup,rowPointers,columns,values));
+            }
+        }
+        logger.info("Read " + matrices.size() + " sparse matrices from " + filePath);
+        return matrices;
+    }
+
+    private static void writeIntArray(DataOutputStream out, int[] array) throws IOException {
+        out.writeInt(array.length);
+        for(int value : array) {
+            out.writeInt(value);
+        }
+    }
+
+    private static int[] readIntArray(DataInputStream in) throws IOException {
+        int[] array = new int[in.readInt()];
+        for(int i = 0 ; i < array.length ; i++) {
+            array[i] = in.readInt();
+        }
+        return array;
+    }
+}
@@ -0,0 +1,177 @@
+package network;
+
+import org.apache.log4j.Logger;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.ItemBoundable;
+import org.locationtech.jts.index.strtree.ItemDistance;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.network.Link;
+import org.matsim.api.core.v01.network.Network;
+import org.matsim.api.core.v01.network.Node;
+import org.matsim.core.utils.geometry.CoordUtils;
+import org.matsim.core.utils.misc.Counter;
+import resources.Properties;
+import resources.Resources;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Predicate;
+
+// Snaps coordinates to the nearest link (by distance to the link segment) or nearest node using STR-trees.
+// The trees are built once in the constructor and are read-only afterwards, so one snapper can be shared between threads.
+// Ties are broken by network iteration order, so results do not depend on tree layout or thread scheduling.
+
+public class NetworkSnapper {
+
+    private final static Logger logger = Logger.getLogger(NetworkSnapper.class);
+    private final static int BATCH_SIZE = 1000;
+
+    private final Link[] links;
+    private final Node[] nodes;
+    private final STRtree linkTree;
+    private final STRtree nodeTree;
+
+    public NetworkSnapper(Network network) {
+        this(network, null, null);
+    }
+
+    // Only links allowing the given mode (if not null) and passing the filter (if not null) are indexed.
+    // Nodes are restricted to the end nodes of indexed links.
+    public NetworkSnapper(Network network, String mode, Predicate<Link> filter) {
+        List<Link> linkList = new ArrayList<>();
+        Set<Node> nodeSet = new LinkedHashSet<>();
+        for(Link link : network.getLinks().values()) {
+            if((mode == null || link.getAllowedModes().contains(mode)) && (filter == null || filter.test(link))) {
+                linkList.add(link);
+                nodeSet.add(link.getFromNode());
+                nodeSet.add(link.getToNode());
+            }
+        }
+        if(linkList.isEmpty()) {
+            throw new RuntimeException("No links to snap to" + (mode != null ? " for mode " + mode : ""));
+        }
+        this.links = linkList.toArray(new Link[0]);
+        this.nodes = nodeSet.toArray(new Node[0]);
+
+        this.linkTree = new STRtree();
+        for(int i = 0 ; i < links.length ; i++) {
+            Coord from = links[i].getFromNode().getCoord();
+            Coord to = links[i].getToNode().getCoord();
+            linkTree.insert(new Envelope(from.getX(), to.getX(), from.getY(), to.getY()), i);
+        }
+        linkTree.build();
+
+        this.nodeTree = new STRtree();
+        for(int i = 0 ; i < nodes.length ; i++) {
+            Coord c = nodes[i].getCoord();
+            nodeTree.insert(new Envelope(c.getX(), c.getX(), c.getY(), c.getY()), i);
+        }
+        nodeTree.build();
+
+        logger.info("Indexed " + links.length + " links and " + nodes.length + " nodes for snapping.");
+    }
+
+    public Link getNearestLink(Coord coord) {
+        Object nearest = linkTree.nearestNeighbour(new Envelope(coord.getX(), coord.getX(), coord.getY(), coord.getY()), coord, linkItemDistance);
+        double minDist = linkDistance(coord, (Integer) nearest);
+        return links[lowestWithin(linkTree, coord, minDist, true)];
+    }
+
+    public Node getNearestNode(Coord coord) {
+        Object nearest = nodeTree.nearestNeighbour(new Envelope(coord.getX(), coord.getX(), coord.getY(), coord.getY()), coord, nodeItemDistance);
+        double minDist = CoordUtils.calcEuclideanDistance(coord, nodes[(Integer) nearest].getCoord());
+        return nodes[lowestWithin(nodeTree, coord, minDist, false)];
+    }
+
+    // Snaps all coordinates in parallel. Results are in the same order as the input.
+    public Link[] getNearestLinks(List<Coord> coords) {
+        Link[] results = new Link[coords.size()];
+        runBatches(coords.size(), "Snapped link ", i -> results[i] = getNearestLink(coords.get(i)));
+        return results;
+    }
+
+    public Node[] getNearestNodes(List<Coord> coords) {
+        Node[] results = new Node[coords.size()];
+        runBatches(coords.size(), "Snapped node ", i -> results[i] = getNearestNode(coords.get(i)));
+        return results;
+    }
+
+    // Among all items at distance minDist (exact ties), returns the one that comes first in network order
+    private int lowestWithin(STRtree tree, Coord coord, double minDist, boolean isLink) {
+        int best = Integer.MAX_VALUE;
+        Envelope env = new Envelope(coord.getX() - minDist, coord.getX() + minDist, coord.getY() - minDist, coord.getY() + minDist);
+        for(Object item : tree.query(env)) {
+            int i = (Integer) item;
+            double dist = isLink ? linkDistance(coord, i) : CoordUtils.calcEuclideanDistance(coord, nodes[i].getCoord());
+            if(dist <= minDist && i < best) {
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    private double linkDistance(Coord coord, int i) {
+        return CoordUtils.distancePointLinesegment(links[i].getFromNode().getCoord(), links[i].getToNode().getCoord(), coord);
+    }
+
+    private final ItemDistance linkItemDistance = new ItemDistance() {
+        @Override
+        public double distance(ItemBoundable item1, ItemBoundable item2) {
+            return item1.getItem() instanceof Coord ? linkDistance((Coord) item1.getItem(), (Integer) item2.getItem()) :
+                    linkDistance((Coord) item2.getItem(), (Integer) item1.getItem());
+        }
+    };
+
+    private final ItemDistance nodeItemDistance = new ItemDistance() {
+        @Override
+        public double distance(ItemBoundable item1, ItemBoundable item2) {
+            Object a = item1.getItem();
+            Object b = item2.getItem();
+            Coord c1 = a instanceof Coord ? (Coord) a : nodes[(Integer) a].getCoord();
+            Coord c2 = b instanceof Coord ? (Coord) b : nodes[(Integer) b].getCoord();
+            return CoordUtils.calcEuclideanDistance(c1, c2);
+        }
+    };
+
+    private interface IndexTask {
+        void run(int i);
+    }
+
+    private static void runBatches(int size, String counterPrefix, IndexTask task) {
+        int numberOfThreads = Resources.instance != null ? Resources.instance.getInt(Properties.NUMBER_OF_THREADS) :
+                Runtime.getRuntime().availableProcessors();
+
+        ConcurrentLinkedQueue<int[]> batches = new ConcurrentLinkedQueue<>();
+        for(int start = 0 ; start < size ; start += BATCH_SIZE) {
+            batches.add(new int[] {start, Math.min(size, start + BATCH_SIZE)});
+        }
+
+        Counter counter = new Counter(counterPrefix, " / " + size);
+        Thread[] threads = new Thread[numberOfThreads];
+        for(int i = 0 ; i < numberOfThreads ; i++) {
+            threads[i] = new Thread(() -> {
+                while(true) {
+                    int[] batch = batches.poll();
+                    if(batch == null) {
+                        return;
+                    }
+                    for(int j = batch[0] ; j < batch[1] ; j++) {
+                        task.run(j);
+                        counter.incCounter();
+                    }
+                }
+            }, "Snapper-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -13,6 +13,7 @@ public class Properties {
     public static final String MATSIM_ROAD_NETWORK = "matsim.road.network";
     public static final String MATSIM_TRANSIT_NETWORK = "matsim.transit.network";
     public static final String MATSIM_TRANSIT_SCHEDULE = "matsim.transit.schedule";
+    public static final String PT_SKIM_WINDOWS = "pt.skim.windows"; // e.g. AM=07:00:00-09:00:00;IP=10:00:00-15:00:00
 
     public static final String MATSIM_DEMAND_CONFIG = "matsim.demand.config";
     public static final String MATSIM_DEMAND_SCALE_FACTOR = "matsim.demand.scale.factor";
@@ -27,6 +28,42 @@ public class Properties {
     public static final String NUMBER_OF_THREADS = "number.of.threads";
     public static final String MAX_BIKE_SPEED = "max.bike.speed";
     public static final String DECAY_PERCENTILE = "decay.percentile";
+
+    // Sparse active mode skims (distance in metres, time in seconds)
+    public static final String SKIM_SPARSE_CUTOFF_DIST = "skim.sparse.cutoff.distance";
+    public static final String SKIM_SPARSE_CUTOFF_TIME = "skim.sparse.cutoff.time";
+
+    // Symmetric skims: number of origin rows to recompute in full and compare (0 or missing = no verification)
+    public static final String SKIM_SYMMETRIC_VERIFY = "skim.symmetric.verify";
+
+    // Checkpointing of completed rows for long runs (resume skips rows already in the spill files)
+    public static final String CHECKPOINT_DIRECTORY = "checkpoint.directory";
+    public static final String CHECKPOINT_RESUME = "checkpoint.resume";
+
+    // Point features on the same link share a tree if their connector lengths round to the same bucket (metres; 0 or missing = exact)
+    public static final String FEATURE_OFFSET_BUCKET = "feature.offset.bucket";
+
+    // Memory budget (MB) per corridor worker for the pairwise cost matrix (optional; default: up to 25000 corridor nodes).
+    // Corridors above the budget's node limit use a reduced outer detour limit.
+    public static final String CORRIDOR_MEMORY_MB = "corridor.memory.mb";
+
+    // Corridor engine: subpath (default) or via_link; optionally compare both on the first n trips
+    public static final String CORRIDOR_ENGINE = "corridor.engine";
+    public static final String CORRIDOR_VALIDATE = "corridor.validate";
+
+    // Census volumes: also walk each trip's path and check it gives the same link volumes as loading the tree (true/false)
+    public static final String VOLUME_VALIDATE = "volume.validate";
+
+    // RunMultiRouter choice sets: sampling (default), labelling, link_penalty or via_node, and the target paths per trip
+    public static final String CHOICE_SET_METHOD = "choiceset.method";
+    public static final String CHOICE_SET_PATHS = "choiceset.paths";
+
+    // Directory of cached node accessibility results, keyed by network, disutility, destinations and decay function
+    public static final String RESULT_CACHE = "result.cache";
+
+    // Shard mode: process only origins i with i % shard.count == shard.index (partial outputs go to the checkpoint files)
+    public static final String SHARD_COUNT = "shard.count";
+    public static final String SHARD_INDEX = "shard.index";
     
     // Survey data attribute names
     public static final String DIARY_FILE = "diary.file";
@@ -0,0 +1,265 @@
+package routing.graph;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Generates a set of distinct alternative paths (as link indices) between two nodes of a {@link SpeedyGraph}:
+ * <ul>
+ *     <li>LABELLING: one least-cost path per weight layer (e.g. one layer per dominant route attribute)</li>
+ *     <li>LINK_PENALTY: repeated least-cost paths, multiplying the disutility of each found path's links by a factor</li>
+ *     <li>VIA_NODE: least-cost paths through via nodes within a cost stretch of the shortest path. Via nodes must lie on a
+ *     plateau (a chain of links on both the tree from the start node and the tree to the end node), longest plateau
+ *     first, and one via node is tried per plateau (nodes on an already tried path are skipped)</li>
+ * </ul>
+ * A path is accepted if it is new and its length-weighted overlap with every accepted path is at most maxOverlap.
+ * Generation stops at the target number of paths, or after maxRejections consecutive rejected paths (via paths that
+ * revisit a node are skipped without counting as rejections).
+ * NOT thread-safe: create one instance per thread.
+ */
+public class ChoiceSetGenerator {
+
+    public enum Method { LABELLING, LINK_PENALTY, VIA_NODE }
+
+    private final SpeedyGraph graph;
+    private final LcpPathCalculator fwdCalculator;
+    private final LcpPathCalculator bwdCalculator;
+    private final double[] penalised;
+    private final int[] linkMark;
+    private final int[] nodeMark;
+    private final int[] plateauMark;
+    private final double[] viaCost;
+    private final double[] plateauFrom;
+    private final double[] plateauTo;
+    private final NodeMinHeap viaHeap;
+    private int currentMark;
+    private int currentPlateau;
+
+    private int targetPaths = 10;
+    private double maxOverlap = 0.8;
+    private int maxRejections = 5;
+    private double penaltyFactor = 1.5;
+    private int maxIterations = 30;
+    private double maxStretch = 0.25;
+
+    public ChoiceSetGenerator(SpeedyGraph graph) {
+        this.graph = graph;
+        this.fwdCalculator = new LcpPathCalculator(graph, true);
+        this.bwdCalculator = new LcpPathCalculator(graph, false);
+        this.penalised = new double[graph.linkCount];
+        this.linkMark = new int[graph.linkCount];
+        this.nodeMark = new int[graph.nodeCount];
+        this.plateauMark = new int[graph.nodeCount];
+        this.viaCost = new double[graph.nodeCount];
+        this.plateauFrom = new double[graph.nodeCount];
+        this.plateauTo = new double[graph.nodeCount];
+        this.viaHeap = new NodeMinHeap(graph.nodeCount, i -> this.viaCost[i], (i, c) -> this.viaCost[i] = c);
+    }
+
+    public void setTargetPaths(int targetPaths) {
+        this.targetPaths = targetPaths;
+    }
+
+    public void setMaxOverlap(double maxOverlap) {
+        this.maxOverlap = maxOverlap;
+    }
+
+    public void setMaxRejections(int maxRejections) {
+        this.maxRejections = maxRejections;
+    }
+
+    public void setPenaltyFactor(double penaltyFactor) {
+        this.penaltyFactor = penaltyFactor;
+    }
+
+    public void setMaxIterations(int maxIterations) {
+        this.maxIterations = maxIterations;
+    }
+
+    public void setMaxStretch(double maxStretch) {
+        this.maxStretch = maxStretch;
+    }
+
+    // Layers: link disutilities (indexed by link index) for LABELLING, the first layer is used by the other methods
+    public List<int[]> generate(Method method, int startNodeIdx, int endNodeIdx, double[][] layers) {
+        switch (method) {
+            case LABELLING:
+                return labelling(startNodeIdx, endNodeIdx, layers);
+            case LINK_PENALTY:
+                return linkPenalty(startNodeIdx, endNodeIdx, layers[0]);
+            case VIA_NODE:
+                return viaNode(startNodeIdx, endNodeIdx, layers[0]);
+            default:
+                throw new RuntimeException("Choice set method " + method + " not supported!");
+        }
+    }
+
+    public List<int[]> labelling(int startNodeIdx, int endNodeIdx, double[][] layers) {
+        List<int[]> paths = new ArrayList<>(this.targetPaths);
+        int rejections = 0;
+        for (double[] layer : layers) {
+            this.fwdCalculator.setLinkDisutility(layer);
+            int[] path = this.fwdCalculator.calculate(startNodeIdx, endNodeIdx);
+            if (path == null) {
+                break;
+            }
+            rejections = accept(paths, path) ? 0 : rejections + 1;
+            if (paths.size() >= this.targetPaths || rejections >= this.maxRejections) {
+                break;
+            }
+        }
+        return paths;
+    }
+
+    public List<int[]> linkPenalty(int startNodeIdx, int endNodeIdx, double[] disutility) {
+
+        // Penalties are applied to a copy (the base disutility may be shared between threads)
+        System.arraycopy(disutility, 0, this.penalised, 0, this.graph.linkCount);
+        this.fwdCalculator.setLinkDisutility(this.penalised);
+
+        List<int[]> paths = new ArrayList<>(this.targetPaths);
+        int rejections = 0;
+        for (int iteration = 0; iteration < this.maxIterations; iteration++) {
+            int[] path = this.fwdCalculator.calculate(startNodeIdx, endNodeIdx);
+            if (path == null) {
+                break;
+            }
+            for (int linkIdx : path) {
+                this.penalised[linkIdx] *= this.penaltyFactor;
+            }
+            rejections = accept(paths, path) ? 0 : rejections + 1;
+            if (paths.size() >= this.targetPaths || rejections >= this.maxRejections) {
+                break;
+            }
+        }
+        return paths;
+    }
+
+    public List<int[]> viaNode(int startNodeIdx, int endNodeIdx, double[] disutility) {
+        List<int[]> paths = new ArrayList<>(this.targetPaths);
+
+        // Shortest path, then trees from the start and to the end node up to the stretched cost
+        this.fwdCalculator.setLinkDisutility(disutility);
+        this.bwdCalculator.setLinkDisutility(disutility);
+        int[] shortest = this.fwdCalculator.calculate(startNodeIdx, endNodeIdx);
+        if (shortest == null) {
+            return paths;
+        }
+        double maxCost = (1. + this.maxStretch) * this.fwdCalculator.getSettledCost(endNodeIdx);
+        this.currentPlateau++;
+        accept(paths, shortest);
+        markPlateau(shortest);
+
+        this.fwdCalculator.calculate(startNodeIdx, maxCost);
+        this.bwdCalculator.calculate(endNodeIdx, maxCost);
+
+        // Plateau cost from the start of its chain up to each node (forward tree order) and from each node to the end of
+        // its chain (backward tree order). A link is on a plateau if it is the tree link of its to-node in the forward
+        // tree and of its from-node in the backward tree.
+        for (int i = 0; i < this.fwdCalculator.getSettledCount(); i++) {
+            int node = this.fwdCalculator.getSettledNode(i);
+            int linkIdx = this.fwdCalculator.getSettledLink(node);
+            int fromNode = linkIdx != -1 ? this.graph.getFromNodeIndex(linkIdx) : -1;
+            boolean plateau = linkIdx != -1 && this.bwdCalculator.getSettledLink(fromNode) == linkIdx;
+            this.plateauFrom[node] = plateau ? this.plateauFrom[fromNode] + disutility[linkIdx] : 0.;
+        }
+        for (int i = 0; i < this.bwdCalculator.getSettledCount(); i++) {
+            int node = this.bwdCalculator.getSettledNode(i);
+            int linkIdx = this.bwdCalculator.getSettledLink(node);
+            int toNode = linkIdx != -1 ? this.graph.getToNodeIndex(linkIdx) : -1;
+            boolean plateau = linkIdx != -1 && this.fwdCalculator.getSettledLink(toNode) == linkIdx;
+            this.plateauTo[node] = plateau ? this.plateauTo[toNode] + disutility[linkIdx] : 0.;
+        }
+
+        // Via node candidates on plateaus, longest plateau first
+        this.viaHeap.clear();
+        for (int i = 0; i < this.bwdCalculator.getSettledCount(); i++) {
+            int node = this.bwdCalculator.getSettledNode(i);
+            double cost = this.fwdCalculator.getSettledCost(node) + this.bwdCalculator.getSettledCost(node);
+            if (cost <= maxCost) {
+                double plateauLength = this.plateauFrom[node] + this.plateauTo[node];
+                if (plateauLength > 0.) {
+                    this.viaCost[node] = -plateauLength;
+                    this.viaHeap.insert(node);
+                }
+            }
+        }
+
+        int rejections = 0;
+        while (!this.viaHeap.isEmpty() && paths.size() < this.targetPaths && rejections < this.maxRejections) {
+            int via = this.viaHeap.poll();
+            if (this.plateauMark[via] == this.currentPlateau) {
+                continue;
+            }
+            int[] toVia = this.fwdCalculator.getPath(via);
+            int[] fromVia = this.bwdCalculator.getPath(via);
+            int[] path = Arrays.copyOf(toVia, toVia.length + fromVia.length);
+            System.arraycopy(fromVia, 0, path, toVia.length, fromVia.length);
+
+            // Other nodes of the same plateau give the same path
+            markPlateau(path);
+            if (!isSimple(path)) {
+                continue;
+            }
+            rejections = accept(paths, path) ? 0 : rejections + 1;
+        }
+        return paths;
+    }
+
+    // Adds the path if it is new and does not overlap too much with the accepted paths
+    private boolean accept(List<int[]> paths, int[] path) {
+        nextMark();
+        double length = 0.;
+        for (int linkIdx : path) {
+            this.linkMark[linkIdx] = this.currentMark;
+            length += this.graph.getLink(linkIdx).getLength();
+        }
+        for (int[] other : paths) {
+            if (Arrays.equals(other, path)) {
+                return false;
+            }
+            double shared = 0.;
+            for (int linkIdx : other) {
+                if (this.linkMark[linkIdx] == this.currentMark) {
+                    shared += this.graph.getLink(linkIdx).getLength();
+                }
+            }
+            if (length > 0. && shared / length > this.maxOverlap) {
+                return false;
+            }
+        }
+        paths.add(path);
+        return true;
+    }
+
+    // A via path can revisit a node where its two halves meet
+    private boolean isSimple(int[] path) {
+        nextMark();
+        if (path.length > 0) {
+            this.nodeMark[this.graph.getFromNodeIndex(path[0])] = this.currentMark;
+        }
+        for (int linkIdx : path) {
+            int toNode = this.graph.getToNodeIndex(linkIdx);
+            if (this.nodeMark[toNode] == this.currentMark) {
+                return false;
+            }
+            this.nodeMark[toNode] = this.currentMark;
+        }
+        return true;
+    }
+
+    // Via nodes on a tried path would mostly give the same path again (plateau), so they are skipped
+    private void markPlateau(int[] path) {
+        if (path.length > 0) {
+            this.plateauMark[this.graph.getFromNodeIndex(path[0])] = this.currentPlateau;
+        }
+        for (int linkIdx : path) {
+            this.plateauMark[this.graph.getToNodeIndex(linkIdx)] = this.currentPlateau;
+        }
+    }
+
+    private void nextMark() {
+        this.currentMark++;
+    }
+}
@@ -0,0 +1,40 @@
+package routing.graph;
+
+import org.matsim.api.core.v01.network.Link;
+
+import java.util.Arrays;
+
+// Compares two graphs built with the same travel time and disutility (e.g. before and after a network edit)
+
+public final class GraphDiff {
+
+    private GraphDiff() {
+    }
+
+    // Indices of links that were added, removed, or whose end nodes, length, travel time or disutility changed
+    public static int[] changedLinks(SpeedyGraph base, SpeedyGraph edited) {
+        int linkCount = Math.max(base.linkCount, edited.linkCount);
+        int[] changed = new int[16];
+        int n = 0;
+        for(int i = 0 ; i < linkCount ; i++) {
+            Link a = i < base.linkCount ? base.getLink(i) : null;
+            Link b = i < edited.linkCount ? edited.getLink(i) : null;
+            if(a == null && b == null) {
+                continue;
+            }
+            boolean differs = a == null || b == null ||
+                    !a.getFromNode().getId().equals(b.getFromNode().getId()) ||
+                    !a.getToNode().getId().equals(b.getToNode().getId()) ||
+                    a.getLength() != b.getLength() ||
+                    base.getLinkTime(i) != edited.getLinkTime(i) ||
+                    base.getLinkDisutility(i) != edited.getLinkDisutility(i);
+            if(differs) {
+                if(n == changed.length) {
+                    changed = Arrays.copyOf(changed, n * 2);
+                }
+                changed[n++] = i;
+            }
+        }
+        return Arrays.copyOf(changed, n);
+    }
+}
@@ -0,0 +1,41 @@
+package routing.graph;
+
+import org.matsim.api.core.v01.network.Link;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+// SHA-256 of a graph's links (IDs, end nodes, length, travel time and disutility), so it changes with the network,
+// the travel time or the disutility (including its weights) the graph was built with
+
+public final class GraphFingerprint {
+
+    private GraphFingerprint() {
+    }
+
+    public static byte[] hash(SpeedyGraph graph) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(24);
+        for(int i = 0 ; i < graph.linkCount ; i++) {
+            Link link = graph.getLink(i);
+            if(link == null) {
+                continue;
+            }
+            String ids = link.getId() + "|" + link.getFromNode().getId() + "|" + link.getToNode().getId() + "|";
+            digest.update(ids.getBytes(StandardCharsets.UTF_8));
+            buffer.clear();
+            buffer.putDouble(link.getLength());
+            buffer.putDouble(graph.getLinkTime(i));
+            buffer.putDouble(graph.getLinkDisutility(i));
+            digest.update(buffer.array(), 0, buffer.position());
+        }
+        return digest.digest();
+    }
+}
@@ -0,0 +1,227 @@
+package routing.graph;
+
+import java.util.Arrays;
+
+/**
+ * Least-cost-path calculator on a {@link SpeedyGraph}, point-to-point or from one start node to many end nodes. The
+ * search stops as soon as all end nodes are settled and paths are returned as link indices, so attributes can be summed
+ * from per-link arrays without touching Link objects. Demand to the end nodes can also be loaded onto the tree in one
+ * sweep over the settled nodes (see loadTree). A backward calculator grows its tree over in-links towards the start
+ * node, and its paths run from the given node to the start node.
+ * <p>
+ * Node data is reset lazily with a stamp per calculation, so each call only costs the part of the graph it searches.
+ * Uses the graph's precomputed (time 0) travel disutilities, or link disutilities set per instance, so that several
+ * weightings can share one graph topology. NOT thread-safe: create one instance per thread.
+ */
+public class LcpPathCalculator {
+
+    private final SpeedyGraph graph;
+    private final boolean fwd;
+    private double[] linkDisutility;
+    private final double[] cost;
+    private final int[] comingFrom;
+    private final int[] comingFromLink;
+    private final int[] stamp;
+    private final int[] settled;
+    private final int[] target;
+    private final int[] settledOrder;
+    private final int[] demand;
+    private final int[] singleTarget = new int[1];
+    private int settledCount;
+    private int currentStamp;
+    private int currentStart = -1;
+
+    private final SpeedyGraph.LinkIterator linkIterator;
+    private final NodeMinHeap pq;
+
+    public LcpPathCalculator(SpeedyGraph graph) {
+        this(graph, true);
+    }
+
+    public LcpPathCalculator(SpeedyGraph graph, boolean fwd) {
+        this.graph = graph;
+        this.fwd = fwd;
+        this.linkDisutility = graph.getLinkDisutilities();
+        this.cost = new double[graph.nodeCount];
+        this.comingFrom = new int[graph.nodeCount];
+        this.comingFromLink = new int[graph.nodeCount];
+        this.stamp = new int[graph.nodeCount];
+        this.settled = new int[graph.nodeCount];
+        this.target = new int[graph.nodeCount];
+        this.settledOrder = new int[graph.nodeCount];
+        this.demand = new int[graph.nodeCount];
+        this.pq = new NodeMinHeap(graph.nodeCount, this::getCost, this::setCost);
+        this.linkIterator = fwd ? graph.getOutLinkIterator() : graph.getInLinkIterator();
+    }
+
+    // Link disutilities (indexed by link index) to use instead of the graph's, e.g. a worker's reusable weight buffer
+    public void setLinkDisutility(double[] linkDisutility) {
+        if (linkDisutility.length < this.graph.linkCount) {
+            throw new IllegalArgumentException("Link disutility array has " + linkDisutility.length + " entries but the graph has " + this.graph.linkCount + " links.");
+        }
+        this.linkDisutility = linkDisutility;
+    }
+
+    // Link indices from start to end node (empty if they are the same node, null if the end node is unreachable)
+    public int[] calculate(int startNodeIdx, int endNodeIdx) {
+        this.singleTarget[0] = endNodeIdx;
+        search(startNodeIdx, this.singleTarget, 1, Double.POSITIVE_INFINITY);
+        return getPath(endNodeIdx);
+    }
+
+    // Tree from the start node, truncated once the first endNodeCount end nodes are all settled (see getPath)
+    public void calculate(int startNodeIdx, int[] endNodeIdx, int endNodeCount) {
+        search(startNodeIdx, endNodeIdx, endNodeCount, Double.POSITIVE_INFINITY);
+    }
+
+    // Tree from the start node over all nodes with cost up to maxCost
+    public void calculate(int startNodeIdx, double maxCost) {
+        search(startNodeIdx, this.singleTarget, 0, maxCost);
+    }
+
+    private void search(int startNodeIdx, int[] endNodeIdx, int endNodeCount, double maxCost) {
+
+        nextStamp();
+        this.currentStart = startNodeIdx;
+
+        int remaining = 0;
+        for (int i = 0; i < endNodeCount; i++) {
+            int node = endNodeIdx[i];
+            if (this.target[node] != this.currentStamp) {
+                this.target[node] = this.currentStamp;
+                remaining++;
+            }
+        }
+
+        visit(startNodeIdx, 0., -1, -1);
+        this.settledCount = 0;
+
+        this.pq.clear();
+        this.pq.insert(startNodeIdx);
+
+        while (!this.pq.isEmpty()) {
+            final int nodeIdx = this.pq.poll();
+            if (this.cost[nodeIdx] > maxCost) {
+                return;
+            }
+            this.settled[nodeIdx] = this.currentStamp;
+            this.settledOrder[this.settledCount++] = nodeIdx;
+            if (this.target[nodeIdx] == this.currentStamp && --remaining == 0) {
+                return;
+            }
+            double currCost = this.cost[nodeIdx];
+
+            this.linkIterator.reset(nodeIdx);
+            while (this.linkIterator.next()) {
+                int linkIdx = this.linkIterator.getLinkIndex();
+                int nextNode = this.fwd ? this.linkIterator.getToNodeIndex() : this.linkIterator.getFromNodeIndex();
+                double newCost = currCost + this.linkDisutility[linkIdx];
+
+                if (this.stamp[nextNode] == this.currentStamp) {
+                    if (newCost < this.cost[nextNode]) {
+                        this.pq.decreaseKey(nextNode, newCost);
+                        this.comingFrom[nextNode] = nodeIdx;
+                        this.comingFromLink[nextNode] = linkIdx;
+                    }
+                } else {
+                    visit(nextNode, newCost, nodeIdx, linkIdx);
+                    this.pq.insert(nextNode);
+                }
+            }
+        }
+    }
+
+    // Cost of a settled node in the last calculation (infinite if it was not settled)
+    public double getSettledCost(int nodeIdx) {
+        return this.settled[nodeIdx] == this.currentStamp ? this.cost[nodeIdx] : Double.POSITIVE_INFINITY;
+    }
+
+    // Nodes settled in the last calculation, in order of increasing cost (the start node first)
+    public int getSettledCount() {
+        return this.settledCount;
+    }
+
+    public int getSettledNode(int i) {
+        return this.settledOrder[i];
+    }
+
+    // Tree link into a settled node of the last calculation (-1 for the start node or if the node was not settled).
+    // Backward: the node's out-link towards the start node.
+    int getSettledLink(int nodeIdx) {
+        return this.settled[nodeIdx] == this.currentStamp ? this.comingFromLink[nodeIdx] : -1;
+    }
+
+    // Path to an end node of the last calculation (null if it was not reached). Backward: from the end node to the start node.
+    public int[] getPath(int endNodeIdx) {
+        if (this.settled[endNodeIdx] != this.currentStamp) {
+            return null;
+        }
+        return constructPath(this.currentStart, endNodeIdx);
+    }
+
+    // All-or-nothing assignment of one trip per end node (repeats allowed) of the last calculation: nodes are settled
+    // after their tree parent, so a reverse sweep over the settled nodes pushes each node's demand onto its incoming
+    // tree link and up to its parent. Adds to linkVolumes and returns the number of trips loaded (end nodes reached).
+    public int loadTree(int[] endNodeIdx, int endNodeCount, int[] linkVolumes) {
+        int loaded = 0;
+        for (int i = 0; i < endNodeCount; i++) {
+            int node = endNodeIdx[i];
+            if (this.settled[node] == this.currentStamp) {
+                this.demand[node]++;
+                loaded++;
+            }
+        }
+        for (int i = this.settledCount - 1; i > 0; i--) {
+            int node = this.settledOrder[i];
+            int nodeDemand = this.demand[node];
+            if (nodeDemand > 0) {
+                linkVolumes[this.comingFromLink[node]] += nodeDemand;
+                this.demand[this.comingFrom[node]] += nodeDemand;
+                this.demand[node] = 0;
+            }
+        }
+        this.demand[this.currentStart] = 0;
+        return loaded;
+    }
+
+    private int[] constructPath(int startNodeIdx, int endNodeIdx) {
+        int size = 0;
+        for (int node = endNodeIdx; node != startNodeIdx; node = this.comingFrom[node]) {
+            size++;
+        }
+        int[] path = new int[size];
+        int i = this.fwd ? size : -1;
+        for (int node = endNodeIdx; node != startNodeIdx; node = this.comingFrom[node]) {
+            if (this.fwd) {
+                path[--i] = this.comingFromLink[node];
+            } else {
+                path[++i] = this.comingFromLink[node];
+            }
+        }
+        return path;
+    }
+
+    private void visit(int nodeIdx, double cost, int fromNode, int fromLink) {
+        this.stamp[nodeIdx] = this.currentStamp;
+        this.cost[nodeIdx] = cost;
+        this.comingFrom[nodeIdx] = fromNode;
+        this.comingFromLink[nodeIdx] = fromLink;
+    }
+
+    private void nextStamp() {
+        if (++this.currentStamp == Integer.MAX_VALUE) {
+            Arrays.fill(this.stamp, 0);
+            Arrays.fill(this.settled, 0);
+            Arrays.fill(this.target, 0);
+            this.currentStamp = 1;
+        }
+    }
+
+    private double getCost(int nodeIdx) {
+        return this.stamp[nodeIdx] == this.currentStamp ? this.cost[nodeIdx] : Double.POSITIVE_INFINITY;
+    }
+
+    private void setCost(int nodeIdx, double cost) {
+        this.cost[nodeIdx] = cost;
+    }
+}
@@ -131,6 +131,11 @@ public class LcpTree1Way implements PathTree {
         return OptionalTime.defined(time);
     }
 
+    @Override
+    public double getRawTime(int nodeIndex) {
+        return this.data[nodeIndex * 3 + 1];
+    }
+
     @Override
     public double getDistance(int nodeIndex) {
         return this.data[nodeIndex * 3 + 2];
@@ -52,4 +52,9 @@ public class LcpTree2Way implements PathTree {
         }
         return OptionalTime.defined(time/2);
     }
+
+    @Override
+    public double getRawTime(int nodeIndex) {
+        return (lcpTreeFwd.getRawTime(nodeIndex) + lcpTreeRev.getRawTime(nodeIndex))/2;
+    }
 }
@@ -45,12 +45,7 @@ class NodeMinHeap {
 	}
 
 	void decreaseKey(int node, double cost) {
-		int i;
-		for (i = 0; i < this.size; i++) {
-			if (this.heap[i] == node) {
-				break;
-			}
-		}
+		int i = this.pos[node];
 		if (this.costGetter.getCost(this.heap[i]) < cost) {
 			throw new IllegalArgumentException("existing cost is already smaller than new cost.");
 		}
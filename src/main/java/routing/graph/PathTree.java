@@ -16,5 +16,10 @@ public interface PathTree {
     double getDistance(int nodeIndex);
     OptionalTime getTime(int nodeIndex);
 
+    // Time without the OptionalTime wrapper (infinite if undefined), for tight loops over many nodes
+    default double getRawTime(int nodeIndex) {
+        return getTime(nodeIndex).orElse(Double.POSITIVE_INFINITY);
+    }
+
 }
 
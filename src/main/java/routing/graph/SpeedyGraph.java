@@ -162,7 +162,10 @@ public class SpeedyGraph {
     }
 
     public double getLinkDisutility(int index) {return this.linkDisutility[index];}
-    double getLinkTime(int index) {return this.linkTime[index];}
+    double[] getLinkDisutilities() {return this.linkDisutility;}
+    int getFromNodeIndex(int linkIdx) {return this.linkData[linkIdx * LINK_SIZE + 2];}
+    int getToNodeIndex(int linkIdx) {return this.linkData[linkIdx * LINK_SIZE + 3];}
+    public double getLinkTime(int index) {return this.linkTime[index];}
 
     Node getNode(int index) {
         return this.nodes[index];
@@ -172,6 +175,10 @@ public class SpeedyGraph {
         return this.nodeCount;
     }
 
+    public int getLinkCount() {
+        return this.linkCount;
+    }
+
     public interface LinkIterator {
 
         void reset(int nodeIdx);
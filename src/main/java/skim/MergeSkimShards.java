@@ -0,0 +1,127 @@
+package skim;
+
+import io.OmxWriter;
+import io.RowSpillFile;
+import io.Shard;
+import org.apache.log4j.Logger;
+import resources.Properties;
+import resources.Resources;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.*;
+
+// Assembles the OMX outputs of a sharded skim run (shard.count / shard.index) from the partial spill files.
+// Every shard's manifest must list the same outputs and every origin zone must be covered exactly once.
+
+public class MergeSkimShards {
+
+    private final static Logger logger = Logger.getLogger(MergeSkimShards.class);
+    private final static String SEP = ",";
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length != 1) {
+            throw new RuntimeException("""
+                    Program requires 1 argument:\s
+                    (0) Properties file (as used for the shard runs)""");
+        }
+
+        Resources.initializeResources(args[0]);
+        String checkpointDirectory = Resources.instance.getString(Properties.CHECKPOINT_DIRECTORY);
+        int shardCount = Resources.instance.getInt(Properties.SHARD_COUNT);
+
+        // Read and compare manifests
+        List<String> manifest = null;
+        for(int k = 0 ; k < shardCount ; k++) {
+            List<String> shardManifest = readManifest(checkpointDirectory + "/skim_manifest" + Shard.getSuffix(k,shardCount) + ".csv");
+            if(manifest == null) {
+                manifest = shardManifest;
+            } else if(!manifest.equals(shardManifest)) {
+                throw new RuntimeException("Manifest of shard " + k + " does not match shard 0. Were all shards run with the same inputs?");
+            }
+        }
+
+        // Zone lookup
+        int[] zoneLookup = Arrays.stream(manifest.get(0).split(SEP)).skip(1).mapToInt(Integer::parseInt).toArray();
+        int dimSize = zoneLookup.length;
+        Map<Integer,Integer> id2index = new HashMap<>(dimSize);
+        for(int i = 0 ; i < dimSize ; i++) {
+            id2index.put(zoneLookup[i],i);
+        }
+
+        // Group matrices by output file
+        Map<String,Map<String,String>> outputs = new LinkedHashMap<>();
+        for(String line : manifest.subList(1,manifest.size())) {
+            String[] parts = line.split(SEP);
+            outputs.computeIfAbsent(parts[0], k -> new LinkedHashMap<>()).put(parts[1],parts[2]);
+        }
+
+        // Assemble and write
+        Map<String,double[][]> assembled = new HashMap<>();
+        for(Map.Entry<String,Map<String,String>> output : outputs.entrySet()) {
+            Map<String,double[][]> matrices = new LinkedHashMap<>();
+            for(Map.Entry<String,String> matrix : output.getValue().entrySet()) {
+                String label = matrix.getValue();
+                double[][] costs = assembled.get(label);
+                if(costs == null) {
+                    costs = mergeShards(checkpointDirectory, label, shardCount, zoneLookup);
+                    assembled.put(label,costs);
+                }
+                matrices.put(matrix.getKey(),costs);
+            }
+            OmxWriter.createOmxSkimMatrix(output.getKey(),matrices,id2index);
+            logger.info("Merged " + matrices.size() + " matrices from " + shardCount + " shards into " + output.getKey());
+        }
+    }
+
+    private static double[][] mergeShards(String checkpointDirectory, String label, int shardCount, int[] zoneLookup) throws IOException {
+        int dimSize = zoneLookup.length;
+        double[][] costs = new double[dimSize][];
+        Map<Integer,Integer> zoneShard = new HashMap<>(dimSize);
+        for(int k = 0 ; k < shardCount ; k++) {
+            Shard shard = new Shard(k,shardCount);
+            String filePath = SkimCalculator.getSpillFilePath(checkpointDirectory,label,shard);
+            Map<Integer,double[]> rows = RowSpillFile.read(filePath,label,dimSize);
+            for(Map.Entry<Integer,double[]> row : rows.entrySet()) {
+                Integer previousShard = zoneShard.put(row.getKey(),k);
+                if(previousShard != null) {
+                    throw new RuntimeException("Zone " + row.getKey() + " of " + label + " found in shards " + previousShard + " and " + k);
+                }
+            }
+            for(int i = 0 ; i < dimSize ; i++) {
+                double[] row = rows.get(zoneLookup[i]);
+                if(row != null) {
+                    costs[i] = row;
+                }
+            }
+        }
+
+        // Validate coverage
+        List<Integer> missing = new ArrayList<>();
+        for(int i = 0 ; i < dimSize ; i++) {
+            if(costs[i] == null) {
+                missing.add(zoneLookup[i]);
+            }
+        }
+        if(!missing.isEmpty()) {
+            throw new RuntimeException(label + " is missing " + missing.size() + " of " + dimSize + " origin zones (e.g. zone " + missing.get(0) + "). Re-run the incomplete shards with " + Properties.CHECKPOINT_RESUME + "=true.");
+        }
+        return costs;
+    }
+
+    private static List<String> readManifest(String filePath) throws IOException {
+        List<String> lines = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new FileReader(filePath))) {
+            String line;
+            while((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        if(lines.isEmpty()) {
+            throw new RuntimeException("Empty shard manifest " + filePath);
+        }
+        return lines;
+    }
+}
@@ -4,6 +4,7 @@ import demand.volumes.DailyVolumeEventHandler;
 import estimation.RouteAttribute;
 import gis.GpkgReader;
 import io.OmxWriter;
+import io.SparseSkimIO;
 import network.NetworkUtils2;
 import org.matsim.api.core.v01.TransportMode;
 import org.matsim.api.core.v01.network.Network;
@@ -100,18 +101,40 @@ public class RunSkimsManchester {
         calc.calculate("dist",networkCar,carXy2l,freespeed,new DistanceDisutility(),null);
         calc.calculate("free",networkCar,carXy2l,freespeed,freespeed,null);
         calc.calculate("congested",networkCar,carXy2l,congestedTime,congestedDisutility,null);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "car.omx",calc.getResults(),calc.getId2index());
+        calc.writeOmx(filePathPrefix + "car.omx");
         calc.clearResults();
 
-        // Bike skims
-        calc.calculate("dist",networkBike,networkBike,ttBike,new DistanceDisutility(),bike);
-        calc.calculate("time",networkBike,networkBike,ttBike,new OnlyTimeDependentTravelDisutility(ttBike),bike);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "bike.omx",calc.getResults(),calc.getId2index());
-
-        // Walk skims
-        calc.calculate("dist",networkWalk,networkWalk,ttWalk,new DistanceDisutility(),null);
-        calc.calculate("time",networkWalk,networkWalk,ttWalk,new OnlyTimeDependentTravelDisutility(ttWalk),null);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "walk.omx",calc.getResults(),calc.getId2index());
+        // Active mode distance & time skims (sparse if cutoffs are given)
+        String sparseCutoffDist = Resources.instance.getString(Properties.SKIM_SPARSE_CUTOFF_DIST);
+        String sparseCutoffTime = Resources.instance.getString(Properties.SKIM_SPARSE_CUTOFF_TIME);
+        if(sparseCutoffDist != null && sparseCutoffTime != null) {
+            double cutoffDist = Double.parseDouble(sparseCutoffDist);
+            double cutoffTime = Double.parseDouble(sparseCutoffTime);
+
+            // Bike skims
+            calc.calculateSparse("dist",networkBike,networkBike,ttBike,new DistanceDisutility(),bike,cutoffDist);
+            calc.calculateSparse("time",networkBike,networkBike,ttBike,new OnlyTimeDependentTravelDisutility(ttBike),bike,cutoffTime);
+            OmxWriter.createOmxSparseSkimMatrix(filePathPrefix + "bike_sparse.omx",calc.getSparseResults());
+            SparseSkimIO.write(filePathPrefix + "bike_sparse.csr",calc.getSparseResults());
+            calc.clearResults();
+
+            // Walk skims
+            calc.calculateSparse("dist",networkWalk,networkWalk,ttWalk,new DistanceDisutility(),null,cutoffDist);
+            calc.calculateSparse("time",networkWalk,networkWalk,ttWalk,new OnlyTimeDependentTravelDisutility(ttWalk),null,cutoffTime);
+            OmxWriter.createOmxSparseSkimMatrix(filePathPrefix + "walk_sparse.omx",calc.getSparseResults());
+            SparseSkimIO.write(filePathPrefix + "walk_sparse.csr",calc.getSparseResults());
+            calc.clearResults();
+        } else {
+            // Bike skims
+            calc.calculate("dist",networkBike,networkBike,ttBike,new DistanceDisutility(),bike,null);
+            calc.calculate("time",networkBike,networkBike,ttBike,new OnlyTimeDependentTravelDisutility(ttBike),bike);
+            calc.writeOmx(filePathPrefix + "bike.omx");
+
+            // Walk skims
+            calc.calculate("dist",networkWalk,networkWalk,ttWalk,new DistanceDisutility(),null,null);
+            calc.calculate("time",networkWalk,networkWalk,ttWalk,new OnlyTimeDependentTravelDisutility(ttWalk),null,null);
+            calc.writeOmx(filePathPrefix + "walk.omx");
+        }
 
         // PURPOSE-SPECIFIC MATRICES, FOR IMPLEMENTING IN MITO
         // Bike attributes
@@ -132,7 +155,7 @@ public class RunSkimsManchester {
         calc.calculate("bike",networkBike,networkBike,ttBike,tdBikeHBW,bike);
         calc.calculate("bike_female",networkBike,networkBike,ttBike,tdBikeHBW_f,bike);
         calc.calculate("walk",networkWalk,networkWalk,ttWalk,tdWalkHBW,null);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "HBW.omx",calc.getResults(),calc.getId2index());
+        calc.writeOmx(filePathPrefix + "HBW.omx");
         calc.clearResults();
 
         // Home-based Education (HBE)
@@ -140,7 +163,7 @@ public class RunSkimsManchester {
         TravelDisutility tdWalkHBE = new JibeDisutility4(networkWalk,null,"walk",ttWalk,walkAttributes, new double[] {0,0,1.0037846});
         calc.calculate("bike",networkBike,networkBike,ttBike,tdBikeHBE,bike);
         calc.calculate("walk",networkWalk,networkWalk,ttWalk,tdWalkHBE,null);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "HBE.omx",calc.getResults(),calc.getId2index());
+        calc.writeOmx(filePathPrefix + "HBE.omx");
         calc.clearResults();
 
         // Home-based Discretionary (HBD)
@@ -154,19 +177,19 @@ public class RunSkimsManchester {
         calc.calculate("walk",networkWalk,networkWalk,ttWalk,tdWalkHBD,null);
         calc.calculate("walk_child",networkWalk,networkWalk,ttWalk,tdWalkHBD_c,null);
         calc.calculate("walk_elderly",networkWalk,networkWalk,ttWalk,tdWalkHBD_o,null);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "HBD.omx",calc.getResults(),calc.getId2index());
+        calc.writeOmx(filePathPrefix + "HBD.omx");
         calc.clearResults();
 
         // Home-based Accompany (HBA)
         TravelDisutility tdWalkHBA = new JibeDisutility4(networkWalk,null,"walk",ttWalk,walkAttributes, new double[] {0.6908324,0,0});
         calc.calculate("walk",networkWalk,networkWalk,ttWalk,tdWalkHBA,null);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "HBA.omx",calc.getResults(),calc.getId2index());
+        calc.writeOmx(filePathPrefix + "HBA.omx");
         calc.clearResults();
 
         // Non home-based other (NHBO)
         TravelDisutility tdWalkNHBO = new JibeDisutility4(networkWalk,null,"walk",ttWalk,walkAttributes, new double[] {0,3.4485883,0});
         calc.calculate("walk",networkWalk,networkWalk,ttWalk,tdWalkNHBO,null);
-        OmxWriter.createOmxSkimMatrix(filePathPrefix + "NHBO.omx",calc.getResults(),calc.getId2index());
+        calc.writeOmx(filePathPrefix + "NHBO.omx");
         calc.clearResults();
 
     }
@@ -4,17 +4,25 @@ import ch.sbb.matsim.analysis.skims.CalculateSkimMatrices;
 import ch.sbb.matsim.analysis.skims.FloatMatrix;
 import ch.sbb.matsim.analysis.skims.PTSkimMatrices;
 import io.OmxWriter;
+import io.RowSpillFile;
+import org.apache.log4j.Logger;
 import org.matsim.core.config.Config;
 import org.matsim.core.config.ConfigUtils;
 import org.opengis.referencing.FactoryException;
 import resources.Properties;
 import resources.Resources;
+import java.io.File;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
+import java.util.Set;
 
 public class RunSkimsPt {
 
+    private final static Logger logger = Logger.getLogger(RunSkimsPt.class);
+    private final static String[] MATRIX_NAMES = {"travelTime","accessTime","egressTime","busTimeShare"};
+
     public static void main(String[] args) throws IOException, FactoryException {
 
         if(args.length != 3) {
@@ -37,17 +45,100 @@ public class RunSkimsPt {
 
         CalculateSkimMatrices skims = new CalculateSkimMatrices("/",numberOfThreads);
         skims.loadSamplingPointsFromFile(zonesFilename);
+
+        // Checkpoint: the raptor calculation is a single library call, so matrices are spilled once it completes
+        String checkpointDirectory = Resources.instance.getString(Properties.CHECKPOINT_DIRECTORY);
+        boolean resume = Boolean.parseBoolean(Resources.instance.getString(Properties.CHECKPOINT_RESUME));
+        if(checkpointDirectory != null) {
+            Map<String,double[][]> matrices = resume ? readSpilledMatrices(checkpointDirectory,skims.getCoordsPerZone().keySet()) : null;
+            if(matrices == null) {
+                matrices = toDoubleMatrices(calculateMatrices(skims,transitNetworkFilePath,transitScheduleFilePath,config),skims.getCoordsPerZone().keySet());
+                spillMatrices(checkpointDirectory,matrices,skims.getCoordsPerZone().keySet());
+            }
+            OmxWriter.createOmxSkimMatrix(outputFile,matrices,getId2index(skims.getCoordsPerZone().keySet()));
+        } else {
+            // Write matrices
+            OmxWriter.createOmxSkimMatrix(outputFile,skims.getCoordsPerZone().keySet(),calculateMatrices(skims,transitNetworkFilePath,transitScheduleFilePath,config));
+        }
+
+    }
+
+    private static Map<String, FloatMatrix<String>> calculateMatrices(CalculateSkimMatrices skims, String transitNetworkFilePath,
+                                                                      String transitScheduleFilePath, Config config) throws IOException {
         PTSkimMatrices.PtIndicators<String> ptIndicators = skims.calculatePTMatrices(transitNetworkFilePath,transitScheduleFilePath,28800,30600,config,(a,b) -> b.getTransportMode().equals("bus"));
+        return selectMatrices(ptIndicators);
+    }
 
-        // Choose which matrices to write
+    // Choose which matrices to write
+    static Map<String, FloatMatrix<String>> selectMatrices(PTSkimMatrices.PtIndicators<String> ptIndicators) {
         Map<String, FloatMatrix<String>> matricesToWrite = new LinkedHashMap<>();
         matricesToWrite.put("travelTime",ptIndicators.travelTimeMatrix);
         matricesToWrite.put("accessTime",ptIndicators.accessTimeMatrix);
         matricesToWrite.put("egressTime",ptIndicators.egressTimeMatrix);
         matricesToWrite.put("busTimeShare",ptIndicators.trainTravelTimeShareMatrix);
+        return matricesToWrite;
+    }
 
-        // Write matrices
-        OmxWriter.createOmxSkimMatrix(outputFile,skims.getCoordsPerZone().keySet(),matricesToWrite);
+    static int[] getZoneLookup(Set<String> zoneNames) {
+        return zoneNames.stream().mapToInt(Integer::parseInt).sorted().toArray();
+    }
 
+    static Map<Integer,Integer> getId2index(Set<String> zoneNames) {
+        int[] zoneLookup = getZoneLookup(zoneNames);
+        Map<Integer,Integer> id2index = new HashMap<>(zoneLookup.length);
+        for(int i = 0 ; i < zoneLookup.length ; i++) {
+            id2index.put(zoneLookup[i],i);
+        }
+        return id2index;
+    }
+
+    private static Map<String,double[][]> toDoubleMatrices(Map<String, FloatMatrix<String>> floatMatrices, Set<String> zoneNames) {
+        int[] zoneLookup = getZoneLookup(zoneNames);
+        int zoneCount = zoneLookup.length;
+        Map<String,double[][]> matrices = new LinkedHashMap<>(floatMatrices.size());
+        for(Map.Entry<String, FloatMatrix<String>> e : floatMatrices.entrySet()) {
+            double[][] mat = new double[zoneCount][zoneCount];
+            for (int origIdx = 0 ; origIdx < zoneCount ; origIdx++) {
+                for (int destIdx = 0 ; destIdx < zoneCount ; destIdx++) {
+                    mat[origIdx][destIdx] = e.getValue().get(Integer.toString(zoneLookup[origIdx]),Integer.toString(zoneLookup[destIdx]));
+                }
+            }
+            matrices.put(e.getKey(),mat);
+        }
+        return matrices;
+    }
+
+    private static void spillMatrices(String checkpointDirectory, Map<String,double[][]> matrices, Set<String> zoneNames) throws IOException {
+        int[] zoneLookup = getZoneLookup(zoneNames);
+        for(Map.Entry<String,double[][]> e : matrices.entrySet()) {
+            try (RowSpillFile spillFile = new RowSpillFile(checkpointDirectory + "/pt_" + e.getKey() + ".spill", "pt_" + e.getKey(), zoneLookup.length, false)) {
+                for(int i = 0 ; i < zoneLookup.length ; i++) {
+                    spillFile.write(zoneLookup[i],e.getValue()[i]);
+                }
+            }
+        }
+    }
+
+    // Returns null unless every matrix has a complete spill file
+    private static Map<String,double[][]> readSpilledMatrices(String checkpointDirectory, Set<String> zoneNames) throws IOException {
+        int[] zoneLookup = getZoneLookup(zoneNames);
+        Map<String,double[][]> matrices = new LinkedHashMap<>();
+        for(String name : MATRIX_NAMES) {
+            String filePath = checkpointDirectory + "/pt_" + name + ".spill";
+            if(!new File(filePath).exists()) {
+                return null;
+            }
+            Map<Integer,double[]> rows = RowSpillFile.read(filePath, "pt_" + name, zoneLookup.length);
+            double[][] mat = new double[zoneLookup.length][];
+            for(int i = 0 ; i < zoneLookup.length ; i++) {
+                mat[i] = rows.get(zoneLookup[i]);
+                if(mat[i] == null) {
+                    return null;
+                }
+            }
+            matrices.put(name,mat);
+        }
+        logger.info("Resumed PT matrices from spill files in " + checkpointDirectory);
+        return matrices;
     }
 }
@@ -0,0 +1,237 @@
+package skim;
+
+import ch.sbb.matsim.analysis.skims.CalculateSkimMatrices;
+import ch.sbb.matsim.analysis.skims.FloatMatrix;
+import ch.sbb.matsim.analysis.skims.PTSkimMatrices;
+import ch.sbb.matsim.routing.pt.raptor.RaptorParameters;
+import ch.sbb.matsim.routing.pt.raptor.RaptorStaticConfig;
+import ch.sbb.matsim.routing.pt.raptor.RaptorUtils;
+import ch.sbb.matsim.routing.pt.raptor.SwissRailRaptorData;
+import io.OmxWriter;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Coord;
+import org.matsim.api.core.v01.Scenario;
+import org.matsim.core.config.Config;
+import org.matsim.core.config.ConfigUtils;
+import org.matsim.core.network.io.MatsimNetworkReader;
+import org.matsim.core.scenario.ScenarioUtils;
+import org.matsim.core.utils.misc.Time;
+import org.matsim.pt.transitSchedule.api.TransitScheduleReader;
+import resources.Properties;
+import resources.Resources;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// PT skims for several departure windows in one job. Raptor data and zone sampling points are prepared once.
+// Windows are split into elementary intervals at every window boundary, so overlapping windows share the
+// range queries of their common intervals. Intervals run concurrently and are combined per window.
+
+public class RunSkimsPtBatch {
+
+    private final static Logger logger = Logger.getLogger(RunSkimsPtBatch.class);
+    private final static double STEP_SIZE = 120;
+
+    public static void main(String[] args) throws IOException {
+
+        if(args.length != 3) {
+            throw new RuntimeException("""
+                    Program requires 3 arguments:\s
+                    (0) Properties file (with pt.skim.windows, e.g. AM=07:00:00-09:00:00;IP=10:00:00-15:00:00)\s
+                    (1) Zone centroids (.csv)\s
+                    (2) Output file path prefix (window name and .omx are appended)""");
+        }
+
+        Resources.initializeResources(args[0]);
+        String zonesFilename = args[1];
+        String outputPrefix = args[2];
+
+        Map<String,double[]> windows = parseWindows(Resources.instance.getString(Properties.PT_SKIM_WINDOWS));
+        int numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
+        String transitNetworkFilePath = Resources.instance.getString(Properties.MATSIM_TRANSIT_NETWORK);
+        String transitScheduleFilePath = Resources.instance.getString(Properties.MATSIM_TRANSIT_SCHEDULE);
+
+        // Zone sampling points (once)
+        CalculateSkimMatrices skims = new CalculateSkimMatrices("/",numberOfThreads);
+        skims.loadSamplingPointsFromFile(zonesFilename);
+        Map<String, Coord[]> coordsPerZone = skims.getCoordsPerZone();
+
+        // Raptor data (once)
+        Config config = ConfigUtils.createConfig();
+        Scenario scenario = ScenarioUtils.createScenario(config);
+        logger.info("loading schedule from " + transitScheduleFilePath);
+        new TransitScheduleReader(scenario).readFile(transitScheduleFilePath);
+        new MatsimNetworkReader(scenario.getNetwork()).readFile(transitNetworkFilePath);
+        logger.info("preparing PT matrix calculation");
+        RaptorStaticConfig raptorConfig = RaptorUtils.createStaticConfig(config);
+        raptorConfig.setOptimization(RaptorStaticConfig.RaptorOptimization.OneToAllRouting);
+        SwissRailRaptorData raptorData = SwissRailRaptorData.create(scenario.getTransitSchedule(), scenario.getTransitVehicles(), raptorConfig, scenario.getNetwork(), null);
+        RaptorParameters parameters = RaptorUtils.createParameters(config);
+
+        // Elementary intervals
+        List<double[]> intervals = getElementaryIntervals(windows.values());
+        logger.info(windows.size() + " windows split into " + intervals.size() + " elementary intervals");
+
+        // Calculate intervals concurrently, sharing the thread budget
+        int parallelIntervals = Math.max(1, Math.min(intervals.size(), numberOfThreads));
+        int threadsPerInterval = Math.max(1, numberOfThreads / parallelIntervals);
+        List<PTSkimMatrices.PtIndicators<String>> intervalResults = new ArrayList<>(Collections.nCopies(intervals.size(), null));
+        ConcurrentLinkedQueue<Integer> intervalQueue = new ConcurrentLinkedQueue<>();
+        for(int i = 0 ; i < intervals.size() ; i++) {
+            intervalQueue.add(i);
+        }
+
+        Thread[] threads = new Thread[parallelIntervals];
+        for (int i = 0; i < parallelIntervals; i++) {
+            IntervalWorker worker = new IntervalWorker(intervalQueue, intervals, raptorData, coordsPerZone, parameters, threadsPerInterval, intervalResults);
+            threads[i] = new Thread(worker, "PtSkimInterval-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Combine intervals for each window and write
+        int[] zoneLookup = RunSkimsPt.getZoneLookup(coordsPerZone.keySet());
+        Map<Integer,Integer> id2index = RunSkimsPt.getId2index(coordsPerZone.keySet());
+        for(Map.Entry<String,double[]> window : windows.entrySet()) {
+            List<PTSkimMatrices.PtIndicators<String>> windowResults = new ArrayList<>();
+            List<double[]> windowIntervals = new ArrayList<>();
+            for(int i = 0 ; i < intervals.size() ; i++) {
+                if(intervals.get(i)[0] >= window.getValue()[0] && intervals.get(i)[1] <= window.getValue()[1]) {
+                    windowResults.add(intervalResults.get(i));
+                    windowIntervals.add(intervals.get(i));
+                }
+            }
+            Map<String,double[][]> matrices = combine(windowResults, windowIntervals, zoneLookup);
+            OmxWriter.createOmxSkimMatrix(outputPrefix + window.getKey() + ".omx", matrices, id2index);
+            logger.info("Window " + window.getKey() + " combined from " + windowResults.size() + " intervals");
+        }
+    }
+
+    // Format: NAME=hh:mm:ss-hh:mm:ss;NAME=hh:mm:ss-hh:mm:ss
+    private static Map<String,double[]> parseWindows(String windowsString) {
+        if(windowsString == null) {
+            throw new RuntimeException("No departure windows given (" + Properties.PT_SKIM_WINDOWS + ")");
+        }
+        Map<String,double[]> windows = new LinkedHashMap<>();
+        for(String window : windowsString.split(";")) {
+            String[] nameAndTimes = window.trim().split("=");
+            String[] times = nameAndTimes[1].split("-");
+            double start = Time.parseTime(times[0].trim());
+            double end = Time.parseTime(times[1].trim());
+            if(end <= start) {
+                throw new RuntimeException("Window " + nameAndTimes[0] + " ends before it starts");
+            }
+            windows.put(nameAndTimes[0].trim(), new double[] {start, end});
+        }
+        return windows;
+    }
+
+    // Intervals between consecutive window boundaries that are covered by at least one window
+    private static List<double[]> getElementaryIntervals(Collection<double[]> windows) {
+        TreeSet<Double> bounds = new TreeSet<>();
+        for(double[] window : windows) {
+            bounds.add(window[0]);
+            bounds.add(window[1]);
+        }
+        List<double[]> intervals = new ArrayList<>();
+        Double previous = null;
+        for(double bound : bounds) {
+            if(previous != null) {
+                double start = previous;
+                if(windows.stream().anyMatch(w -> w[0] <= start && w[1] >= bound)) {
+                    intervals.add(new double[] {start, bound});
+                }
+            }
+            previous = bound;
+        }
+        return intervals;
+    }
+
+    // The written matrices are per-connection averages (times and bus time share), so cells are weighted by each
+    // interval's number of connections, estimated as its frequency (connections per hour) times its length.
+    // dataCountMatrix only counts the sampled point pairs with a connection, which is about the same in every interval
+    // regardless of service level, so it only marks cells with a result. Connections spanning an interval boundary are
+    // counted in the interval they depart in, which is slightly different to a single range query over the whole window.
+    private static Map<String,double[][]> combine(List<PTSkimMatrices.PtIndicators<String>> intervalResults, List<double[]> intervals,
+                                                  int[] zoneLookup) {
+        int zoneCount = zoneLookup.length;
+        String[] zones = Arrays.stream(zoneLookup).mapToObj(Integer::toString).toArray(String[]::new);
+
+        List<Map<String,FloatMatrix<String>>> selected = new ArrayList<>(intervalResults.size());
+        for(PTSkimMatrices.PtIndicators<String> result : intervalResults) {
+            selected.add(RunSkimsPt.selectMatrices(result));
+        }
+
+        Map<String,double[][]> matrices = new LinkedHashMap<>();
+        for(String name : selected.get(0).keySet()) {
+            double[][] mat = new double[zoneCount][zoneCount];
+            for(int origIdx = 0 ; origIdx < zoneCount ; origIdx++) {
+                for(int destIdx = 0 ; destIdx < zoneCount ; destIdx++) {
+                    double weightedSum = 0.;
+                    double totalCount = 0.;
+                    for(int k = 0 ; k < intervalResults.size() ; k++) {
+                        PTSkimMatrices.PtIndicators<String> result = intervalResults.get(k);
+                        if(result.dataCountMatrix.get(zones[origIdx],zones[destIdx]) > 0) {
+                            double hours = (intervals.get(k)[1] - intervals.get(k)[0]) / 3600.;
+                            double count = result.frequencyMatrix.get(zones[origIdx],zones[destIdx]) * hours;
+                            if(count > 0 && Double.isFinite(count)) {
+                                weightedSum += count * selected.get(k).get(name).get(zones[origIdx],zones[destIdx]);
+                                totalCount += count;
+                            }
+                        }
+                    }
+                    mat[origIdx][destIdx] = totalCount > 0 ? weightedSum / totalCount : Double.POSITIVE_INFINITY;
+                }
+            }
+            matrices.put(name,mat);
+        }
+        return matrices;
+    }
+
+    private static class IntervalWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> intervalQueue;
+        private final List<double[]> intervals;
+        private final SwissRailRaptorData raptorData;
+        private final Map<String, Coord[]> coordsPerZone;
+        private final RaptorParameters parameters;
+        private final int numberOfThreads;
+        private final List<PTSkimMatrices.PtIndicators<String>> results;
+
+        IntervalWorker(ConcurrentLinkedQueue<Integer> intervalQueue, List<double[]> intervals, SwissRailRaptorData raptorData,
+                       Map<String, Coord[]> coordsPerZone, RaptorParameters parameters, int numberOfThreads,
+                       List<PTSkimMatrices.PtIndicators<String>> results) {
+            this.intervalQueue = intervalQueue;
+            this.intervals = intervals;
+            this.raptorData = raptorData;
+            this.coordsPerZone = coordsPerZone;
+            this.parameters = parameters;
+            this.numberOfThreads = numberOfThreads;
+            this.results = results;
+        }
+
+        public void run() {
+            while (true) {
+                Integer i = this.intervalQueue.poll();
+                if (i == null) {
+                    return;
+                }
+                double[] interval = intervals.get(i);
+                logger.info("calc PT matrices for " + Time.writeTime(interval[0]) + " - " + Time.writeTime(interval[1]));
+                PTSkimMatrices.PtIndicators<String> indicators = PTSkimMatrices.calculateSkimMatrices(raptorData, coordsPerZone,
+                        interval[0], interval[1], STEP_SIZE, parameters, numberOfThreads, (a,b) -> b.getTransportMode().equals("bus"));
+                synchronized (results) {
+                    results.set(i, indicators);
+                }
+            }
+        }
+    }
+}
@@ -6,6 +6,9 @@ package skim;
 
 import gis.GisUtils;
 import gis.GpkgReader;
+import io.OmxWriter;
+import io.RowSpillFile;
+import io.Shard;
 import network.NetworkUtils2;
 import org.apache.log4j.Logger;
 import org.locationtech.jts.geom.Geometry;
@@ -26,16 +29,24 @@ import resources.Properties;
 import resources.Resources;
 import routing.graph.LcpTree1Way;
 import routing.graph.SpeedyGraph;
+import routing.graph.StopCriterion;
 
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.util.*;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public final class SkimCalculator {
 
     private final static Logger logger = Logger.getLogger(SkimCalculator.class);
+    private final static char SEP = ',';
+    private final static double SYMMETRY_TOLERANCE = 1e-6;
 
     private final Map<String, double[][]> results = new LinkedHashMap<>();
+    private final Map<String, SparseSkim> sparseResults = new LinkedHashMap<>();
     private final int dimSize;
 
     private final Geometry regionBoundary;
@@ -46,8 +57,23 @@ public final class SkimCalculator {
 
     private final int numberOfThreads;
 
+    private final String checkpointDirectory;
+    private final boolean resume;
+    private int calculationCount = 0;
+    private final Map<String, String> resultLabels = new HashMap<>();
+    private int manifestWrites = 0;
+
+    // Shard mode: only this shard's origins are calculated and written to spill files (see MergeSkimShards)
+    private final Shard shard;
+
     public SkimCalculator(Map<Integer, SimpleFeature> zones) throws IOException {
         this.numberOfThreads = Resources.instance.getInt(Properties.NUMBER_OF_THREADS);
+        this.checkpointDirectory = Resources.instance.getString(Properties.CHECKPOINT_DIRECTORY);
+        this.resume = Boolean.parseBoolean(Resources.instance.getString(Properties.CHECKPOINT_RESUME));
+        this.shard = Shard.fromProperties();
+        if(this.shard != null && this.checkpointDirectory == null) {
+            throw new RuntimeException("Shard mode requires " + Properties.CHECKPOINT_DIRECTORY + " for partial outputs!");
+        }
         this.regionBoundary = GpkgReader.readRegionBoundary();
         this.dimSize = zones.size();
         this.zoneIds = zones.keySet();
@@ -64,11 +90,307 @@ public final class SkimCalculator {
                                                 TravelTime travelTime,
                                                 TravelDisutility travelDisutility,
                                                 Vehicle vehicle) {
+        calculate(name, routingNetwork, xy2lNetwork, travelTime, travelDisutility, vehicle, false);
+    }
+
+    // Symmetric = true declares the costs symmetric, null detects it from the network (every link has an opposite link with equal disutility)
+    public void calculate(String name, Network routingNetwork, Network xy2lNetwork,
+                          TravelTime travelTime,
+                          TravelDisutility travelDisutility,
+                          Vehicle vehicle, Boolean symmetric) {
 
         SpeedyGraph routingGraph = new SpeedyGraph(routingNetwork, travelTime,travelDisutility, null, vehicle);
 
         double[][] costs = new double[dimSize][dimSize];
         int[] nodeCountPerZoneIdx = new int[dimSize];
+        Map<Integer, IdSet<Node>> zoneIdNodesMap = getZoneNodes(xy2lNetwork, nodeCountPerZoneIdx);
+
+        if(symmetric == null) {
+            symmetric = isSymmetric(routingNetwork, routingGraph);
+            logger.info(name + ": costs detected as " + (symmetric ? "symmetric" : "asymmetric"));
+        }
+        if(symmetric && checkpointDirectory != null) {
+            logger.warn(name + ": symmetric mode is not used with checkpointing/sharding (rows are not complete until the end). Calculating full matrix.");
+            symmetric = false;
+        }
+        if(symmetric) {
+            calculateSymmetric(name, routingGraph, zoneIdNodesMap, nodeCountPerZoneIdx, costs);
+            return;
+        }
+
+        // Checkpoint (rows already in the spill file are skipped)
+        RowSpillFile spillFile = openSpillFile(name);
+        ConcurrentLinkedQueue<Integer> originZones = new ConcurrentLinkedQueue<>();
+        Collection<Integer> shardZoneIds = shard != null ? shard.select(zoneIds, Comparator.naturalOrder()) : zoneIds;
+        for(int zoneId : shardZoneIds) {
+            double[] completedRow = spillFile != null ? spillFile.getCompletedRows().get(zoneId) : null;
+            if(completedRow != null) {
+                costs[id2index.get(zoneId)] = completedRow;
+            } else {
+                originZones.add(zoneId);
+            }
+        }
+
+        // do calculation
+        Counter counter = new Counter("CostCalculator zone ", " / " + originZones.size());
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            RowWorker worker = new RowWorker(originZones, zoneIds, routingGraph, zoneIdNodesMap, nodeCountPerZoneIdx, costs, this.id2index, spillFile, counter);
+            threads[i] = new Thread(worker, "CostCalculator-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        closeSpillFile(spillFile);
+        results.put(name,costs);
+    }
+
+    // Only computes zone pairs (i,j) where j comes at or after i in the processing order, then mirrors the result
+    private void calculateSymmetric(String name, SpeedyGraph routingGraph, Map<Integer, IdSet<Node>> zoneIdNodesMap,
+                                    int[] nodeCountPerZoneIdx, double[][] costs) {
+
+        // Process outer zones first, so later origins have a compact set of remaining targets and their trees stop early
+        int[] zoneLookup = getZoneLookup();
+        double[] centroidX = new double[dimSize];
+        double[] centroidY = new double[dimSize];
+        double meanX = 0.;
+        double meanY = 0.;
+        for(int i = 0 ; i < dimSize ; i++) {
+            Point c = ((Geometry) zones.get(zoneLookup[i]).getDefaultGeometry()).getCentroid();
+            centroidX[i] = c.getX();
+            centroidY[i] = c.getY();
+            meanX += c.getX() / dimSize;
+            meanY += c.getY() / dimSize;
+        }
+        double[] distToCentre = new double[dimSize];
+        for(int i = 0 ; i < dimSize ; i++) {
+            distToCentre[i] = Math.hypot(centroidX[i] - meanX, centroidY[i] - meanY);
+        }
+        int[] order = IntStream.range(0, dimSize).boxed()
+                .sorted(Comparator.comparingDouble((Integer i) -> -distToCentre[i]).thenComparingInt(i -> i))
+                .mapToInt(i -> i).toArray();
+
+        // Node indices per zone index
+        int[][] zoneNodes = new int[dimSize][];
+        for(Map.Entry<Integer, IdSet<Node>> e : zoneIdNodesMap.entrySet()) {
+            zoneNodes[id2index.get(e.getKey())] = e.getValue().stream().mapToInt(Id::index).toArray();
+        }
+
+        ConcurrentLinkedQueue<Integer> positions = new ConcurrentLinkedQueue<>();
+        for(int p = 0 ; p < dimSize ; p++) {
+            positions.add(p);
+        }
+
+        Counter counter = new Counter("SymmetricCostCalculator zone ", " / " + dimSize);
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            SymmetricRowWorker worker = new SymmetricRowWorker(positions, order, routingGraph, zoneNodes, nodeCountPerZoneIdx, costs, counter);
+            threads[i] = new Thread(worker, "SymmetricCostCalculator-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        int verifySample = verifySampleSize();
+        if(verifySample > 0) {
+            verifySymmetric(name, routingGraph, zoneNodes, nodeCountPerZoneIdx, costs, verifySample);
+        }
+
+        results.put(name,costs);
+    }
+
+    private static int verifySampleSize() {
+        String sample = Resources.instance.getString(Properties.SKIM_SYMMETRIC_VERIFY);
+        return sample != null ? Integer.parseInt(sample) : 0;
+    }
+
+    // Recomputes full rows for a sample of origins and compares with the mirrored matrix
+    private void verifySymmetric(String name, SpeedyGraph routingGraph, int[][] zoneNodes, int[] nodeCountPerZoneIdx,
+                                 double[][] costs, int sampleSize) {
+        Random random = new Random(dimSize);
+        LcpTree1Way lcpTree = new LcpTree1Way(routingGraph, true);
+        double maxRelDiff = 0.;
+        int worstOrigin = -1;
+        for(int s = 0 ; s < Math.min(sampleSize, dimSize) ; s++) {
+            int fromZoneIdx = random.nextInt(dimSize);
+            double[] row = new double[dimSize];
+            for(int fromNodeIdx : zoneNodes[fromZoneIdx]) {
+                lcpTree.calculate(fromNodeIdx, 0);
+                for(int toZoneIdx = 0 ; toZoneIdx < dimSize ; toZoneIdx++) {
+                    for(int toNodeIdx : zoneNodes[toZoneIdx]) {
+                        row[toZoneIdx] += lcpTree.getCost(toNodeIdx);
+                    }
+                }
+            }
+            for(int toZoneIdx = 0 ; toZoneIdx < dimSize ; toZoneIdx++) {
+                double expected = row[toZoneIdx] / (nodeCountPerZoneIdx[fromZoneIdx] * nodeCountPerZoneIdx[toZoneIdx]);
+                double actual = costs[fromZoneIdx][toZoneIdx];
+                if(expected == actual) {
+                    continue;
+                }
+                double relDiff = Math.abs(expected - actual) / Math.max(Math.abs(expected), 1e-9);
+                if(Double.isNaN(relDiff) || relDiff > maxRelDiff) {
+                    maxRelDiff = Double.isNaN(relDiff) ? Double.POSITIVE_INFINITY : relDiff;
+                    worstOrigin = fromZoneIdx;
+                }
+            }
+        }
+        if(maxRelDiff > SYMMETRY_TOLERANCE) {
+            logger.error(name + ": symmetric skim differs from full calculation by up to " + (maxRelDiff * 100) + "% (origin zone " +
+                    getZoneLookup()[worstOrigin] + "). Costs are probably not symmetric!");
+        } else {
+            logger.info(name + ": symmetric skim verified against " + Math.min(sampleSize, dimSize) + " full rows.");
+        }
+    }
+
+    // Symmetric if every link has an opposite link with the same disutility
+    public static boolean isSymmetric(Network network, SpeedyGraph routingGraph) {
+        for(Link link : network.getLinks().values()) {
+            Link opposite = NetworkUtils.findLinkInOppositeDirection(link);
+            if(opposite == null) {
+                return false;
+            }
+            double disutility = routingGraph.getLinkDisutility(link.getId().index());
+            double oppositeDisutility = routingGraph.getLinkDisutility(opposite.getId().index());
+            if(Math.abs(disutility - oppositeDisutility) > SYMMETRY_TOLERANCE * Math.max(Math.abs(disutility), 1.)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Sparse version: trees stop at the cost cutoff and only zone pairs where all node pairs are within the cutoff are stored
+    public void calculateSparse(String name, Network routingNetwork, Network xy2lNetwork,
+                                TravelTime travelTime,
+                                TravelDisutility travelDisutility,
+                                Vehicle vehicle, double costCutoff) {
+
+        if(shard != null) {
+            throw new RuntimeException("Sparse skims are not supported in shard mode!");
+        }
+
+        SpeedyGraph routingGraph = new SpeedyGraph(routingNetwork, travelTime,travelDisutility, null, vehicle);
+
+        int[] nodeCountPerZoneIdx = new int[dimSize];
+        Map<Integer, IdSet<Node>> zoneIdNodesMap = getZoneNodes(xy2lNetwork, nodeCountPerZoneIdx);
+
+        // Index zones by node (CSR, as fallback nodes can be shared between zones)
+        int nodeCount = routingGraph.getNodeCount();
+        int[] nodeZonePointers = new int[nodeCount + 1];
+        for(IdSet<Node> nodeIds : zoneIdNodesMap.values()) {
+            for(Id<Node> nodeId : nodeIds) {
+                nodeZonePointers[nodeId.index() + 1]++;
+            }
+        }
+        for(int i = 0 ; i < nodeCount ; i++) {
+            nodeZonePointers[i + 1] += nodeZonePointers[i];
+        }
+        int[] nodeZones = new int[nodeZonePointers[nodeCount]];
+        int[] nextPosition = Arrays.copyOf(nodeZonePointers, nodeCount);
+        for(Map.Entry<Integer, IdSet<Node>> e : zoneIdNodesMap.entrySet()) {
+            int zoneIdx = id2index.get(e.getKey());
+            for(Id<Node> nodeId : e.getValue()) {
+                nodeZones[nextPosition[nodeId.index()]++] = zoneIdx;
+            }
+        }
+
+        int[][] rowColumns = new int[dimSize][];
+        double[][] rowValues = new double[dimSize][];
+
+        // do calculation
+        ConcurrentLinkedQueue<Integer> originZones = new ConcurrentLinkedQueue<>(zoneIds);
+
+        Counter counter = new Counter("SparseCostCalculator zone ", " / " + zoneIds.size());
+        Thread[] threads = new Thread[numberOfThreads];
+        for (int i = 0; i < numberOfThreads; i++) {
+            SparseRowWorker worker = new SparseRowWorker(originZones, routingGraph, zoneIdNodesMap, nodeCountPerZoneIdx,
+                    nodeZonePointers, nodeZones, costCutoff, rowColumns, rowValues, this.id2index, counter);
+            threads[i] = new Thread(worker, "SparseCostCalculator-" + i);
+            threads[i].start();
+        }
+
+        // wait until all threads have finished
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+
+        SparseSkim skim = SparseSkim.fromRows(getZoneLookup(), rowColumns, rowValues);
+        logger.info(name + ": stored " + skim.getNonZeroCount() + " of " + ((long) dimSize * dimSize) + " cells within cost cutoff " + costCutoff);
+        sparseResults.put(name,skim);
+    }
+
+    // Spill files are numbered by calculation order, so a resumed run must repeat the same sequence of calculations
+    private RowSpillFile openSpillFile(String name) {
+        calculationCount++;
+        if(checkpointDirectory == null) {
+            return null;
+        }
+        String label = calculationCount + "_" + name;
+        resultLabels.put(name, label);
+        String filePath = getSpillFilePath(checkpointDirectory, label, shard);
+        try {
+            return new RowSpillFile(filePath, label, dimSize, resume);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to open spill file " + filePath, e);
+        }
+    }
+
+    static String getSpillFilePath(String checkpointDirectory, String label, Shard shard) {
+        return checkpointDirectory + "/skim_" + label + (shard != null ? shard.getSuffix() : "") + ".spill";
+    }
+
+    // Writes current results to OMX. In shard mode, results are partial so the output is recorded in a manifest instead.
+    public void writeOmx(String omxFilePath) {
+        if(shard == null) {
+            OmxWriter.createOmxSkimMatrix(omxFilePath, results, id2index);
+            return;
+        }
+        String manifestPath = checkpointDirectory + "/skim_manifest" + shard.getSuffix() + ".csv";
+        boolean newManifest = manifestWrites == 0;
+        try (PrintWriter out = new PrintWriter(new FileWriter(manifestPath, !newManifest))) {
+            if(newManifest) {
+                out.println("zones" + SEP + Arrays.stream(getZoneLookup()).mapToObj(Integer::toString).collect(Collectors.joining(String.valueOf(SEP))));
+            }
+            for(String name : results.keySet()) {
+                out.println(omxFilePath + SEP + name + SEP + resultLabels.get(name));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write shard manifest " + manifestPath, e);
+        }
+        manifestWrites++;
+        logger.info("Shard mode: " + omxFilePath + " recorded in " + manifestPath + " (merge shards to write)");
+    }
+
+    private static void closeSpillFile(RowSpillFile spillFile) {
+        if(spillFile != null) {
+            try {
+                spillFile.close();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private Map<Integer, IdSet<Node>> getZoneNodes(Network xy2lNetwork, int[] nodeCountPerZoneIdx) {
 
         // Compute network nodes
         Set<Id<Node>> gmNodes = NetworkUtils2.getNodesInBoundary(xy2lNetwork,regionBoundary);
@@ -99,36 +421,29 @@ public final class SkimCalculator {
             zoneIdNodesMap.put(zoneId,nodeIDs);
             nodeCountPerZoneIdx[id2index.get(zoneId)] = nodeIDs.size();
         }
-
-        // do calculation
-        ConcurrentLinkedQueue<Integer> originZones = new ConcurrentLinkedQueue<>(zoneIds);
-
-        Counter counter = new Counter("CostCalculator zone ", " / " + zoneIds.size());
-        Thread[] threads = new Thread[numberOfThreads];
-        for (int i = 0; i < numberOfThreads; i++) {
-            RowWorker worker = new RowWorker(originZones, zoneIds, routingGraph, zoneIdNodesMap, nodeCountPerZoneIdx, costs, this.id2index, counter);
-            threads[i] = new Thread(worker, "CostCalculator-" + i);
-            threads[i].start();
-        }
-
-        // wait until all threads have finished
-        for (Thread thread : threads) {
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
-            }
-        }
-
-        results.put(name,costs);
+        return zoneIdNodesMap;
     }
 
     public Map<String,double[][]> getResults() {
         return this.results;
     }
 
+    public Map<String,SparseSkim> getSparseResults() {
+        return this.sparseResults;
+    }
+
     public void clearResults() {
         this.results.clear();
+        this.sparseResults.clear();
+        this.resultLabels.clear();
+    }
+
+    public int[] getZoneLookup() {
+        int[] zoneLookup = new int[dimSize];
+        for(Map.Entry<Integer,Integer> e : id2index.entrySet()) {
+            zoneLookup[e.getValue()] = e.getKey();
+        }
+        return zoneLookup;
     }
 
     public Map<Integer,Integer> getId2index() {
@@ -143,12 +458,13 @@ public final class SkimCalculator {
         private final Map<Integer, IdSet<Node>> zoneNodeMap;
         private final double[][] costs;
         private final int[] nodeCountPerZoneIdx;
+        private final RowSpillFile spillFile;
         private final Counter counter;
 
 
         RowWorker(ConcurrentLinkedQueue<Integer> originZones, Set<Integer> destinationZones, SpeedyGraph graph,
                   Map<Integer, IdSet<Node>> zoneNodeMap, int[] nodeCountPerZoneIdx, double[][] costs,
-                  Map<Integer, Integer> id2index, Counter counter) {
+                  Map<Integer, Integer> id2index, RowSpillFile spillFile, Counter counter) {
             this.originZones = originZones;
             this.destinationZones = destinationZones;
             this.graph = graph;
@@ -156,6 +472,7 @@ public final class SkimCalculator {
             this.nodeCountPerZoneIdx = nodeCountPerZoneIdx;
             this.costs = costs;
             this.id2index = id2index;
+            this.spillFile = spillFile;
             this.counter = counter;
         }
 
@@ -189,7 +506,205 @@ public final class SkimCalculator {
                     costs[fromZoneIdx][i] = results[i] / (nodeCountPerZoneIdx[fromZoneIdx] * nodeCountPerZoneIdx[i]);
                 }
 
+                if(spillFile != null) {
+                    spillFile.write(fromZoneId, costs[fromZoneIdx]);
+                }
+
+            }
+        }
+    }
+
+    private static class SparseRowWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> originZones;
+        private final SpeedyGraph graph;
+        private final Map<Integer, Integer> id2index;
+        private final Map<Integer, IdSet<Node>> zoneNodeMap;
+        private final int[] nodeCountPerZoneIdx;
+        private final int[] nodeZonePointers;
+        private final int[] nodeZones;
+        private final double costCutoff;
+        private final int[][] rowColumns;
+        private final double[][] rowValues;
+        private final Counter counter;
+
+        // Nodes settled within the cutoff in the current tree
+        private final int[] settledNodes;
+        private int settledCount;
+
+        SparseRowWorker(ConcurrentLinkedQueue<Integer> originZones, SpeedyGraph graph,
+                        Map<Integer, IdSet<Node>> zoneNodeMap, int[] nodeCountPerZoneIdx,
+                        int[] nodeZonePointers, int[] nodeZones, double costCutoff,
+                        int[][] rowColumns, double[][] rowValues,
+                        Map<Integer, Integer> id2index, Counter counter) {
+            this.originZones = originZones;
+            this.graph = graph;
+            this.zoneNodeMap = zoneNodeMap;
+            this.nodeCountPerZoneIdx = nodeCountPerZoneIdx;
+            this.nodeZonePointers = nodeZonePointers;
+            this.nodeZones = nodeZones;
+            this.costCutoff = costCutoff;
+            this.rowColumns = rowColumns;
+            this.rowValues = rowValues;
+            this.id2index = id2index;
+            this.counter = counter;
+            this.settledNodes = new int[graph.getNodeCount()];
+        }
+
+        public void run() {
+
+            LcpTree1Way lcpTree = new LcpTree1Way(this.graph, true);
+            StopCriterion stopCriterion = this::settle;
+
+            int dimSize = nodeCountPerZoneIdx.length;
+            double[] sums = new double[dimSize];
+            int[] pairCounts = new int[dimSize];
+            int[] touchedZones = new int[dimSize];
+
+            while (true) {
+                Integer fromZoneId = this.originZones.poll();
+                if (fromZoneId == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                int fromZoneIdx = id2index.get(fromZoneId);
+                int touchedCount = 0;
+
+                for(Id<Node> fromNodeId : this.zoneNodeMap.get(fromZoneId)) {
+                    this.settledCount = 0;
+                    lcpTree.calculate(fromNodeId.index(), 0, stopCriterion);
+
+                    for(int k = 0 ; k < settledCount ; k++) {
+                        int nodeIdx = settledNodes[k];
+                        double cost = lcpTree.getCost(nodeIdx);
+                        for(int z = nodeZonePointers[nodeIdx] ; z < nodeZonePointers[nodeIdx + 1] ; z++) {
+                            int toZoneIdx = nodeZones[z];
+                            if(pairCounts[toZoneIdx] == 0) {
+                                touchedZones[touchedCount++] = toZoneIdx;
+                            }
+                            sums[toZoneIdx] += cost;
+                            pairCounts[toZoneIdx]++;
+                        }
+                    }
+                }
+
+                // Keep zones where every node pair is within the cutoff
+                Arrays.sort(touchedZones, 0, touchedCount);
+                int fromNodeCount = nodeCountPerZoneIdx[fromZoneIdx];
+                int[] columns = new int[touchedCount];
+                double[] values = new double[touchedCount];
+                int stored = 0;
+                for(int k = 0 ; k < touchedCount ; k++) {
+                    int toZoneIdx = touchedZones[k];
+                    int pairs = fromNodeCount * nodeCountPerZoneIdx[toZoneIdx];
+                    if(pairCounts[toZoneIdx] == pairs) {
+                        columns[stored] = toZoneIdx;
+                        values[stored] = sums[toZoneIdx] / pairs;
+                        stored++;
+                    }
+                    sums[toZoneIdx] = 0.;
+                    pairCounts[toZoneIdx] = 0;
+                }
+
+                rowColumns[fromZoneIdx] = Arrays.copyOf(columns, stored);
+                rowValues[fromZoneIdx] = Arrays.copyOf(values, stored);
+            }
+        }
+
+        // Records each node settled below the cutoff. Once the cutoff is reached, all remaining nodes are further away.
+        private boolean settle(int nodeIdx, double arrivalTime, double cost, double distance, double departureTime) {
+            if(cost >= costCutoff) {
+                return true;
+            }
+            settledNodes[settledCount++] = nodeIdx;
+            return false;
+        }
+    }
+
+    private static class SymmetricRowWorker implements Runnable {
+        private final ConcurrentLinkedQueue<Integer> positions;
+        private final int[] order;
+        private final SpeedyGraph graph;
+        private final int[][] zoneNodes;
+        private final int[] nodeCountPerZoneIdx;
+        private final double[][] costs;
+        private final Counter counter;
+
+        // Target nodes of the current origin (marked with the current stamp)
+        private final int[] targetStamp;
+        private int stamp = 0;
+        private int targetCount;
+        private int settledTargets;
+
+        SymmetricRowWorker(ConcurrentLinkedQueue<Integer> positions, int[] order, SpeedyGraph graph,
+                           int[][] zoneNodes, int[] nodeCountPerZoneIdx, double[][] costs, Counter counter) {
+            this.positions = positions;
+            this.order = order;
+            this.graph = graph;
+            this.zoneNodes = zoneNodes;
+            this.nodeCountPerZoneIdx = nodeCountPerZoneIdx;
+            this.costs = costs;
+            this.counter = counter;
+            this.targetStamp = new int[graph.getNodeCount()];
+        }
+
+        public void run() {
+
+            LcpTree1Way lcpTree = new LcpTree1Way(this.graph, true);
+            StopCriterion stopCriterion = this::allTargetsSettled;
+            int dimSize = order.length;
+            double[] results = new double[dimSize];
+
+            while (true) {
+                Integer position = this.positions.poll();
+                if (position == null) {
+                    return;
+                }
+
+                this.counter.incCounter();
+                int fromZoneIdx = order[position];
+
+                // Targets are the zones at or after this position
+                stamp++;
+                targetCount = 0;
+                for(int p = position ; p < dimSize ; p++) {
+                    for(int toNodeIdx : zoneNodes[order[p]]) {
+                        if(targetStamp[toNodeIdx] != stamp) {
+                            targetStamp[toNodeIdx] = stamp;
+                            targetCount++;
+                        }
+                    }
+                    results[order[p]] = 0.;
+                }
+
+                for(int fromNodeIdx : zoneNodes[fromZoneIdx]) {
+                    settledTargets = 0;
+                    lcpTree.calculate(fromNodeIdx, 0, stopCriterion);
+
+                    for(int p = position ; p < dimSize ; p++) {
+                        int toZoneIdx = order[p];
+                        for(int toNodeIdx : zoneNodes[toZoneIdx]) {
+                            results[toZoneIdx] += lcpTree.getCost(toNodeIdx);
+                        }
+                    }
+                }
+
+                // Each pair is owned by one origin, so no two threads write the same cell
+                for(int p = position ; p < dimSize ; p++) {
+                    int toZoneIdx = order[p];
+                    double cost = results[toZoneIdx] / (nodeCountPerZoneIdx[fromZoneIdx] * nodeCountPerZoneIdx[toZoneIdx]);
+                    costs[fromZoneIdx][toZoneIdx] = cost;
+                    costs[toZoneIdx][fromZoneIdx] = cost;
+                }
+            }
+        }
+
+        private boolean allTargetsSettled(int nodeIdx, double arrivalTime, double cost, double distance, double departureTime) {
+            if(targetStamp[nodeIdx] == stamp) {
+                settledTargets++;
+                return settledTargets == targetCount;
             }
+            return false;
         }
     }
 }
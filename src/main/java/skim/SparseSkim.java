@@ -0,0 +1,97 @@
+package skim;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Skim matrix stored in compressed sparse row (CSR) format. Only cells reached within the cost cutoff are stored;
+ * all other cells return the default value given by the caller.
+ * <p>
+ * Destination indices are sorted within each row, so single cells are found by binary search.
+ */
+public class SparseSkim {
+
+    private final int[] zoneLookup;
+    private final int[] rowPointers;
+    private final int[] columns;
+    private final double[] values;
+    private final Map<Integer,Integer> id2index;
+
+    public SparseSkim(int[] zoneLookup, int[] rowPointers, int[] columns, double[] values) {
+        if(rowPointers.length != zoneLookup.length + 1) {
+            throw new RuntimeException("Row pointer array must have one more entry than the zone lookup!");
+        }
+        if(columns.length != values.length || rowPointers[zoneLookup.length] != values.length) {
+            throw new RuntimeException("Mismatching number of stored cells in sparse skim!");
+        }
+        this.zoneLookup = zoneLookup;
+        this.rowPointers = rowPointers;
+        this.columns = columns;
+        this.values = values;
+        this.id2index = new HashMap<>(zoneLookup.length);
+        for(int i = 0 ; i < zoneLookup.length ; i++) {
+            this.id2index.put(zoneLookup[i],i);
+        }
+    }
+
+    // Assembles CSR arrays from rows of sorted destination indices (null rows are treated as empty)
+    public static SparseSkim fromRows(int[] zoneLookup, int[][] rowColumns, double[][] rowValues) {
+        int dimSize = zoneLookup.length;
+        int[] rowPointers = new int[dimSize + 1];
+        for(int i = 0 ; i < dimSize ; i++) {
+            rowPointers[i+1] = rowPointers[i] + (rowColumns[i] == null ? 0 : rowColumns[i].length);
+        }
+        int[] columns = new int[rowPointers[dimSize]];
+        double[] values = new double[rowPointers[dimSize]];
+        for(int i = 0 ; i < dimSize ; i++) {
+            if(rowColumns[i] != null) {
+                System.arraycopy(rowColumns[i],0,columns,rowPointers[i],rowColumns[i].length);
+                System.arraycopy(rowValues[i],0,values,rowPointers[i],rowValues[i].length);
+            }
+        }
+        return new SparseSkim(zoneLookup,rowPointers,columns,values);
+    }
+
+    public double getValue(int origZoneId, int destZoneId, double defaultValue) {
+        Integer origIdx = id2index.get(origZoneId);
+        Integer destIdx = id2index.get(destZoneId);
+        if(origIdx == null || destIdx == null) {
+            return defaultValue;
+        }
+        return getValueByIndex(origIdx,destIdx,defaultValue);
+    }
+
+    public double getValueByIndex(int origIdx, int destIdx, double defaultValue) {
+        int pos = Arrays.binarySearch(columns,rowPointers[origIdx],rowPointers[origIdx+1],destIdx);
+        return pos >= 0 ? values[pos] : defaultValue;
+    }
+
+    public int getRowLength(int origIdx) {
+        return rowPointers[origIdx+1] - rowPointers[origIdx];
+    }
+
+    public int getDimSize() {
+        return zoneLookup.length;
+    }
+
+    public int getNonZeroCount() {
+        return values.length;
+    }
+
+    public int[] getZoneLookup() {
+        return zoneLookup;
+    }
+
+    public int[] getRowPointers() {
+        return rowPointers;
+    }
+
+    public int[] getColumns() {
+        return columns;
+    }
+
+    public double[] getValues() {
+        return values;
+    }
+}
@@ -0,0 +1,256 @@
+package trip;
+
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.Id;
+import org.matsim.api.core.v01.network.Link;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+// Set of distinct paths per trip, with paths as link index arrays. New paths are looked up in a per-trip index by a
+// 64-bit hash of their link indices (confirmed with a full comparison) and trips are indexed by household, person and
+// trip ID. Paths can be added concurrently (each trip's path set is locked while adding). Paths added with an order
+// (e.g. a sample index) keep the lowest order they were added with, so counts of new paths don't depend on thread
+// timing.
+// Binary layout (deflated): magic, version, link ID table (count, IDs), trip count, then per trip: household ID,
+// person ID, trip ID, path count and paths (length, link table indices), with counts and indices as varints.
+
+public final class PathStore {
+
+    private final static Logger logger = Logger.getLogger(PathStore.class);
+    private final static int MAGIC = 0x4A505448; // "JPTH"
+    private final static int VERSION = 1;
+
+    private final Map<Trip,TripPaths> pathsByTrip = new IdentityHashMap<>();
+    private final Map<String,Trip> tripIndex = new HashMap<>();
+
+    public PathStore(Collection<Trip> trips) {
+        for(Trip trip : trips) {
+            pathsByTrip.put(trip, new TripPaths());
+            tripIndex.put(key(trip.getHouseholdId(), trip.getPersonId(), trip.getTripId()), trip);
+        }
+    }
+
+    private static class TripPaths {
+        private final List<int[]> paths = new ArrayList<>(4);
+        private long[] hashes = new long[4];
+        private int[] orders = new int[4];
+
+        // Open-addressing index from hash to path position + 1 (0 = empty slot), at most half full
+        private int[] slots = new int[8];
+
+        synchronized boolean add(int[] path, long hash, int order) {
+            int mask = slots.length - 1;
+            int slot = (int) hash & mask;
+            while(slots[slot] != 0) {
+                int i = slots[slot] - 1;
+                if(hashes[i] == hash && Arrays.equals(paths.get(i), path)) {
+                    if(order >= 0 && order < orders[i]) {
+                        orders[i] = order;
+                    }
+                    return false;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            int size = paths.size();
+            if(size == hashes.length) {
+                hashes = Arrays.copyOf(hashes, size * 2);
+                orders = Arrays.copyOf(orders, size * 2);
+            }
+            hashes[size] = hash;
+            orders[size] = order;
+            paths.add(path);
+            slots[slot] = size + 1;
+            if(2 * (size + 1) > slots.length) {
+                rehash();
+            }
+            return true;
+        }
+
+        private void rehash() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for(int i = 0 ; i < paths.size() ; i++) {
+                int slot = (int) hashes[i] & mask;
+                while(slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = i + 1;
+            }
+        }
+    }
+
+    // Adds the path unless the trip already has it. Returns true if it was added.
+    public boolean add(Trip trip, int[] path) {
+        return add(trip, path, -1);
+    }
+
+    // As add(trip, path), recording the lowest order (>= 0) the path was added with (see countNewPaths)
+    public boolean add(Trip trip, int[] path, int order) {
+        TripPaths tripPaths = pathsByTrip.get(trip);
+        if(tripPaths == null) {
+            throw new RuntimeException("Trip not in path store! HouseholdId: " + trip.getHouseholdId() +
+                    ", personId: " + trip.getPersonId() + ", tripId: " + trip.getTripId());
+        }
+        return tripPaths.add(path, hash(path), order);
+    }
+
+    // Number of paths whose lowest order is each of 0..orderCount-1, i.e. the paths that are new in order of the
+    // orders. Afterwards all paths count as existing.
+    public int[] countNewPaths(int orderCount) {
+        int[] counts = new int[orderCount];
+        for(TripPaths tripPaths : pathsByTrip.values()) {
+            for(int i = 0 ; i < tripPaths.paths.size() ; i++) {
+                int order = tripPaths.orders[i];
+                if(order >= 0) {
+                    counts[order]++;
+                    tripPaths.orders[i] = -1;
+                }
+            }
+        }
+        return counts;
+    }
+
+    // Paths of the trip, in the order they were added
+    public List<int[]> getPaths(Trip trip) {
+        TripPaths tripPaths = pathsByTrip.get(trip);
+        return tripPaths != null ? tripPaths.paths : Collections.emptyList();
+    }
+
+    public Trip getTrip(String householdId, int personId, int tripId) {
+        Trip trip = tripIndex.get(key(householdId, personId, tripId));
+        if(trip == null) {
+            throw new RuntimeException("Trip not found! HouseholdId: " + householdId + ", personId: " + personId + ", tripId: " + tripId);
+        }
+        return trip;
+    }
+
+    public int getPathCount() {
+        int count = 0;
+        for(TripPaths tripPaths : pathsByTrip.values()) {
+            count += tripPaths.paths.size();
+        }
+        return count;
+    }
+
+    public void write(String filePath) throws IOException {
+
+        // Link ID table (only links used by a path)
+        int[] tableIndex = new int[Id.getNumberOfIds(Link.class)];
+        Arrays.fill(tableIndex, -1);
+        List<String> linkIds = new ArrayList<>();
+        for(TripPaths tripPaths : pathsByTrip.values()) {
+            for(int[] path : tripPaths.paths) {
+                for(int linkIdx : path) {
+                    if(tableIndex[linkIdx] < 0) {
+                        tableIndex[linkIdx] = linkIds.size();
+                        linkIds.add(Id.get(linkIdx, Link.class).toString());
+                    }
+                }
+            }
+        }
+
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(new FileOutputStream(filePath), deflater, 1 << 16), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeVarint(out, linkIds.size());
+            for(String linkId : linkIds) {
+                out.writeUTF(linkId);
+            }
+            writeVarint(out, pathsByTrip.size());
+            for(Map.Entry<Trip,TripPaths> e : pathsByTrip.entrySet()) {
+                Trip trip = e.getKey();
+                List<int[]> paths = e.getValue().paths;
+                out.writeUTF(trip.getHouseholdId());
+                out.writeInt(trip.getPersonId());
+                out.writeInt(trip.getTripId());
+                writeVarint(out, paths.size());
+                for(int[] path : paths) {
+                    writeVarint(out, path.length);
+                    for(int linkIdx : path) {
+                        writeVarint(out, tableIndex[linkIdx]);
+                    }
+                }
+            }
+        } finally {
+            deflater.end();
+        }
+        logger.info("Wrote " + getPathCount() + " paths for " + pathsByTrip.size() + " trips to " + filePath);
+    }
+
+    // Adds the paths in the file to this store's trips (trips with no paths in the file are ignored). Returns the number
+    // of paths read.
+    public int read(String filePath) throws IOException {
+        int pathCount = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new FileInputStream(filePath)), 1 << 16))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException(filePath + " is not a path store file");
+            }
+            int[] linkIndices = new int[readVarint(in)];
+            for(int i = 0 ; i < linkIndices.length ; i++) {
+                linkIndices[i] = Id.createLinkId(in.readUTF()).index();
+            }
+            int tripCount = readVarint(in);
+            for(int t = 0 ; t < tripCount ; t++) {
+                String householdId = in.readUTF();
+                int personId = in.readInt();
+                int tripId = in.readInt();
+                int paths = readVarint(in);
+                Trip trip = paths > 0 ? getTrip(householdId, personId, tripId) : null;
+                for(int p = 0 ; p < paths ; p++) {
+                    int[] path = new int[readVarint(in)];
+                    for(int i = 0 ; i < path.length ; i++) {
+                        path[i] = linkIndices[readVarint(in)];
+                    }
+                    add(trip, path);
+                    pathCount++;
+                }
+            }
+        }
+        logger.info("Read " + pathCount + " paths from " + filePath);
+        return pathCount;
+    }
+
+    private static String key(String householdId, int personId, int tripId) {
+        return householdId + "-" + personId + "-" + tripId;
+    }
+
+    // Polynomial rolling hash over the link indices, with a final avalanche step
+    private static long hash(int[] path) {
+        long h = 0x9E3779B97F4A7C15L;
+        for(int linkIdx : path) {
+            h = h * 0x100000001B3L + linkIdx + 1;
+        }
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    private static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while((b & 0x80) != 0);
+        return value;
+    }
+}
@@ -0,0 +1,109 @@
+package trip;
+
+import network.NetworkSnapper;
+import org.apache.log4j.Logger;
+import org.matsim.api.core.v01.network.Node;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Groups trips by (snapped) origin node, so that one truncated tree per group gives the paths of all its trips (see
+// LcpPathCalculator). Largest groups are queued first so that threads finish at about the same time.
+
+public final class TripScheduler {
+
+    private final static Logger logger = Logger.getLogger(TripScheduler.class);
+
+    private TripScheduler() {
+    }
+
+    public static class Group {
+        private final int originNode;
+        private final Trip[] trips;
+        private final int[] destinationNodes;
+
+        private Group(int originNode, Trip[] trips, int[] destinationNodes) {
+            this.originNode = originNode;
+            this.trips = trips;
+            this.destinationNodes = destinationNodes;
+        }
+
+        public int getOriginNode() {
+            return originNode;
+        }
+
+        // Trips of the group, with their destination node indices at the same positions
+        public Trip[] getTrips() {
+            return trips;
+        }
+
+        public int[] getDestinationNodes() {
+            return destinationNodes;
+        }
+
+        public int size() {
+            return trips.length;
+        }
+    }
+
+    // Routable trips grouped by the to-node of the link nearest to their origin (node indices as in SpeedyGraph)
+    public static ConcurrentLinkedQueue<Group> byOrigin(Collection<Trip> trips, Place origin, Place destination, NetworkSnapper snapper) {
+        Map<Integer,GroupBuilder> builders = new HashMap<>();
+        for(Trip trip : trips) {
+            if(trip.routable(origin, destination)) {
+                int originNode = snapper.getNearestLink(trip.getCoord(origin)).getToNode().getId().index();
+                int destinationNode = snapper.getNearestLink(trip.getCoord(destination)).getToNode().getId().index();
+                builders.computeIfAbsent(originNode, GroupBuilder::new).add(trip, destinationNode);
+            }
+        }
+        return toQueue(builders);
+    }
+
+    // Trips grouped by the nodes already set on them (see Trip.setNodes)
+    public static ConcurrentLinkedQueue<Group> byOrigin(Collection<Trip> trips) {
+        Map<Integer,GroupBuilder> builders = new HashMap<>();
+        for(Trip trip : trips) {
+            Node originNode = trip.getOrigNode();
+            Node destinationNode = trip.getDestNode();
+            if(originNode != null && destinationNode != null) {
+                builders.computeIfAbsent(originNode.getId().index(), GroupBuilder::new).add(trip, destinationNode.getId().index());
+            }
+        }
+        return toQueue(builders);
+    }
+
+    private static ConcurrentLinkedQueue<Group> toQueue(Map<Integer,GroupBuilder> builders) {
+        List<Group> groups = new ArrayList<>(builders.size());
+        int tripCount = 0;
+        for(GroupBuilder builder : builders.values()) {
+            Group group = builder.build();
+            groups.add(group);
+            tripCount += group.size();
+        }
+        groups.sort(Comparator.comparingInt(Group::size).reversed());
+        logger.info("Grouped " + tripCount + " trips into " + groups.size() + " origin groups.");
+        return new ConcurrentLinkedQueue<>(groups);
+    }
+
+    private static class GroupBuilder {
+        private final int originNode;
+        private final List<Trip> trips = new ArrayList<>();
+        private int[] destinationNodes = new int[4];
+
+        GroupBuilder(int originNode) {
+            this.originNode = originNode;
+        }
+
+        void add(Trip trip, int destinationNode) {
+            if(trips.size() == destinationNodes.length) {
+                destinationNodes = Arrays.copyOf(destinationNodes, destinationNodes.length * 2);
+            }
+            destinationNodes[trips.size()] = destinationNode;
+            trips.add(trip);
+        }
+
+        Group build() {
+            return new Group(originNode, trips.toArray(new Trip[0]), Arrays.copyOf(destinationNodes, trips.size()));
+        }
+    }
+}